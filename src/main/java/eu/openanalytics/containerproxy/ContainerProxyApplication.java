@@ -156,6 +156,8 @@ public class ContainerProxyApplication {
       info.addInnerHandlerChainWrapper(defaultHandler -> {
         return mappingManager.createHttpHandler(defaultHandler);
       });
+      // lets authorized requests to /api/route skip the servlet stack
+      info.addInitialHandlerChainWrapper(defaultHandler -> mappingManager.createDirectRouteHandler(defaultHandler));
       ServletSessionConfig sessionConfig = new ServletSessionConfig();
       sessionConfig.setHttpOnly(true);
       sessionConfig.setSecure(Boolean.valueOf(environment.getProperty("server.secureCookies", "false")));
@@ -0,0 +1,62 @@
+package eu.openanalytics.containerproxy.api;
+
+import eu.openanalytics.containerproxy.log.LogChunk;
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.service.LogService;
+import eu.openanalytics.containerproxy.service.ProxyService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.function.Function;
+
+/**
+ * Reads the container logs of a proxy, which is only allowed for the owner of the proxy and admins.
+ * The stream is either stdout or stderr.
+ */
+@RestController
+public class LogController extends BaseController {
+  
+  private final ProxyService proxyService;
+  private final LogService logService;
+  
+  public LogController(ProxyService proxyService, LogService logService) {
+    this.proxyService = proxyService;
+    this.logService = logService;
+  }
+  
+  @GetMapping(value = "/api/proxy/{proxyId}/logs/{stream}/tail", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<LogChunk> tail(@PathVariable String proxyId, @PathVariable String stream, @RequestParam(defaultValue = "100") int lines) {
+    return read(proxyId, proxy -> logService.tail(proxy, stream, lines));
+  }
+  
+  /**
+   * Get the lines that were written between from and to (or now), in milliseconds since the epoch.
+   */
+  @GetMapping(value = "/api/proxy/{proxyId}/logs/{stream}/range", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<LogChunk> range(@PathVariable String proxyId, @PathVariable String stream, @RequestParam long from, @RequestParam(required = false) Long to) {
+    return read(proxyId, proxy -> logService.range(proxy, stream, from, to == null ? Long.MAX_VALUE : to));
+  }
+  
+  /**
+   * Get the lines that were written after the offset. A client follows a log by polling with the endOffset of the
+   * previous response.
+   */
+  @GetMapping(value = "/api/proxy/{proxyId}/logs/{stream}/follow", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<LogChunk> follow(@PathVariable String proxyId, @PathVariable String stream, @RequestParam(defaultValue = "0") long offset) {
+    return read(proxyId, proxy -> logService.follow(proxy, stream, offset));
+  }
+  
+  private ResponseEntity<LogChunk> read(String proxyId, Function<Proxy, LogChunk> reader) {
+    Proxy proxy = proxyService.getProxy(proxyId, false);
+    if (proxy == null) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    
+    LogChunk chunk = reader.apply(proxy);
+    if (chunk == null) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    return new ResponseEntity<>(chunk, HttpStatus.OK);
+  }
+}
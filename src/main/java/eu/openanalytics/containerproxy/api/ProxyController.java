@@ -1,25 +1,46 @@
 package eu.openanalytics.containerproxy.api;
 
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
 import eu.openanalytics.containerproxy.model.runtime.RuntimeSetting;
 import eu.openanalytics.containerproxy.model.spec.ProxySpec;
 import eu.openanalytics.containerproxy.service.ProxyService;
+import eu.openanalytics.containerproxy.service.ProxyStartup;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 @RestController
 public class ProxyController extends BaseController {
+  private static final String STATUS_FAILED = "Failed";
+  
   private final ProxyService proxyService;
+  // the status listeners are called by the thread that starts the proxy, which must not wait for slow clients
+  private final ExecutorService eventSender = Executors.newCachedThreadPool();
   
   public ProxyController(ProxyService proxyService) {
     this.proxyService = proxyService;
   }
   
+  @PreDestroy
+  public void shutdown() {
+    eventSender.shutdownNow();
+  }
+  
   @GetMapping(value = "/api/proxyspec", produces = MediaType.APPLICATION_JSON_VALUE)
   public List<ProxySpec> listProxySpecs() {
     return proxyService.getProxySpecs(null, false);
@@ -39,11 +60,77 @@ public class ProxyController extends BaseController {
   
   @GetMapping(value = "/api/proxy/{proxyId}", produces = MediaType.APPLICATION_JSON_VALUE)
   public ResponseEntity<Proxy> getProxy(@PathVariable String proxyId) {
-    Proxy proxy = proxyService.findProxy(p -> p.getId().equals(proxyId), false);
+    Proxy proxy = proxyService.getProxy(proxyId, false);
     if (proxy == null) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
     return new ResponseEntity<>(proxy, HttpStatus.OK);
   }
   
+  /**
+   * Get the status of a proxy. If the proxy is still being started and a timeout is given,
+   * the response is held back (long-poll) until the proxy is up, failed to start or the timeout expires.
+   * The request thread is released while waiting.
+   */
+  @GetMapping(value = "/api/proxy/{proxyId}/status", produces = MediaType.APPLICATION_JSON_VALUE)
+  public DeferredResult<ResponseEntity<Map<String, String>>> getProxyStatus(@PathVariable String proxyId, @RequestParam(defaultValue = "0") long timeout) {
+    DeferredResult<ResponseEntity<Map<String, String>>> result = new DeferredResult<>(timeout > 0 ? timeout : null);
+    Proxy proxy = proxyService.getProxy(proxyId, false);
+    if (proxy == null) {
+      result.setResult(new ResponseEntity<>(HttpStatus.NOT_FOUND));
+      return result;
+    }
+    
+    ProxyStartup startup = proxyService.getProxyStartup(proxyId);
+    if (startup == null || timeout <= 0) {
+      result.setResult(new ResponseEntity<>(statusResponse(proxy, proxy.getStatus().toString(), null), HttpStatus.OK));
+      return result;
+    }
+    
+    result.onTimeout(() -> result.setResult(new ResponseEntity<>(statusResponse(proxy, proxy.getStatus().toString(), null), HttpStatus.OK)));
+    startup.getFuture().whenComplete((p, error) -> {
+      if (error == null) {
+        result.setResult(new ResponseEntity<>(statusResponse(proxy, ProxyStatus.Up.toString(), null), HttpStatus.OK));
+      } else {
+        result.setResult(new ResponseEntity<>(statusResponse(proxy, STATUS_FAILED, "Failed to start proxy"), HttpStatus.OK));
+      }
+    });
+    return result;
+  }
+  
+  /**
+   * Stream the status transitions of a proxy as server-sent events, until the proxy is up or failed to start.
+   * Every event is named after the status ({@code New}, {@code Starting}, {@code Up} or {@code Failed}).
+   */
+  @GetMapping(value = "/api/proxy/{proxyId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public ResponseEntity<SseEmitter> getProxyEvents(@PathVariable String proxyId) {
+    Proxy proxy = proxyService.getProxy(proxyId, false);
+    if (proxy == null) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    
+    SseEmitter emitter = new SseEmitter(0L);
+    ProxyStartup startup = proxyService.getProxyStartup(proxyId);
+    if (startup == null) {
+      sendStatus(emitter, proxy, proxy.getStatus().toString(), null);
+      emitter.complete();
+      return new ResponseEntity<>(emitter, HttpStatus.OK);
+    }
+    
+    EventStream events = new EventStream(emitter);
+    Consumer<ProxyStatus> listener = status -> {
+      if (status != ProxyStatus.Up) events.send(() -> sendStatus(emitter, proxy, status.toString(), null));
+    };
+    startup.addStatusListener(listener);
+    emitter.onCompletion(() -> startup.removeStatusListener(listener));
+    emitter.onError(e -> startup.removeStatusListener(listener));
+    startup.getFuture().whenComplete((p, error) -> events.send(() -> {
+      if (error == null) {
+        sendStatus(emitter, proxy, ProxyStatus.Up.toString(), null);
+      } else {
+        sendStatus(emitter, proxy, STATUS_FAILED, "Failed to start proxy");
+      }
+      emitter.complete();
+    }));
+    return new ResponseEntity<>(emitter, HttpStatus.OK);
+  }
+  
   @PostMapping(value = "/api/proxy/{proxySpecId}", produces = MediaType.APPLICATION_JSON_VALUE)
   public ResponseEntity<Proxy> startProxy(@PathVariable String proxySpecId, @RequestBody(required = false) Set<RuntimeSetting> runtimeSettings) {
     ProxySpec baseSpec = proxyService.findProxySpec(s -> s.getId().equals(proxySpecId), false);
@@ -63,10 +150,47 @@ public class ProxyController extends BaseController {
   
   @DeleteMapping(value = "/api/proxy/{proxyId}", produces = MediaType.APPLICATION_JSON_VALUE)
   public ResponseEntity<String> stopProxy(@PathVariable String proxyId) {
-    Proxy proxy = proxyService.findProxy(p -> p.getId().equals(proxyId), false);
+    Proxy proxy = proxyService.getProxy(proxyId, false);
     if (proxy == null) return new ResponseEntity<>(HttpStatus.NOT_FOUND);
     
     proxyService.stopProxy(proxy, true, false);
     return new ResponseEntity<>("Proxy stopped", HttpStatus.OK);
   }
+  
+  private static Map<String, String> statusResponse(Proxy proxy, String status, String message) {
+    Map<String, String> response = new HashMap<>();
+    response.put("proxyId", proxy.getId());
+    response.put("status", status);
+    if (message != null) response.put("message", message);
+    return response;
+  }
+  
+  /**
+   * Sends the events of one stream on the event sender, one after the other so they keep their order.
+   */
+  private class EventStream {
+    
+    private final SseEmitter emitter;
+    private CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+    
+    private EventStream(SseEmitter emitter) {
+      this.emitter = emitter;
+    }
+    
+    private synchronized void send(Runnable send) {
+      last = last.thenRunAsync(send, eventSender).exceptionally(e -> {
+        // e.g. the event sender was shut down
+        emitter.completeWithError(e);
+        return null;
+      });
+    }
+  }
+  
+  private static void sendStatus(SseEmitter emitter, Proxy proxy, String status, String message) {
+    try {
+      emitter.send(SseEmitter.event().name(status).data(statusResponse(proxy, status, message), MediaType.APPLICATION_JSON));
+    } catch (IOException | IllegalStateException e) {
+      // client went away, or the emitter already completed
+    }
+  }
 }
@@ -37,7 +37,7 @@ public class ProxyRouteController extends BaseController {
       String prefix = proxyId;
       if (proxyId != null) {
         boolean isAdmin = userService.isAdmin();
-        Proxy proxy = proxyService.findProxy(p -> proxyId.equals(p.getId()), true);
+        Proxy proxy = proxyService.getProxy(proxyId);
         String[] path = mapping.split("/");
         String mappingType = path.length > 1 ? path[1] : "";
         int targetPort = -1;
@@ -63,6 +63,7 @@ public class ProxyRouteController extends BaseController {
           if (targetPort >= 0) {
             mappingManager.dispatchAsync(proxy, subPath, targetPort, request, response);
           } else {
+            mappingManager.addRouteCookie(proxyId);
             mappingManager.dispatchAsync(mapping, request, response);
           }
         } else {
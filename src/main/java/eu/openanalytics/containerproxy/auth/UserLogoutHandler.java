@@ -1,6 +1,9 @@
 package eu.openanalytics.containerproxy.auth;
 
+import eu.openanalytics.containerproxy.service.ProxyService;
 import eu.openanalytics.containerproxy.service.UserService;
+import eu.openanalytics.containerproxy.util.ProxyMappingManager;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.web.authentication.logout.LogoutHandler;
 import org.springframework.stereotype.Component;
@@ -12,13 +15,22 @@ import javax.servlet.http.HttpServletResponse;
 @Component
 public class UserLogoutHandler implements LogoutHandler {
   private final UserService userService;
+  private final ProxyService proxyService;
+  private final ProxyMappingManager mappingManager;
   
-  public UserLogoutHandler(UserService userService) {
+  public UserLogoutHandler(UserService userService, @Lazy ProxyService proxyService, ProxyMappingManager mappingManager) {
     this.userService = userService;
+    this.proxyService = proxyService;
+    this.mappingManager = mappingManager;
   }
   
   @Override
   public void logout(HttpServletRequest request, HttpServletResponse response, Authentication authentication) {
+    // before the proxies may be released on logout
+    String userId = userService.getUserId(authentication);
+    if (userId != null) {
+      mappingManager.removeRouteCookies(request, response, proxyService.getUserProxies(userId, null, true));
+    }
     userService.logout(authentication);
   }
   
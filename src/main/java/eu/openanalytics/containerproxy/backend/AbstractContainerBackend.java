@@ -10,10 +10,12 @@ import eu.openanalytics.containerproxy.ContainerProxyException;
 import eu.openanalytics.containerproxy.auth.IAuthenticationBackend;
 import eu.openanalytics.containerproxy.backend.strategy.IProxyTargetMappingStrategy;
 import eu.openanalytics.containerproxy.backend.strategy.IProxyTestStrategy;
+import eu.openanalytics.containerproxy.log.ILogReader;
 import eu.openanalytics.containerproxy.model.runtime.Container;
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
 import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
 import eu.openanalytics.containerproxy.model.spec.ContainerSpec;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
 import eu.openanalytics.containerproxy.service.UserService;
 import eu.openanalytics.containerproxy.spec.expression.ExpressionAwareContainerSpec;
 import eu.openanalytics.containerproxy.spec.expression.SpecExpressionResolver;
@@ -21,7 +23,10 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.core.env.Environment;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutor;
+import org.springframework.security.core.context.SecurityContextHolder;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import java.io.File;
 import java.io.FileInputStream;
@@ -32,7 +37,15 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -82,11 +95,20 @@ public abstract class AbstractContainerBackend implements IContainerBackend {
   private boolean useInternalNetwork;
   private boolean privileged;
   private boolean unsafeLabel;
+  // only set if the containers of a proxy are started in parallel
+  private ExecutorService containerStarter;
   
   @Override
   public void initialize() throws ContainerProxyException {
     unsafeLabel = Boolean.parseBoolean(environment.getProperty("proxy.unsafe-label", "false"));
     log.info("Non-safe Labels Mode: " + unsafeLabel);
+    String containerStartMode = environment.getProperty("proxy.container-start-mode", "sequential");
+    if (containerStartMode.equalsIgnoreCase("parallel")) {
+      containerStarter = Executors.newCachedThreadPool();
+    } else if (!containerStartMode.equalsIgnoreCase("sequential")) {
+      throw new ContainerProxyException("Invalid proxy.container-start-mode: " + containerStartMode);
+    }
+    log.info("Container start mode: " + containerStartMode);
     // If this application runs as a container itself, things like port publishing can be omitted.
     useInternalNetwork = Boolean.parseBoolean(getProperty(PROPERTY_INTERNAL_NETWORKING, "false"));
     privileged = Boolean.parseBoolean(getProperty(PROPERTY_PRIVILEGED, "false"));
@@ -101,7 +123,17 @@ public abstract class AbstractContainerBackend implements IContainerBackend {
   
   @Override
   public void startProxy(Proxy proxy) throws ContainerProxyException {
-    proxy.setId(UUID.randomUUID().toString());
+    finishStartup(proxy, startContainers(proxy).join());
+  }
+  
+  @Override
+  public CompletableFuture<Void> startProxyAsync(Proxy proxy, Executor executor) throws ContainerProxyException {
+    // the probe does not hold a thread while it waits, only its outcome is handled on the executor
+    return startContainers(proxy).thenAcceptAsync(responsive -> finishStartup(proxy, responsive), executor);
+  }
+  
+  private CompletableFuture<Boolean> startContainers(Proxy proxy) {
+    if (proxy.getId() == null) proxy.setId(UUID.randomUUID().toString());
     proxy.setStatus(ProxyStatus.Starting);
     proxy.setCreatedTimestamp(System.currentTimeMillis());
     
@@ -111,8 +143,11 @@ public abstract class AbstractContainerBackend implements IContainerBackend {
       stopProxy(proxy);
       throw new ContainerProxyException("Failed to start container", t);
     }
-    
-    if (!testStrategy.testProxy(proxy)) {
+    return testStrategy.testProxyAsync(proxy);
+  }
+  
+  private void finishStartup(Proxy proxy, boolean responsive) {
+    if (!responsive) {
       stopProxy(proxy);
       throw new ContainerProxyException("Container did not respond in time");
     }
@@ -122,33 +157,205 @@ public abstract class AbstractContainerBackend implements IContainerBackend {
   }
   
   protected void doStartProxy(Proxy proxy) throws Exception {
-    for (ContainerSpec spec : proxy.getSpec().getContainerSpecs()) {
-      if (authBackend != null) authBackend.customizeContainer(spec);
-      
-      // add labels need for App Recovery and maintenance
-      spec.addRuntimeLabel(RUNTIME_LABEL_PROXIED_APP, true, "true");
-      spec.addRuntimeLabel(RUNTIME_LABEL_INSTANCE, true, instanceId);
-      
-      spec.addRuntimeLabel(RUNTIME_LABEL_PROXY_ID, unsafeLabel, proxy.getId());
-      spec.addRuntimeLabel(RUNTIME_LABEL_PROXY_SPEC_ID, unsafeLabel, proxy.getSpec().getId());
-      if (realmId != null) {
-        spec.addRuntimeLabel(RUNTIME_LABEL_REALM_ID, unsafeLabel, realmId);
+    List<ContainerSpec> specs = proxy.getSpec().getContainerSpecs();
+    // validated before any container is started, so there are no starts in flight when it fails
+    List<ContainerSpec> ordered = orderByDependencies(specs);
+    if (containerStarter == null || specs.size() < 2) {
+      for (ContainerSpec spec : ordered) {
+        proxy.getContainers().add(doStartContainer(spec, proxy));
       }
-      spec.addRuntimeLabel(RUNTIME_LABEL_USER_ID, unsafeLabel, proxy.getUserId());
-      spec.addRuntimeLabel(RUNTIME_LABEL_CREATED_TIMESTAMP, unsafeLabel, String.valueOf(proxy.getCreatedTimestamp()));
-      String[] groups = userService.getGroups(userService.getCurrentAuth());
-      spec.addRuntimeLabel(RUNTIME_LABEL_USER_GROUPS, false, String.join(",", groups));
-      
-      ExpressionAwareContainerSpec eSpec = new ExpressionAwareContainerSpec(spec, proxy, expressionResolver);
-      Container c = startContainer(eSpec, proxy);
-      c.setSpec(spec);
-      
-      proxy.getContainers().add(c);
+      if (ordered != specs) {
+        // keep the order of the specs
+        Map<ContainerSpec, Integer> positions = new IdentityHashMap<>();
+        for (int i = 0; i < specs.size(); i++) positions.put(specs.get(i), i);
+        proxy.getContainers().sort(Comparator.comparingInt(c -> positions.getOrDefault(c.getSpec(), specs.size())));
+      }
+    } else {
+      doStartContainersInParallel(specs, ordered, proxy);
+    }
+  }
+  
+  /**
+   * @return The given specs, ordered so that every container comes after the containers it depends on (see
+   * {@link ContainerSpec#getDependsOn()}), or the given list itself if no container depends on another one.
+   * @throws ContainerProxyException If the names of the containers are not unique, or a container depends on an
+   *                                 unknown container or (indirectly) on itself.
+   */
+  private static List<ContainerSpec> orderByDependencies(List<ContainerSpec> specs) {
+    if (specs.stream().allMatch(spec -> spec.getDependsOn() == null || spec.getDependsOn().length == 0)) return specs;
+    
+    Map<String, ContainerSpec> specsByName = getSpecsByName(specs);
+    List<ContainerSpec> ordered = new ArrayList<>(specs.size());
+    Set<ContainerSpec> added = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (ContainerSpec spec : specs) {
+      addAfterDependencies(spec, specsByName, ordered, added, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+    return ordered;
+  }
+  
+  private static void addAfterDependencies(ContainerSpec spec, Map<String, ContainerSpec> specsByName, List<ContainerSpec> ordered,
+                                           Set<ContainerSpec> added, Set<ContainerSpec> path) {
+    if (added.contains(spec)) return;
+    if (!path.add(spec)) {
+      throw new ContainerProxyException("Circular dependency between containers: " + spec.getName());
+    }
+    if (spec.getDependsOn() != null) {
+      for (String name : spec.getDependsOn()) {
+        ContainerSpec dependency = specsByName.get(name);
+        if (dependency == null) {
+          throw new ContainerProxyException(String.format("Container %s depends on unknown container %s", spec.getName(), name));
+        }
+        addAfterDependencies(dependency, specsByName, ordered, added, path);
+      }
+    }
+    path.remove(spec);
+    added.add(spec);
+    ordered.add(spec);
+  }
+  
+  private static Map<String, ContainerSpec> getSpecsByName(List<ContainerSpec> specs) {
+    Map<String, ContainerSpec> specsByName = new HashMap<>();
+    for (ContainerSpec spec : specs) {
+      if (spec.getName() == null) continue;
+      if (specsByName.put(spec.getName(), spec) != null) {
+        throw new ContainerProxyException("Duplicate container name: " + spec.getName());
+      }
+    }
+    return specsByName;
+  }
+  
+  private Container doStartContainer(ContainerSpec spec, Proxy proxy) throws Exception {
+    if (authBackend != null) authBackend.customizeContainer(spec);
+    
+    // add labels need for App Recovery and maintenance
+    spec.addRuntimeLabel(RUNTIME_LABEL_PROXIED_APP, true, "true");
+    spec.addRuntimeLabel(RUNTIME_LABEL_INSTANCE, true, instanceId);
+    
+    spec.addRuntimeLabel(RUNTIME_LABEL_PROXY_ID, unsafeLabel, proxy.getId());
+    spec.addRuntimeLabel(RUNTIME_LABEL_PROXY_SPEC_ID, unsafeLabel, proxy.getSpec().getId());
+    if (realmId != null) {
+      spec.addRuntimeLabel(RUNTIME_LABEL_REALM_ID, unsafeLabel, realmId);
+    }
+    spec.addRuntimeLabel(RUNTIME_LABEL_USER_ID, unsafeLabel, proxy.getUserId());
+    spec.addRuntimeLabel(RUNTIME_LABEL_CREATED_TIMESTAMP, unsafeLabel, String.valueOf(proxy.getCreatedTimestamp()));
+    String[] groups = userService.getGroups(userService.getCurrentAuth());
+    spec.addRuntimeLabel(RUNTIME_LABEL_USER_GROUPS, false, String.join(",", groups));
+    
+    long startTime = System.currentTimeMillis();
+    ExpressionAwareContainerSpec eSpec = new ExpressionAwareContainerSpec(spec, proxy, expressionResolver);
+    Container c = startContainer(eSpec, proxy);
+    c.setSpec(spec);
+    c.setStartupTime(Duration.ofMillis(System.currentTimeMillis() - startTime));
+    return c;
+  }
+  
+  /**
+   * Start all containers of a proxy at the same time, except for the containers that depend on other containers
+   * (see {@link ContainerSpec#getDependsOn()}): these are started as soon as all their dependencies are started.
+   * <p>
+   * When a container fails to start, the containers that did not start yet are skipped, and the first failure is
+   * rethrown once all running starts are finished, so that the caller stops every container that was started.
+   *
+   * @param specs   The specs of the containers, in the order of the containers of the proxy.
+   * @param ordered The same specs, ordered by their dependencies (see orderByDependencies).
+   */
+  private void doStartContainersInParallel(List<ContainerSpec> specs, List<ContainerSpec> ordered, Proxy proxy) throws Exception {
+    Map<String, ContainerSpec> specsByName = getSpecsByName(specs);
+    
+    // the backends add to these from the start threads
+    proxy.setTargets(new ConcurrentHashMap<>(proxy.getTargets()));
+    proxy.setContainers(Collections.synchronizedList(new ArrayList<>(proxy.getContainers())));
+    
+    // the start threads need the authentication of the user, e.g. for the group labels
+    Executor executor = new DelegatingSecurityContextExecutor(containerStarter, SecurityContextHolder.getContext());
+    AtomicBoolean failed = new AtomicBoolean();
+    Map<ContainerSpec, CompletableFuture<Container>> starts = new IdentityHashMap<>();
+    for (ContainerSpec spec : ordered) {
+      // the dependencies come first in the order, so their starts are scheduled already
+      List<CompletableFuture<Container>> dependencies = new ArrayList<>();
+      if (spec.getDependsOn() != null) {
+        for (String name : spec.getDependsOn()) dependencies.add(starts.get(specsByName.get(name)));
+      }
+      starts.put(spec, scheduleStart(spec, proxy, dependencies, failed, executor));
+    }
+    
+    try {
+      CompletableFuture.allOf(starts.values().toArray(new CompletableFuture[0])).join();
+    } catch (CompletionException e) {
+      // handled below, after all starts have finished
+    }
+    
+    Throwable failure = null;
+    List<Container> containers = new ArrayList<>();
+    for (ContainerSpec spec : specs) {
+      CompletableFuture<Container> start = starts.get(spec);
+      try {
+        containers.add(start.join());
+      } catch (CompletionException e) {
+        if (failure == null || failure instanceof SkippedStartException) failure = e.getCause();
+      }
+    }
+    
+    // keep the order of the specs, followed by the containers the backend added for failed starts
+    synchronized (proxy.getContainers()) {
+      containers.addAll(proxy.getContainers());
     }
+    proxy.setContainers(containers);
+    
+    if (failure instanceof Exception) throw (Exception) failure;
+    if (failure instanceof Error) throw (Error) failure;
+  }
+  
+  private CompletableFuture<Container> scheduleStart(ContainerSpec spec, Proxy proxy, List<CompletableFuture<Container>> dependencies,
+                                                     AtomicBoolean failed, Executor executor) {
+    CompletableFuture<Container> start = CompletableFuture.allOf(dependencies.toArray(new CompletableFuture[0])).thenApplyAsync(v -> {
+      if (failed.get()) throw new SkippedStartException();
+      try {
+        return doStartContainer(spec, proxy);
+      } catch (Exception e) {
+        failed.set(true);
+        throw new CompletionException(e);
+      }
+    }, executor);
+    // a failed dependency skips this container as well
+    start.whenComplete((c, t) -> {
+      if (t != null) failed.set(true);
+    });
+    return start;
   }
   
   protected abstract Container startContainer(ContainerSpec spec, Proxy proxy) throws Exception;
   
+  @Override
+  public void claimProxy(Proxy proxy) throws ContainerProxyException {
+    proxy.setCreatedTimestamp(System.currentTimeMillis());
+    
+    try {
+      String[] groups = userService.getGroups(userService.getCurrentAuth());
+      for (Container container : proxy.getContainers()) {
+        ContainerSpec spec = container.getSpec();
+        spec.replaceRuntimeLabel(RUNTIME_LABEL_USER_ID, unsafeLabel, proxy.getUserId());
+        spec.replaceRuntimeLabel(RUNTIME_LABEL_CREATED_TIMESTAMP, unsafeLabel, String.valueOf(proxy.getCreatedTimestamp()));
+        spec.replaceRuntimeLabel(RUNTIME_LABEL_USER_GROUPS, false, String.join(",", groups));
+      }
+      doClaimProxy(proxy);
+    } catch (Throwable t) {
+      stopProxy(proxy);
+      throw new ContainerProxyException("Failed to claim container", t);
+    }
+    
+    // usage is counted from the moment the user got the proxy
+    proxy.setStartupTimestamp(proxy.getCreatedTimestamp());
+  }
+  
+  /**
+   * Apply the runtime labels of the containers, which now refer to the new owner of the proxy, to the backend.
+   * Backends that override this should also override {@link #supportsWarmPool(ProxySpec)}.
+   */
+  protected void doClaimProxy(Proxy proxy) throws Exception {
+    // Default: the runtime labels cannot be changed after the container was created, so there is no warm pool.
+  }
+  
   @Override
   public void stopProxy(Proxy proxy) throws ContainerProxyException {
     try {
@@ -162,12 +369,45 @@ public abstract class AbstractContainerBackend implements IContainerBackend {
   
   protected abstract void doStopProxy(Proxy proxy) throws Exception;
   
+  @Override
+  public void stopProxies(Collection<Proxy> proxies) throws ContainerProxyException {
+    try {
+      for (Proxy proxy : proxies) proxy.setStatus(ProxyStatus.Stopping);
+      doStopProxies(proxies);
+      for (Proxy proxy : proxies) proxy.setStatus(ProxyStatus.Stopped);
+    } catch (Exception e) {
+      throw new ContainerProxyException("Failed to stop containers", e);
+    }
+  }
+  
+  /**
+   * Release the resources of several proxies. Should release as much as possible, even if some proxies fail to stop.
+   */
+  protected void doStopProxies(Collection<Proxy> proxies) throws Exception {
+    // Default: stop the proxies one by one.
+    Exception failure = null;
+    for (Proxy proxy : proxies) {
+      try {
+        doStopProxy(proxy);
+      } catch (Exception e) {
+        if (failure == null) failure = e;
+      }
+    }
+    if (failure != null) throw failure;
+  }
+  
   @Override
   public BiConsumer<OutputStream, OutputStream> getOutputAttacher(Proxy proxy) {
     // Default: do not support output attaching.
     return null;
   }
   
+  @Override
+  public ILogReader getLogReader(Proxy proxy) {
+    // Default: do not support pulling output.
+    return null;
+  }
+  
   protected String getProperty(String key) {
     return getProperty(key, null);
   }
@@ -201,10 +441,12 @@ public abstract class AbstractContainerBackend implements IContainerBackend {
   
   protected List<String> buildEnv(ContainerSpec containerSpec, Proxy proxy) throws IOException {
     List<String> env = new ArrayList<>();
-    env.add(String.format("%s=%s", ENV_VAR_USER_NAME, proxy.getUserId()));
-    
-    String[] groups = userService.getGroups(userService.getCurrentAuth());
-    env.add(String.format("%s=%s", ENV_VAR_USER_GROUPS, String.join(",", groups)));
+    boolean userEnv = proxy.getSpec().isUserEnv();
+    if (userEnv) {
+      env.add(String.format("%s=%s", ENV_VAR_USER_NAME, proxy.getUserId()));
+      String[] groups = userService.getGroups(userService.getCurrentAuth());
+      env.add(String.format("%s=%s", ENV_VAR_USER_GROUPS, String.join(",", groups)));
+    }
     
     String realmId = environment.getProperty("proxy.realm-id");
     if (realmId != null) {
@@ -227,7 +469,7 @@ public abstract class AbstractContainerBackend implements IContainerBackend {
     }
     
     // Allow the authentication backend to add values to the environment, if needed.
-    if (authBackend != null) authBackend.customizeContainerEnv(env);
+    if (authBackend != null && userEnv) authBackend.customizeContainerEnv(env);
     
     return env;
   }
@@ -241,6 +483,11 @@ public abstract class AbstractContainerBackend implements IContainerBackend {
   }
   
   
+  @PreDestroy
+  public void shutdownContainerStarter() {
+    if (containerStarter != null) containerStarter.shutdownNow();
+  }
+  
   private File getPathToConfigFile() {
     String path = environment.getProperty("spring.config.location");
     if (path != null) {
@@ -286,4 +533,14 @@ public abstract class AbstractContainerBackend implements IContainerBackend {
     instanceId = String.format("%040x", new BigInteger(1, digest.digest()));
     return instanceId;
   }
+  
+  /**
+   * A container that was not started because another container of the same proxy failed to start.
+   */
+  private static class SkippedStartException extends RuntimeException {
+    
+    private SkippedStartException() {
+      super("Not started because another container failed to start");
+    }
+  }
 }
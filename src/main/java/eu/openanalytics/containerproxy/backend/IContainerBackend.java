@@ -1,10 +1,15 @@
 package eu.openanalytics.containerproxy.backend;
 
 import eu.openanalytics.containerproxy.ContainerProxyException;
+import eu.openanalytics.containerproxy.log.ILogReader;
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
 import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
 
 import java.io.OutputStream;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.BiConsumer;
 
 public interface IContainerBackend {
@@ -27,6 +32,21 @@ public interface IContainerBackend {
    */
   void startProxy(Proxy proxy) throws ContainerProxyException;
   
+  /**
+   * Start the given proxy, without waiting for it to become responsive.
+   * The containers are started on the calling thread, the returned future completes once the proxy is in the
+   * {@link ProxyStatus#Up} state, or exceptionally if it did not become responsive, in which case it has been stopped.
+   *
+   * @param proxy    The proxy to start up.
+   * @param executor The executor to run the remainder of the startup on, once the proxy responded.
+   * @return A future that completes when the proxy is up.
+   * @throws ContainerProxyException If the containers fail to start.
+   */
+  default CompletableFuture<Void> startProxyAsync(Proxy proxy, Executor executor) throws ContainerProxyException {
+    startProxy(proxy);
+    return CompletableFuture.completedFuture(null);
+  }
+  
   /**
    * Stop the given proxy. Any resources used by the proxy should be released.
    *
@@ -35,6 +55,47 @@ public interface IContainerBackend {
    */
   void stopProxy(Proxy proxy) throws ContainerProxyException;
   
+  /**
+   * Stop several proxies at once. Backends may release the resources of all these proxies using bulk operations.
+   *
+   * @param proxies The proxies to stop.
+   * @throws ContainerProxyException If an error occurs while stopping any of the proxies.
+   */
+  default void stopProxies(Collection<Proxy> proxies) throws ContainerProxyException {
+    ContainerProxyException failure = null;
+    for (Proxy proxy : proxies) {
+      try {
+        stopProxy(proxy);
+      } catch (ContainerProxyException e) {
+        if (failure == null) failure = e;
+      }
+    }
+    if (failure != null) throw failure;
+  }
+  
+  /**
+   * Check whether proxies of the given spec can be started before the user who will own them is known,
+   * and be handed over to that user later on using {@link #claimProxy(Proxy)}.
+   *
+   * @param spec The spec to check.
+   * @return True if proxies of this spec can be kept in a warm pool.
+   */
+  default boolean supportsWarmPool(ProxySpec spec) {
+    return false;
+  }
+  
+  /**
+   * Hand over a proxy that was started ahead of time to the user that is now set on the proxy.
+   * The proxy is in the {@link ProxyStatus#Starting} state while it is handed over, and should not change its status:
+   * the caller marks it as {@link ProxyStatus#Up} once its mappings were added.
+   *
+   * @param proxy The proxy to hand over.
+   * @throws ContainerProxyException If the proxy cannot be handed over, in which case it has been stopped.
+   */
+  default void claimProxy(Proxy proxy) throws ContainerProxyException {
+    // Default: nothing refers to the owner of the proxy outside the proxy itself.
+  }
+  
   /**
    * Get a function that will forward the standard output and standard error of
    * the given proxy's containers to two output streams.
@@ -47,4 +108,16 @@ public interface IContainerBackend {
    * not support output attaching.
    */
   BiConsumer<OutputStream, OutputStream> getOutputAttacher(Proxy proxy);
+  
+  /**
+   * Get a reader that writes the output of the given proxy's containers that is
+   * available, without blocking until the containers stop.
+   * <p>
+   * Used instead of the output attacher when proxy.container-log-collection is pull.
+   *
+   * @param proxy The proxy whose container output should be read.
+   * @return A reader of the output, or null if this backend does not support
+   * pulling output.
+   */
+  ILogReader getLogReader(Proxy proxy);
 }
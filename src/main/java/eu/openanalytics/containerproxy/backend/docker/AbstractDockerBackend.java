@@ -4,18 +4,26 @@ import com.spotify.docker.client.DefaultDockerClient;
 import com.spotify.docker.client.DockerCertificates;
 import com.spotify.docker.client.DockerClient;
 import com.spotify.docker.client.DockerClient.LogsParam;
+import com.spotify.docker.client.LogMessage;
 import com.spotify.docker.client.LogStream;
 import com.spotify.docker.client.exceptions.DockerCertificateException;
 import com.spotify.docker.client.exceptions.DockerException;
 import eu.openanalytics.containerproxy.ContainerProxyException;
 import eu.openanalytics.containerproxy.backend.AbstractContainerBackend;
+import eu.openanalytics.containerproxy.log.ILogReader;
+import eu.openanalytics.containerproxy.log.TimestampedOutput;
 import eu.openanalytics.containerproxy.model.runtime.Container;
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
 import eu.openanalytics.containerproxy.util.PortAllocator;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.function.BiConsumer;
 
 
@@ -74,6 +82,37 @@ public abstract class AbstractDockerBackend extends AbstractContainerBackend {
     };
   }
   
+  @Override
+  public ILogReader getLogReader(Proxy proxy) {
+    Container c = getPrimaryContainer(proxy);
+    if (c == null) return null;
+    
+    return (since, stdOut, stdErr) -> {
+      List<LogsParam> params = new ArrayList<>(Arrays.asList(LogsParam.stdout(), LogsParam.stderr(), LogsParam.timestamps()));
+      // Docker accepts a since time with a precision of seconds, the lines of that second that were written before are skipped
+      if (since != null) params.add(LogsParam.since((int) since.getEpochSecond()));
+      Instant last = since;
+      try (LogStream logStream = dockerClient.logs(c.getId(), params.toArray(new LogsParam[0]))) {
+        while (logStream.hasNext()) {
+          LogMessage message = logStream.next();
+          ByteBuffer content = message.content();
+          byte[] bytes = new byte[content.remaining()];
+          content.get(bytes);
+          // every message is a (part of a) line with its own timestamp
+          Instant timestamp = TimestampedOutput.write(bytes, 0, bytes.length, since, true,
+            message.stream() == LogMessage.Stream.STDERR ? stdErr : stdOut);
+          if (timestamp != null && (last == null || timestamp.isAfter(last))) last = timestamp;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      } catch (DockerException e) {
+        throw new IOException(e);
+      }
+      return last;
+    };
+  }
+  
   @Override
   protected String getPropertyPrefix() {
     return PROPERTY_PREFIX;
@@ -6,11 +6,16 @@ import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.fasterxml.jackson.datatype.jsr353.JSR353Module;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
 import eu.openanalytics.containerproxy.ContainerProxyException;
 import eu.openanalytics.containerproxy.backend.AbstractContainerBackend;
+import eu.openanalytics.containerproxy.log.ILogReader;
+import eu.openanalytics.containerproxy.log.TimestampedOutput;
 import eu.openanalytics.containerproxy.model.runtime.Container;
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
 import eu.openanalytics.containerproxy.model.spec.ContainerSpec;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
 import eu.openanalytics.containerproxy.service.ProxyService;
 import eu.openanalytics.containerproxy.spec.expression.SpecExpressionContext;
 import eu.openanalytics.containerproxy.util.Retrying;
@@ -19,7 +24,6 @@ import io.fabric8.kubernetes.client.ConfigBuilder;
 import io.fabric8.kubernetes.client.DefaultKubernetesClient;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import io.fabric8.kubernetes.client.dsl.LogWatch;
-import io.fabric8.kubernetes.client.internal.readiness.Readiness;
 import io.fabric8.kubernetes.client.utils.Serialization;
 import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
@@ -32,9 +36,11 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
@@ -51,6 +57,7 @@ public class KubernetesBackend extends AbstractContainerBackend {
   private static final String PROPERTY_NODE_SELECTOR = "node-selector";
   private static final String PROPERTY_UID_NAMESPACE = "custom-namespace";
   private static final String PROPERTY_NAMESPACE_PREFIX = "namespace-prefix";
+  private static final String PROPERTY_LOG_PULL_MAX_BYTES = "log-pull-max-bytes";
   
   private static final String DEFAULT_NAMESPACE = "default";
   private static final String DEFAULT_API_VERSION = "v1";
@@ -61,6 +68,10 @@ public class KubernetesBackend extends AbstractContainerBackend {
   
   private static final String SECRET_KEY_REF = "secretKeyRef";
   
+  // keeps the label selectors of bulk deletes well below the URL length limits
+  private static final int DELETE_BATCH_SIZE = 50;
+  private static final int DEFAULT_LOG_PULL_MAX_BYTES = 4 * 1024 * 1024;
+  
   private final Logger log = LogManager.getLogger(KubernetesBackend.class);
   
   @Inject
@@ -71,6 +82,8 @@ public class KubernetesBackend extends AbstractContainerBackend {
   
   private KubernetesClient kubeClient;
   
+  private PodWatcher podWatcher;
+  
   @Override
   public void initialize() throws ContainerProxyException {
     super.initialize();
@@ -92,19 +105,47 @@ public class KubernetesBackend extends AbstractContainerBackend {
     
     kubeClient = new DefaultKubernetesClient(configBuilder.build());
     
+    startPodWatcher();
     cleanBeforeStart();
-    
-    Thread cleanFailedThread = new Thread(new ErrorPodsCleaner(), ErrorPodsCleaner.class.getSimpleName());
-    cleanFailedThread.setDaemon(true);
-    cleanFailedThread.start();
   }
   
   public void initialize(KubernetesClient client) {
     super.initialize();
     kubeClient = client;
-    Thread cleanFailedThread = new Thread(new ErrorPodsCleaner(), ErrorPodsCleaner.class.getSimpleName());
-    cleanFailedThread.setDaemon(true);
-    cleanFailedThread.start();
+    startPodWatcher();
+  }
+  
+  private void startPodWatcher() {
+    String identifierLabel = environment.getProperty("proxy.identifier-label", "openanalytics.eu/sp-identifier");
+    String identifierValue = environment.getProperty("proxy.identifier-value", "default-identifier");
+    podWatcher = new PodWatcher(kubeClient, identifierLabel, identifierValue, this::cleanFailedPod);
+    podWatcher.start();
+    log.info("Enable failed and unknown phase pods detection & cleaning");
+  }
+  
+  private void cleanFailedPod(Pod pod) {
+    String proxyId = getProxyId(pod);
+    Proxy proxy = proxyService.getProxy(proxyId);
+    if (proxy == null) {
+      // not (or no longer) known to this instance, e.g. a pooled proxy or a leftover of a previous run
+      kubeClient.pods().inNamespace(pod.getMetadata().getNamespace()).delete(pod);
+      log.error("Cleaned error pod {} of unknown proxy {}", pod.getMetadata().getName(), proxyId);
+    } else if (proxy.getStatus() == ProxyStatus.Up) {
+      proxyService.stopProxy(proxy, true, true);
+      log.error("Cleaned error proxy {}", proxyId);
+    }
+    // otherwise the proxy is starting or stopping, which cleans up the pod by itself
+  }
+  
+  /**
+   * @return The ID of the proxy the pod belongs to, which is a label or an annotation depending on proxy.unsafe-label.
+   */
+  private static String getProxyId(Pod pod) {
+    String proxyId = pod.getMetadata().getLabels() == null ? null : pod.getMetadata().getLabels().get(RUNTIME_LABEL_PROXY_ID);
+    if (proxyId == null && pod.getMetadata().getAnnotations() != null) {
+      proxyId = pod.getMetadata().getAnnotations().get(RUNTIME_LABEL_PROXY_ID);
+    }
+    return proxyId;
   }
   
   @Override
@@ -245,22 +286,12 @@ public class KubernetesBackend extends AbstractContainerBackend {
     Pod startedPod = kubeClient.pods().inNamespace(effectiveKubeNamespace).create(patchedPod);
     
     int totalWaitMs = Integer.parseInt(environment.getProperty("proxy.kubernetes.pod-wait-time", "60000"));
-    int maxTries = totalWaitMs / 1000;
-    Retrying.retry(i -> {
-        if (!Readiness.isPodReady(kubeClient.resource(startedPod).fromServer().get())) {
-          if (i > 1)
-            log.debug(String.format("Container not ready yet, trying again (%d/%d)", i, maxTries));
-          return false;
-        }
-        return true;
-      }, maxTries, 1000);
-    if (!Readiness.isPodReady(kubeClient.resource(startedPod).fromServer().get())) {
-      Pod pod = kubeClient.resource(startedPod).fromServer().get();
-      container.getParameters().put(PARAM_POD, pod);
+    Pod pod = podWatcher.awaitReady(startedPod, totalWaitMs);
+    if (pod == null) {
+      container.getParameters().put(PARAM_POD, kubeClient.resource(startedPod).fromServer().get());
       proxy.getContainers().add(container);
       throw new ContainerProxyException("Container did not become ready in time");
     }
-    Pod pod = kubeClient.resource(startedPod).fromServer().get();
     
     Service service = null;
     if (!isUseInternalNetwork()) {
@@ -285,14 +316,16 @@ public class KubernetesBackend extends AbstractContainerBackend {
         .withPorts(servicePorts)
         .endSpec()
         .build();
-      kubeClient.services().inNamespace(effectiveKubeNamespace).createOrReplace(startupService);
-      // Workaround: waitUntilReady appears to be buggy.
-      Retrying.retry(i -> isServiceReady(kubeClient.resource(startupService).fromServer().get()), 60, 1000);
-      
-      service = kubeClient.resource(startupService).fromServer().get();
+      // the node ports are assigned when the service is created, so the returned service is usually ready already
+      service = kubeClient.services().inNamespace(effectiveKubeNamespace).createOrReplace(startupService);
+      if (!isServiceReady(service)) {
+        // Workaround: waitUntilReady appears to be buggy.
+        Retrying.retry(i -> isServiceReady(kubeClient.resource(startupService).fromServer().get()), 60, 1000);
+        service = kubeClient.resource(startupService).fromServer().get();
+      }
     }
     // If SP runs inside the cluster, it can access pods directly and doesn't need any port publishing service.
-  
+    
     container.getParameters().put(PARAM_POD, pod);
     container.getParameters().put(PARAM_SERVICE, service);
     
@@ -301,7 +334,7 @@ public class KubernetesBackend extends AbstractContainerBackend {
       int servicePort = service == null ? -1 : service.getSpec().getPorts().stream()
         .filter(p -> p.getPort().equals(entry.getValue())).map(ServicePort::getNodePort)
         .findAny().orElse(-1);
-  
+      
       String mapping = mappingStrategy.createMapping(entry.getKey(), container, proxy);
       URI target = calculateTarget(container, entry.getValue(), servicePort);
       proxy.getTargets().put(mapping, target);
@@ -310,6 +343,40 @@ public class KubernetesBackend extends AbstractContainerBackend {
     return container;
   }
   
+  @Override
+  public boolean supportsWarmPool(ProxySpec spec) {
+    // the namespace of a pod cannot be changed once it is created
+    return !Boolean.parseBoolean(getProperty(PROPERTY_UID_NAMESPACE, "false"));
+  }
+  
+  @Override
+  protected void doClaimProxy(Proxy proxy) throws Exception {
+    for (Container container : proxy.getContainers()) {
+      Pod pod = Pod.class.cast(container.getParameters().get(PARAM_POD));
+      if (pod == null) continue;
+      
+      Map<String, String> labels = new HashMap<>();
+      Map<String, String> annotations = new HashMap<>();
+      for (Map.Entry<String, Pair<Boolean, String>> runtimeLabel : container.getSpec().getRuntimeLabels().entrySet()) {
+        if (runtimeLabel.getValue().getFirst()) {
+          labels.put(runtimeLabel.getKey(), runtimeLabel.getValue().getSecond());
+        } else {
+          annotations.put(runtimeLabel.getKey(), runtimeLabel.getValue().getSecond());
+        }
+      }
+      
+      String kubeNamespace = container.getParameters().get(PARAM_NAMESPACE).toString();
+      Pod claimedPod = kubeClient.pods().inNamespace(kubeNamespace).withName(pod.getMetadata().getName())
+        .edit(p -> new PodBuilder(p)
+          .editMetadata()
+          .addToLabels(labels)
+          .addToAnnotations(annotations)
+          .endMetadata()
+          .build());
+      container.getParameters().put(PARAM_POD, claimedPod);
+    }
+  }
+  
   private JsonPatch readPatchFromSpec(ContainerSpec containerSpec, Proxy proxy) throws JsonProcessingException {
     String patchAsString = proxy.getSpec().getKubernetesPodPatches();
     if (patchAsString == null) {
@@ -402,39 +469,27 @@ public class KubernetesBackend extends AbstractContainerBackend {
   
   @Override
   protected void doStopProxy(Proxy proxy) throws Exception {
-    // wait a bit to make sure there will be a pod to remove
-    // prevent orphan pods issue (start an app and sign out quickly)
-    int retry = 20;
-    int interval = 3000;
-    boolean responded = false;
-    for (int i = 0; i < retry; i++) {
-      if (proxy.getContainers().isEmpty()) {
-        log.debug("Proxy pod unresponsive, retrying ({}/{})", i + 1, retry);
-        Thread.sleep(interval);
-      } else {
-        responded = true;
-        log.debug("Pod responded, removing...");
-        break;
-      }
-    }
-    if (!responded) {
+    if (proxy.getContainers().isEmpty()) {
+      // the start failed before its pod was registered on the proxy: remove whatever it created
       String kubeNamespace = getProperty(PROPERTY_NAMESPACE, DEFAULT_NAMESPACE);
       String namespacePrefix = getProperty(PROPERTY_NAMESPACE_PREFIX);
       if (Boolean.parseBoolean(getProperty(PROPERTY_UID_NAMESPACE, "false"))) {
         kubeNamespace = Strings.isNullOrEmpty(namespacePrefix) ? proxy.getUserId() : namespacePrefix + "-" + proxy.getUserId();
       }
-      // we have to delete additional manifests and services even though we can't find pod
+      for (Pod pod : podWatcher.getPods()) {
+        if (proxy.getId().equals(getProxyId(pod))) {
+          kubeClient.pods().inNamespace(pod.getMetadata().getNamespace()).delete(pod);
+        }
+      }
       for (HasMetadata fullObject : getAdditionManifestsAsObjects(proxy, kubeNamespace)) {
         kubeClient.resource(fullObject).delete();
       }
       kubeClient.services().inNamespace(kubeNamespace).withLabel(RUNTIME_LABEL_PROXY_ID, proxy.getId()).delete();
-      throw new ContainerProxyException("Failed to stop container: no pod was founded");
+      log.debug("Proxy {} has no pod, removed its leftovers", proxy.getId());
+      return;
     }
     for (Container container : proxy.getContainers()) {
-      String kubeNamespace = container.getParameters().get(PARAM_NAMESPACE).toString();
-      if (kubeNamespace == null) {
-        kubeNamespace = getProperty(PROPERTY_NAMESPACE, DEFAULT_NAMESPACE);
-      }
+      String kubeNamespace = getNamespace(container);
       
       Pod pod = Pod.class.cast(container.getParameters().get(PARAM_POD));
       if (pod != null) kubeClient.pods().inNamespace(kubeNamespace).delete(pod);
@@ -448,6 +503,56 @@ public class KubernetesBackend extends AbstractContainerBackend {
     }
   }
   
+  /**
+   * Deletes the pods and services of all given proxies with one label-selector delete per namespace and kind
+   * (in batches of {@value #DELETE_BATCH_SIZE}), instead of one delete per pod and service.
+   * Proxies with additional manifests, or without pods, are stopped one by one.
+   */
+  @Override
+  protected void doStopProxies(Collection<Proxy> proxies) throws Exception {
+    Map<String, Set<String>> containerIds = new HashMap<>();
+    Map<String, Set<String>> proxyIds = new HashMap<>();
+    List<Proxy> remainingProxies = new ArrayList<>();
+    for (Proxy proxy : proxies) {
+      if (proxy.getContainers().isEmpty() || !proxy.getSpec().getKubernetesAdditionalManifests().isEmpty()) {
+        remainingProxies.add(proxy);
+        continue;
+      }
+      for (Container container : proxy.getContainers()) {
+        String kubeNamespace = getNamespace(container);
+        containerIds.computeIfAbsent(kubeNamespace, k -> new HashSet<>()).add(container.getId());
+        proxyIds.computeIfAbsent(kubeNamespace, k -> new HashSet<>()).add(proxy.getId());
+      }
+    }
+    
+    String identifierLabel = environment.getProperty("proxy.identifier-label", "openanalytics.eu/sp-identifier");
+    String identifierValue = environment.getProperty("proxy.identifier-value", "default-identifier");
+    for (Map.Entry<String, Set<String>> entry : containerIds.entrySet()) {
+      for (List<String> batch : Iterables.partition(entry.getValue(), DELETE_BATCH_SIZE)) {
+        kubeClient.pods().inNamespace(entry.getKey())
+          .withLabel(identifierLabel, identifierValue)
+          .withLabelIn("app", batch.toArray(new String[0]))
+          .delete();
+      }
+    }
+    for (Map.Entry<String, Set<String>> entry : proxyIds.entrySet()) {
+      for (List<String> batch : Iterables.partition(entry.getValue(), DELETE_BATCH_SIZE)) {
+        kubeClient.services().inNamespace(entry.getKey())
+          .withLabel(identifierLabel, identifierValue)
+          .withLabelIn(RUNTIME_LABEL_PROXY_ID, batch.toArray(new String[0]))
+          .delete();
+      }
+    }
+    
+    super.doStopProxies(remainingProxies);
+  }
+  
+  private String getNamespace(Container container) {
+    Object kubeNamespace = container.getParameters().get(PARAM_NAMESPACE);
+    if (kubeNamespace == null) return getProperty(PROPERTY_NAMESPACE, DEFAULT_NAMESPACE);
+    return kubeNamespace.toString();
+  }
+  
   @Override
   public BiConsumer<OutputStream, OutputStream> getOutputAttacher(Proxy proxy) {
     if (proxy.getContainers().isEmpty()) return null;
@@ -466,6 +571,25 @@ public class KubernetesBackend extends AbstractContainerBackend {
     };
   }
   
+  @Override
+  public ILogReader getLogReader(Proxy proxy) {
+    if (proxy.getContainers().isEmpty()) return null;
+    Container container = proxy.getContainers().get(0);
+    int maxBytes = Integer.parseInt(getProperty(PROPERTY_LOG_PULL_MAX_BYTES, String.valueOf(DEFAULT_LOG_PULL_MAX_BYTES)));
+    return (since, stdOut, stdErr) -> {
+      // Kubernetes accepts a since time with a precision of seconds, the lines of that second that were written before are skipped
+      String output = since == null
+        ? kubeClient.pods().inNamespace(getNamespace(container)).withName("sp-pod-" + container.getId())
+        .usingTimestamps().limitBytes(maxBytes).getLog()
+        : kubeClient.pods().inNamespace(getNamespace(container)).withName("sp-pod-" + container.getId())
+        .usingTimestamps().limitBytes(maxBytes).sinceTime(since.truncatedTo(ChronoUnit.SECONDS).toString()).getLog();
+      if (output == null || output.isEmpty()) return since;
+      byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+      // a line that was cut off by the limit is read again by the next call
+      return TimestampedOutput.write(bytes, 0, bytes.length, since, bytes.length < maxBytes, stdOut);
+    };
+  }
+  
   @Override
   protected String getPropertyPrefix() {
     return PROPERTY_PREFIX;
@@ -474,14 +598,12 @@ public class KubernetesBackend extends AbstractContainerBackend {
   public void cleanBeforeStart() {
     String identifierLabel = environment.getProperty("proxy.identifier-label", "openanalytics.eu/sp-identifier");
     String identifierValue = environment.getProperty("proxy.identifier-value", "default-identifier");
-    PodList orphanPods = kubeClient.pods().inAnyNamespace().withLabel(identifierLabel, identifierValue).list();
-    if (orphanPods != null) {
-      for (Pod pod : orphanPods.getItems()) {
-        String namespace = pod.getMetadata().getNamespace();
-        kubeClient.pods().inNamespace(namespace).delete(pod);
-      }
-      log.info("Cleaned " + orphanPods.getItems().size() + " pods");
+    List<Pod> orphanPods = podWatcher.getPods();
+    for (Pod pod : orphanPods) {
+      String namespace = pod.getMetadata().getNamespace();
+      kubeClient.pods().inNamespace(namespace).delete(pod);
     }
+    log.info("Cleaned " + orphanPods.size() + " pods");
     ServiceList orphanServices = kubeClient.services().inAnyNamespace().withLabel(identifierLabel, identifierValue).list();
     if (orphanServices != null) {
       for (Service service : orphanServices.getItems()) {
@@ -499,37 +621,4 @@ public class KubernetesBackend extends AbstractContainerBackend {
       log.info("Cleaned " + orphanPVCs.getItems().size() + " PersistentVolumeClaims");
     }
   }
-  
-  public PodList getFailedAndUnknownPods() {
-    String identifierLabel = environment.getProperty("proxy.identifier-label", "openanalytics.eu/sp-identifier");
-    String identifierValue = environment.getProperty("proxy.identifier-value", "default-identifier");
-    return kubeClient.pods().inAnyNamespace()
-      .withLabel(identifierLabel, identifierValue)
-      .withoutField("status.phase", "Pending")
-      .withoutField("status.phase", "Running")
-      .withoutField("status.phase", "Succeeded")
-      .list();
-  }
-  
-  private class ErrorPodsCleaner implements Runnable {
-    @Override
-    public void run() {
-      log.info("Enable failed and unknown phase pods detection & cleaning");
-      while (true) {
-        PodList failedPods = getFailedAndUnknownPods();
-        if (failedPods != null && !failedPods.getItems().isEmpty()) {
-          for (Pod pod : failedPods.getItems()) {
-            String proxyId = pod.getMetadata().getLabels().get("openanalytics.eu/sp-proxy-id");
-            proxyService.stopProxy(proxyService.getProxy(proxyId), true, true);
-            log.error("Cleaned error proxy {}", proxyId);
-          }
-        }
-        try {
-          Thread.sleep(30000);
-        } catch (Exception e) {
-          log.error(e);
-        }
-      }
-    }
-  }
 }
@@ -0,0 +1,150 @@
+package eu.openanalytics.containerproxy.backend.kubernetes;
+
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.informers.ResourceEventHandler;
+import io.fabric8.kubernetes.client.informers.SharedIndexInformer;
+import io.fabric8.kubernetes.client.internal.readiness.Readiness;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * A single shared informer on all pods of this ShinyProxy instance (selected by the identifier label).
+ * <p>
+ * It keeps a local copy of these pods, wakes up proxy starts as soon as their pod becomes ready and
+ * reports pods that end up in the Failed or Unknown phase, without polling the API server.
+ * The informer re-lists and re-watches by itself when its connection is lost.
+ */
+public class PodWatcher implements ResourceEventHandler<Pod> {
+  
+  private static final long RESYNC_PERIOD_MS = 0;
+  private static final long SYNC_TIMEOUT_MS = 60000;
+  
+  private final Logger log = LogManager.getLogger(PodWatcher.class);
+  
+  private final KubernetesClient kubeClient;
+  private final String identifierLabel;
+  private final String identifierValue;
+  private final Consumer<Pod> failedPodListener;
+  private final Map<String, CompletableFuture<Pod>> readinessWaiters = new ConcurrentHashMap<>();
+  // failed pods that were already reported, until they are deleted
+  private final Set<String> failedPods = ConcurrentHashMap.newKeySet();
+  
+  private SharedIndexInformer<Pod> informer;
+  
+  public PodWatcher(KubernetesClient kubeClient, String identifierLabel, String identifierValue, Consumer<Pod> failedPodListener) {
+    this.kubeClient = kubeClient;
+    this.identifierLabel = identifierLabel;
+    this.identifierValue = identifierValue;
+    this.failedPodListener = failedPodListener;
+  }
+  
+  /**
+   * Start the informer and wait until the local copy of the pods is complete.
+   */
+  public synchronized void start() {
+    if (informer != null) return;
+    informer = kubeClient.pods().inAnyNamespace().withLabel(identifierLabel, identifierValue).inform(this, RESYNC_PERIOD_MS);
+    long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MS;
+    while (!informer.hasSynced() && System.currentTimeMillis() < deadline) {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    if (!informer.hasSynced()) log.warn("Pod informer did not sync within {}ms", SYNC_TIMEOUT_MS);
+  }
+  
+  public synchronized void close() {
+    if (informer != null) informer.stop();
+  }
+  
+  /**
+   * @return The pods of this ShinyProxy instance, as last seen by the informer.
+   */
+  public List<Pod> getPods() {
+    return informer.getStore().list();
+  }
+  
+  /**
+   * Block until the given pod is ready.
+   *
+   * @param pod     The pod to wait for.
+   * @param timeout The maximum time to wait, in milliseconds.
+   * @return The ready pod, or null if the pod did not become ready in time, failed or was deleted.
+   */
+  public Pod awaitReady(Pod pod, long timeout) throws InterruptedException {
+    String key = getKey(pod);
+    CompletableFuture<Pod> waiter = new CompletableFuture<>();
+    readinessWaiters.put(key, waiter);
+    try {
+      // the pod may have become ready before the waiter was registered
+      Pod current = informer.getStore().getByKey(key);
+      if (current != null && Readiness.isPodReady(current)) return current;
+      return waiter.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException | ExecutionException e) {
+      return null;
+    } finally {
+      readinessWaiters.remove(key, waiter);
+    }
+  }
+  
+  @Override
+  public void onAdd(Pod pod) {
+    onChange(pod);
+  }
+  
+  @Override
+  public void onUpdate(Pod oldPod, Pod newPod) {
+    onChange(newPod);
+  }
+  
+  @Override
+  public void onDelete(Pod pod, boolean deletedFinalStateUnknown) {
+    String key = getKey(pod);
+    failedPods.remove(key);
+    CompletableFuture<Pod> waiter = readinessWaiters.get(key);
+    if (waiter != null) waiter.completeExceptionally(new IllegalStateException("Pod was deleted"));
+  }
+  
+  private void onChange(Pod pod) {
+    String key = getKey(pod);
+    CompletableFuture<Pod> waiter = readinessWaiters.get(key);
+    if (isFailed(pod)) {
+      if (waiter != null) {
+        // the start that is waiting for this pod fails and cleans up by itself
+        waiter.completeExceptionally(new IllegalStateException("Pod failed"));
+      } else if (failedPods.add(key)) {
+        try {
+          failedPodListener.accept(pod);
+        } catch (Exception e) {
+          log.error("Error while handling failed pod " + key, e);
+        }
+      }
+    } else if (waiter != null && Readiness.isPodReady(pod)) {
+      waiter.complete(pod);
+    }
+  }
+  
+  private static boolean isFailed(Pod pod) {
+    if (pod.getStatus() == null) return false;
+    String phase = pod.getStatus().getPhase();
+    return "Failed".equals(phase) || "Unknown".equals(phase);
+  }
+  
+  private static String getKey(Pod pod) {
+    return pod.getMetadata().getNamespace() + "/" + pod.getMetadata().getName();
+  }
+}
@@ -2,6 +2,8 @@ package eu.openanalytics.containerproxy.backend.strategy;
 
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Defines a strategy for testing the responsiveness of a newly launched proxy.
  * If a proxy is not responsive, the launch will be aborted and an error will be generated.
@@ -10,4 +12,15 @@ public interface IProxyTestStrategy {
   
   boolean testProxy(Proxy proxy);
   
+  /**
+   * Test the proxy without blocking the caller.
+   * Strategies that wait for the proxy should override this method, the default runs {@link #testProxy(Proxy)}
+   * on the calling thread.
+   *
+   * @return A future that completes with true if the proxy is responsive.
+   */
+  default CompletableFuture<Boolean> testProxyAsync(Proxy proxy) {
+    return CompletableFuture.completedFuture(testProxy(proxy));
+  }
+  
 }
@@ -1,7 +1,6 @@
 package eu.openanalytics.containerproxy.backend.strategy.impl;
 
 import eu.openanalytics.containerproxy.backend.strategy.IProxyLogoutStrategy;
-import eu.openanalytics.containerproxy.model.runtime.Proxy;
 import eu.openanalytics.containerproxy.service.ProxyService;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.stereotype.Component;
@@ -22,9 +21,7 @@ public class DefaultProxyLogoutStrategy implements IProxyLogoutStrategy {
   
   @Override
   public void onLogout(String userId, boolean expired) {
-    for (Proxy proxy : proxyService.getProxies(p -> p.getUserId().equals(userId), true)) {
-      proxyService.stopProxy(proxy, true, true);
-    }
+    proxyService.stopProxies(proxyService.getUserProxies(userId, null, true), true, true);
   }
   
 }
@@ -1,7 +1,6 @@
 package eu.openanalytics.containerproxy.backend.strategy.impl;
 
 import eu.openanalytics.containerproxy.backend.strategy.IProxyLogoutStrategy;
-import eu.openanalytics.containerproxy.model.runtime.Proxy;
 import eu.openanalytics.containerproxy.service.ProxyService;
 import eu.openanalytics.containerproxy.util.RedisSessionHelper;
 import org.apache.logging.log4j.LogManager;
@@ -35,8 +34,6 @@ public class RedisSessionProxyLogoutStrategy implements IProxyLogoutStrategy {
     if (redisSessionHelper.getSessionByUsername(userId).size() > 1 - (expired ? 1 : 0)) {
       return;
     }
-    for (Proxy proxy : proxyService.getProxies(p -> p.getUserId().equals(userId), true)) {
-      proxyService.stopProxy(proxy, true, true);
-    }
+    proxyService.stopProxies(proxyService.getUserProxies(userId, null, true), true, true);
   }
 }
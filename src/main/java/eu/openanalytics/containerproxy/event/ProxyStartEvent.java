@@ -4,16 +4,24 @@ import lombok.Getter;
 import org.springframework.context.ApplicationEvent;
 
 import java.time.Duration;
+import java.util.Map;
 
 public class ProxyStartEvent extends ApplicationEvent {
+  @Getter private final String proxyId;
   @Getter private final String userId;
   @Getter private final String specId;
   @Getter private final Duration startupTime;
+  /**
+   * The startup time of every container of the proxy, by container name (or index, for unnamed containers).
+   */
+  @Getter private final Map<String, Duration> containerStartupTimes;
   
-  public ProxyStartEvent(Object source, String userId, String specId, Duration startupTime) {
+  public ProxyStartEvent(Object source, String proxyId, String userId, String specId, Duration startupTime, Map<String, Duration> containerStartupTimes) {
     super(source);
+    this.proxyId = proxyId;
     this.userId = userId;
     this.specId = specId;
     this.startupTime = startupTime;
+    this.containerStartupTimes = containerStartupTimes;
   }
 }
@@ -22,6 +22,11 @@ public abstract class AbstractLogStorage implements ILogStorage {
     containerLogPath = environment.getProperty("proxy.container-log-path");
   }
   
+  @Override
+  public void shutdown() {
+    // Do nothing.
+  }
+  
   @Override
   public String getStorageLocation() {
     return containerLogPath;
@@ -1,27 +1,88 @@
 package eu.openanalytics.containerproxy.log;
 
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.compressors.zstandard.ZstdUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-import java.io.FileOutputStream;
+import javax.inject.Inject;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.Arrays;
 
-import static com.pivovarit.function.ThrowingFunction.unchecked;
-
 public class FileLogStorage extends AbstractLogStorage {
   
+  private final Logger log = LogManager.getLogger(FileLogStorage.class);
+  
+  @Inject
+  protected MeterRegistry registry;
+  
+  private LogWriter logWriter;
+  
   @Override
   public void initialize() throws IOException {
     super.initialize();
     Files.createDirectories(Paths.get(containerLogPath));
+    
+    String compression = environment.getProperty("proxy.container-log-compression", CompressorStreamFactory.GZIP);
+    if (compression.equalsIgnoreCase("none")) {
+      compression = null;
+    } else if (compression.equals(CompressorStreamFactory.ZSTANDARD) && !ZstdUtils.isZstdCompressionAvailable()) {
+      log.warn("Zstandard compression of rotated container logs requires zstd-jni, using gzip instead");
+      compression = CompressorStreamFactory.GZIP;
+    }
+    String rotateInterval = environment.getProperty("proxy.container-log-rotate-interval");
+    logWriter = new LogWriter(
+      environment.getProperty("proxy.container-log-writer-threads", Integer.class, 2),
+      environment.getProperty("proxy.container-log-queue-size", Integer.class, 4096),
+      LogWriter.OverflowPolicy.valueOf(StringUtils.capitalize(environment.getProperty("proxy.container-log-overflow", "block").toLowerCase())),
+      environment.getProperty("proxy.container-log-max-size", Long.class, 0L),
+      rotateInterval == null ? 0 : Duration.parse(rotateInterval).toMillis(),
+      compression,
+      registry);
+  }
+  
+  @Override
+  public void shutdown() {
+    if (logWriter != null) logWriter.shutdown();
   }
   
   @Override
   public OutputStream[] createOutputStreams(Proxy proxy) throws IOException {
-    return Arrays.stream(getLogs(proxy)).map(unchecked(FileOutputStream::new)).toArray(OutputStream[]::new);
+    return Arrays.stream(getLogs(proxy)).map(logWriter::createOutputStream).toArray(OutputStream[]::new);
+  }
+  
+  @Override
+  public long getLogSize(String path) throws IOException {
+    Path file = Paths.get(path);
+    return Files.exists(file) ? Files.size(file) : 0;
+  }
+  
+  @Override
+  public byte[] readLog(String path, long offset, int length) throws IOException {
+    Path file = Paths.get(path);
+    if (!Files.exists(file)) return new byte[0];
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      // mapped, so only the pages of the range are read
+      byte[] bytes = new byte[(int) Math.max(0, Math.min(length, channel.size() - offset))];
+      if (bytes.length > 0) channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes.length).get(bytes);
+      return bytes;
+    }
+  }
+  
+  @Override
+  public LogIndex getLogIndex(String path) throws IOException {
+    Path file = Paths.get(path + LogIndex.SUFFIX);
+    return new LogIndex(Files.exists(file) ? Files.readAllBytes(file) : new byte[0]);
   }
   
 }
@@ -0,0 +1,25 @@
+package eu.openanalytics.containerproxy.log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+
+/**
+ * Reads the output of the containers of a proxy without waiting for new output, so the logs of many proxies can be
+ * pulled by a few threads (see LogService).
+ */
+public interface ILogReader {
+  
+  /**
+   * Write the output of the containers since the given time to the streams, and return when all output that is
+   * currently available was written (or a backend-specific limit was reached).
+   *
+   * @param since  The time of the last output that was written before, or null to write all output.
+   * @param stdOut The stream to write the standard output to.
+   * @param stdErr The stream to write the standard error to.
+   * @return The time of the last output that was written, or since if there was no new output.
+   * @throws IOException If the output could not be read or written.
+   */
+  Instant read(Instant since, OutputStream stdOut, OutputStream stdErr) throws IOException;
+  
+}
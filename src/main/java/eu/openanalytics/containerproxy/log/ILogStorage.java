@@ -9,10 +9,33 @@ public interface ILogStorage {
   
   void initialize() throws IOException;
   
+  /**
+   * Release the resources of the storage, writing any logs that are still buffered.
+   */
+  void shutdown();
+  
   String getStorageLocation();
   
   OutputStream[] createOutputStreams(Proxy proxy) throws IOException;
   
   String[] getLogs(Proxy proxy) throws IOException;
   
+  /**
+   * @param path One of the paths returned by getLogs.
+   * @return The number of bytes in the log that can be read, or 0 if the log does not exist (yet).
+   */
+  long getLogSize(String path) throws IOException;
+  
+  /**
+   * Read a range of a log, without reading the rest of it.
+   *
+   * @return The bytes at the given offset, less than length if the log ends before that.
+   */
+  byte[] readLog(String path, long offset, int length) throws IOException;
+  
+  /**
+   * @return The index of the log, which is empty if the log has no index.
+   */
+  LogIndex getLogIndex(String path) throws IOException;
+  
 }
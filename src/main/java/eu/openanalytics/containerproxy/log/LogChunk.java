@@ -0,0 +1,26 @@
+package eu.openanalytics.containerproxy.log;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * A number of complete lines of a log, with the range of the log they were read from.
+ */
+@Getter
+public class LogChunk {
+  
+  private final List<String> lines;
+  // the offset of the first line, and the offset after the last line: the offset to continue following the log at
+  private final long startOffset;
+  private final long endOffset;
+  // true if not all lines that were requested were read, because of the maximum size of a read
+  private final boolean truncated;
+  
+  public LogChunk(List<String> lines, long startOffset, long endOffset, boolean truncated) {
+    this.lines = lines;
+    this.startOffset = startOffset;
+    this.endOffset = endOffset;
+    this.truncated = truncated;
+  }
+}
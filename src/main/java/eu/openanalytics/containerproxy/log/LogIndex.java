@@ -0,0 +1,124 @@
+package eu.openanalytics.containerproxy.log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A sparse index of a log file, stored next to the file with the suffix .idx.
+ * <p>
+ * Every entry is the offset of the start of a line and the time at which that line was written, as two big-endian
+ * longs. An entry is added after at least 64 KB or one second of output, so a time window of a log can be read
+ * without reading the log from its start, with a precision of about a second.
+ */
+public class LogIndex {
+  
+  public static final String SUFFIX = ".idx";
+  public static final int ENTRY_SIZE = 16;
+  
+  private static final long ENTRY_BYTES = 64 * 1024;
+  private static final long ENTRY_INTERVAL_MS = 1000;
+  
+  private final long[] offsets;
+  private final long[] timestamps;
+  
+  /**
+   * @param bytes The content of an index file, an incomplete last entry is ignored.
+   */
+  public LogIndex(byte[] bytes) {
+    int entries = bytes.length / ENTRY_SIZE;
+    offsets = new long[entries];
+    timestamps = new long[entries];
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    for (int i = 0; i < entries; i++) {
+      offsets[i] = buffer.getLong();
+      timestamps[i] = buffer.getLong();
+    }
+  }
+  
+  /**
+   * @return The offset of the last line that was written at or before the given time, or 0 if there is none.
+   */
+  public long getOffsetAtOrBefore(long timestamp) {
+    int index = search(timestamp);
+    return index < 0 ? 0 : offsets[index];
+  }
+  
+  /**
+   * @return The offset of the first line that was written after the given time, or -1 if there is none.
+   */
+  public long getOffsetAfter(long timestamp) {
+    int index = search(timestamp) + 1;
+    return index < offsets.length ? offsets[index] : -1;
+  }
+  
+  /**
+   * @return The index of the last entry at or before the timestamp, or -1.
+   */
+  private int search(long timestamp) {
+    int low = 0;
+    int high = timestamps.length - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (timestamps[middle] <= timestamp) low = middle + 1;
+      else high = middle - 1;
+    }
+    return high;
+  }
+  
+  /**
+   * Follows the output that is appended to a log file, and creates the index entries for it.
+   * Not thread-safe: used by the writer of the file.
+   */
+  public static class Builder {
+    
+    private long offset;
+    private long lastEntryOffset = -1;
+    private long lastEntryTimestamp;
+    
+    /**
+     * @param offset The current size of the log file.
+     */
+    public Builder(long offset) {
+      this.offset = offset;
+    }
+    
+    public long getOffset() {
+      return offset;
+    }
+    
+    /**
+     * Add output that was appended to the log file.
+     *
+     * @return The encoded entries for the index, empty if the output needs no new entries.
+     */
+    public ByteBuffer append(byte[] bytes, int off, int len, long timestamp) {
+      ByteBuffer entries = ByteBuffer.allocate(ENTRY_SIZE * 2);
+      if (lastEntryOffset < 0) {
+        // the output is assumed to start at a line
+        entries = addEntry(entries, offset, timestamp);
+      }
+      for (int i = off; i < off + len; i++) {
+        if (bytes[i] != '\n') continue;
+        long lineOffset = offset + (i - off) + 1;
+        if (lineOffset - lastEntryOffset >= ENTRY_BYTES || timestamp - lastEntryTimestamp >= ENTRY_INTERVAL_MS) {
+          entries = addEntry(entries, lineOffset, timestamp);
+        }
+      }
+      offset += len;
+      entries.flip();
+      return entries;
+    }
+    
+    private ByteBuffer addEntry(ByteBuffer entries, long lineOffset, long timestamp) {
+      if (entries.remaining() < ENTRY_SIZE) {
+        ByteBuffer larger = ByteBuffer.allocate(entries.capacity() * 2);
+        entries.flip();
+        larger.put(entries);
+        entries = larger;
+      }
+      entries.putLong(lineOffset).putLong(timestamp);
+      lastEntryOffset = lineOffset;
+      lastEntryTimestamp = timestamp;
+      return entries;
+    }
+  }
+}
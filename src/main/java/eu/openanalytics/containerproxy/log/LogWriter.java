@@ -0,0 +1,386 @@
+package eu.openanalytics.containerproxy.log;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the logs of containers to files on a small number of writer threads, so the threads that read the output of
+ * the containers never write to disk themselves.
+ * <p>
+ * The streams of a file hand copies of the written bytes to the queue of a single writer, so the chunks of a file
+ * stay in order. A writer drains its queue in batches and writes all chunks of a file in a batch with one gathering
+ * write. When the queue is full, a stream either waits until there is room (slowing down the log stream of the
+ * container) or drops the chunk.
+ * <p>
+ * A file is rotated when it reaches the maximum size, or when it was opened longer than the rotation interval ago:
+ * it is renamed to path.n and compressed in the background to path.n.gz (or .zst).
+ * <p>
+ * Next to each file, a {@link LogIndex} is written to path.idx, which is rotated along with the file but not
+ * compressed.
+ * <p>
+ * Published metrics: containerLogBytesWritten, containerLogChunksDropped, containerLogRotations and
+ * containerLogQueueSize.
+ */
+public class LogWriter {
+  
+  public enum OverflowPolicy {
+    Block,
+    Drop
+  }
+  
+  private static final int MAX_BATCH_SIZE = 1024;
+  private static final long POLL_INTERVAL_MS = 1000;
+  private static final long STOP_TIMEOUT_MS = 10000;
+  
+  private final Logger log = LogManager.getLogger(LogWriter.class);
+  private final Writer[] writers;
+  private final ExecutorService compressor = Executors.newSingleThreadExecutor();
+  private final OverflowPolicy overflowPolicy;
+  // 0 to disable rotation by size or time
+  private final long maxSize;
+  private final long rotateInterval;
+  // null to keep the rotated files as they are
+  private final String compression;
+  private final String compressedExtension;
+  private final Counter bytesWritten;
+  private final Counter chunksDropped;
+  private final Counter rotations;
+  
+  /**
+   * @param threads        The number of writer threads.
+   * @param queueSize      The maximum number of chunks waiting to be written, per writer.
+   * @param overflowPolicy What to do with a chunk when the queue of its writer is full.
+   * @param maxSize        The size in bytes at which a file is rotated, or 0.
+   * @param rotateInterval The time in milliseconds after which a file is rotated, or 0.
+   * @param compression    The commons-compress name of the compression of rotated files (e.g. gz or zstd), or null.
+   * @param registry       The registry of the metrics of the writers.
+   */
+  public LogWriter(int threads, int queueSize, OverflowPolicy overflowPolicy, long maxSize, long rotateInterval, String compression, MeterRegistry registry) {
+    this.overflowPolicy = overflowPolicy;
+    this.maxSize = maxSize;
+    this.rotateInterval = rotateInterval;
+    this.compression = compression;
+    this.compressedExtension = CompressorStreamFactory.ZSTANDARD.equals(compression) ? ".zst" : "." + compression;
+    this.bytesWritten = registry.counter("containerLogBytesWritten");
+    this.chunksDropped = registry.counter("containerLogChunksDropped");
+    this.rotations = registry.counter("containerLogRotations");
+    
+    writers = new Writer[threads];
+    for (int i = 0; i < threads; i++) {
+      writers[i] = new Writer("LogWriter-" + i, queueSize);
+    }
+    registry.gauge("containerLogQueueSize", this, w -> {
+      int size = 0;
+      for (Writer writer : w.writers) size += writer.queue.size();
+      return size;
+    });
+  }
+  
+  /**
+   * @return A stream that appends to the file at the given path, which is created if it does not exist yet.
+   */
+  public OutputStream createOutputStream(String path) {
+    Path file = Paths.get(path);
+    Writer writer = writers[Math.floorMod(file.hashCode(), writers.length)];
+    return new LogOutputStream(new LogFile(file), writer);
+  }
+  
+  /**
+   * Write the chunks that are still queued, close all files and stop the writer threads.
+   */
+  public void shutdown() {
+    for (Writer writer : writers) writer.stop();
+    for (Writer writer : writers) {
+      try {
+        writer.thread.join(STOP_TIMEOUT_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    compressor.shutdown();
+  }
+  
+  private void compress(Path rotated) {
+    Path compressed = Paths.get(rotated + compressedExtension);
+    try (InputStream in = Files.newInputStream(rotated);
+         OutputStream out = new CompressorStreamFactory().createCompressorOutputStream(compression, Files.newOutputStream(compressed))) {
+      in.transferTo(out);
+    } catch (IOException | CompressorException e) {
+      log.error("Failed to compress rotated log file " + rotated, e);
+      return;
+    }
+    try {
+      Files.delete(rotated);
+    } catch (IOException e) {
+      log.error("Failed to delete rotated log file " + rotated, e);
+    }
+  }
+  
+  private static Path indexPath(Path path) {
+    return Paths.get(path + LogIndex.SUFFIX);
+  }
+  
+  private static class Chunk {
+    
+    private final LogFile file;
+    // null to close the file
+    private final byte[] data;
+    
+    private Chunk(LogFile file, byte[] data) {
+      this.file = file;
+      this.data = data;
+    }
+  }
+  
+  /**
+   * A file that is being written. Only used by the thread of its writer.
+   */
+  private class LogFile {
+    
+    private final Path path;
+    // null if the file is not open, e.g. after a rotation by time
+    private FileChannel channel;
+    private FileChannel indexChannel;
+    private LogIndex.Builder indexBuilder;
+    private long size;
+    private long openTimestamp;
+    
+    private LogFile(Path path) {
+      this.path = path;
+    }
+    
+    private void write(List<ByteBuffer> buffers) throws IOException {
+      if (channel != null && maxSize > 0 && size >= maxSize) rotate();
+      if (channel == null) {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+        openTimestamp = System.currentTimeMillis();
+        indexChannel = FileChannel.open(indexPath(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        indexBuilder = new LogIndex.Builder(size);
+      }
+      
+      ByteBuffer[] array = buffers.toArray(new ByteBuffer[0]);
+      long remaining = 0;
+      for (ByteBuffer buffer : array) remaining += buffer.remaining();
+      long length = remaining;
+      while (remaining > 0) {
+        remaining -= channel.write(array);
+      }
+      size += length;
+      bytesWritten.increment(length);
+      
+      long now = System.currentTimeMillis();
+      for (ByteBuffer buffer : array) {
+        ByteBuffer entries = indexBuilder.append(buffer.array(), buffer.arrayOffset(), buffer.limit(), now);
+        while (entries.hasRemaining()) {
+          indexChannel.write(entries);
+        }
+      }
+    }
+    
+    private boolean isExpired(long now) {
+      return channel != null && rotateInterval > 0 && size > 0 && now - openTimestamp >= rotateInterval;
+    }
+    
+    private void rotate() throws IOException {
+      close();
+      Path rotated;
+      int index = 1;
+      do {
+        rotated = Paths.get(path + "." + index++);
+      } while (Files.exists(rotated) || (compression != null && Files.exists(Paths.get(rotated + compressedExtension))));
+      Files.move(path, rotated);
+      if (Files.exists(indexPath(path))) Files.move(indexPath(path), indexPath(rotated));
+      rotations.increment();
+      if (compression != null) {
+        Path toCompress = rotated;
+        compressor.submit(() -> compress(toCompress));
+      }
+    }
+    
+    private void close() throws IOException {
+      if (channel == null) return;
+      try {
+        channel.close();
+      } finally {
+        channel = null;
+        indexChannel.close();
+        indexChannel = null;
+        indexBuilder = null;
+      }
+    }
+  }
+  
+  private class Writer {
+    
+    private final BlockingQueue<Chunk> queue;
+    private final Thread thread;
+    // the files of this writer that are open, only used by the thread
+    private final Set<LogFile> files = new HashSet<>();
+    private volatile boolean running = true;
+    
+    private Writer(String name, int queueSize) {
+      queue = new ArrayBlockingQueue<>(queueSize);
+      thread = new Thread(this::run, name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    
+    private void stop() {
+      // not interrupted, because that would close the file channel that is being written
+      running = false;
+    }
+    
+    private void run() {
+      List<Chunk> batch = new ArrayList<>(MAX_BATCH_SIZE);
+      while (running) {
+        Chunk first;
+        try {
+          first = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          break;
+        }
+        if (first != null) {
+          batch.add(first);
+          queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+          write(batch);
+          batch.clear();
+        }
+        rotateExpired();
+      }
+      
+      // write what is left and close the files
+      while (queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+        write(batch);
+        batch.clear();
+      }
+      for (LogFile file : files) {
+        try {
+          file.close();
+        } catch (IOException | RuntimeException e) {
+          log.error("Failed to close log file " + file.path, e);
+        }
+      }
+      files.clear();
+    }
+    
+    private void write(List<Chunk> batch) {
+      Map<LogFile, List<ByteBuffer>> writes = new LinkedHashMap<>();
+      List<LogFile> closing = new ArrayList<>();
+      for (Chunk chunk : batch) {
+        if (chunk.data == null) {
+          closing.add(chunk.file);
+        } else {
+          writes.computeIfAbsent(chunk.file, file -> new ArrayList<>()).add(ByteBuffer.wrap(chunk.data));
+        }
+      }
+      
+      for (Map.Entry<LogFile, List<ByteBuffer>> entry : writes.entrySet()) {
+        LogFile file = entry.getKey();
+        try {
+          files.add(file);
+          file.write(entry.getValue());
+        } catch (IOException | RuntimeException e) {
+          // never let the writer thread die, the other files of this writer may still be written
+          log.error("Failed to write log file " + file.path, e);
+        }
+      }
+      for (LogFile file : closing) {
+        try {
+          files.remove(file);
+          file.close();
+        } catch (IOException | RuntimeException e) {
+          log.error("Failed to close log file " + file.path, e);
+        }
+      }
+    }
+    
+    private void rotateExpired() {
+      if (rotateInterval <= 0) return;
+      long now = System.currentTimeMillis();
+      for (LogFile file : files) {
+        if (!file.isExpired(now)) continue;
+        try {
+          // the file is opened again by its next write
+          file.rotate();
+        } catch (IOException | RuntimeException e) {
+          log.error("Failed to rotate log file " + file.path, e);
+        }
+      }
+    }
+  }
+  
+  private class LogOutputStream extends OutputStream {
+    
+    private final LogFile file;
+    private final Writer writer;
+    private volatile boolean closed;
+    
+    private LogOutputStream(LogFile file, Writer writer) {
+      this.file = file;
+      this.writer = writer;
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (closed) throw new IOException("Stream closed");
+      if (len == 0) return;
+      byte[] data = new byte[len];
+      System.arraycopy(b, off, data, 0, len);
+      Chunk chunk = new Chunk(file, data);
+      if (overflowPolicy == OverflowPolicy.Drop) {
+        if (!writer.queue.offer(chunk)) chunksDropped.increment();
+        return;
+      }
+      try {
+        writer.queue.put(chunk);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the log writer", e);
+      }
+    }
+    
+    @Override
+    public void close() throws IOException {
+      if (closed) return;
+      closed = true;
+      try {
+        // never dropped, so the file is always closed
+        writer.queue.put(new Chunk(file, null));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the log writer", e);
+      }
+    }
+  }
+}
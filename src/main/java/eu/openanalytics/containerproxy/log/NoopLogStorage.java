@@ -21,4 +21,19 @@ public class NoopLogStorage extends AbstractLogStorage {
     return null;
   }
   
+  @Override
+  public long getLogSize(String path) {
+    return 0;
+  }
+  
+  @Override
+  public byte[] readLog(String path, long offset, int length) {
+    return new byte[0];
+  }
+  
+  @Override
+  public LogIndex getLogIndex(String path) {
+    return new LogIndex(new byte[0]);
+  }
+  
 }
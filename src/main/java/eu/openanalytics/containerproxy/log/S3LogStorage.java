@@ -6,26 +6,73 @@ import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.MultipartUpload;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
 import com.amazonaws.services.s3.model.S3Object;
-import com.amazonaws.services.s3.transfer.TransferManager;
-import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.bouncycastle.util.Arrays;
 
-import java.io.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
-//TODO Optimize flushing behaviour
+/**
+ * Appends the logs of containers to objects in S3, with multipart uploads.
+ * <p>
+ * The output of a container is buffered until a part of proxy.container-log-s3-part-size (at least 5 MB, the minimum
+ * size of a part) is full, which is then uploaded as the next part of the upload of the log file. An upload is
+ * completed, making the log visible in the bucket, when the logging of the container is detached, when the logs
+ * were not written to S3 for proxy.container-log-s3-flush-interval, or on shutdown.
+ * <p>
+ * The next upload to an object that already exists starts with a server-side copy of that object, so the log is never
+ * downloaded and uploaded again (except for objects smaller than 5 MB, which cannot be copied as a part).
+ * Uploads that were not completed, e.g. because the controller crashed, are completed as they are after a restart
+ * (their last part may be smaller than 5 MB, so no parts can be added to them).
+ * <p>
+ * The {@link LogIndex} of a log is kept in memory while the log is written and stored as key.idx whenever an upload
+ * is completed. The index of an upload that was completed after a restart is rebuilt from its parts, with the time
+ * each part was uploaded. Logs are read with ranged GETs, so only the requested range is downloaded.
+ */
 public class S3LogStorage extends AbstractLogStorage {
   
+  private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+  private static final long MAX_COPY_PART_SIZE = 5L * 1024 * 1024 * 1024;
+  private static final int MAX_PARTS = 10000;
+  
   private final Logger log = LogManager.getLogger(S3LogStorage.class);
+  private final Set<S3OutputStream> openStreams = ConcurrentHashMap.newKeySet();
   private AmazonS3 s3;
-  private TransferManager transferMgr;
+  private ScheduledExecutorService flusher;
   private String bucketName;
   private String bucketPath;
   private boolean enableSSE;
+  private int partSize;
+  private long flushInterval;
   
   @Override
   public void initialize() throws IOException {
@@ -35,6 +82,8 @@ public class S3LogStorage extends AbstractLogStorage {
     String accessSecret = environment.getProperty("proxy.container-log-s3-access-secret");
     String endpoint = environment.getProperty("proxy.container-log-s3-endpoint", "https://s3-eu-west-1.amazonaws.com");
     enableSSE = Boolean.valueOf(environment.getProperty("proxy.container-log-s3-sse", "false"));
+    partSize = Math.max(MIN_PART_SIZE, environment.getProperty("proxy.container-log-s3-part-size", Integer.class, MIN_PART_SIZE));
+    flushInterval = Duration.parse(environment.getProperty("proxy.container-log-s3-flush-interval", "PT1M")).toMillis();
     
     String subPath = containerLogPath.substring("s3://".length()).trim();
     if (subPath.endsWith("/")) subPath = subPath.substring(0, subPath.length() - 1);
@@ -48,14 +97,29 @@ public class S3LogStorage extends AbstractLogStorage {
       bucketPath = subPath.substring(bucketPathIndex + 1) + "/";
     }
     
+    // path style access to a custom endpoint also allows S3-compatible stores, e.g. MinIO
     s3 = AmazonS3ClientBuilder.standard()
       .withEndpointConfiguration(new EndpointConfiguration(endpoint, null))
       .enablePathStyleAccess()
       .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials(accessKey, accessSecret)))
       .build();
-    transferMgr = TransferManagerBuilder.standard()
-      .withS3Client(s3)
-      .build();
+    
+    flusher = Executors.newSingleThreadScheduledExecutor();
+    long checkInterval = Math.max(1000, flushInterval / 4);
+    flusher.scheduleWithFixedDelay(this::flushIdleStreams, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+  }
+  
+  @Override
+  public void shutdown() {
+    if (flusher != null) flusher.shutdown();
+    // complete the uploads, so the buffered logs are not lost
+    for (S3OutputStream stream : openStreams) {
+      try {
+        stream.close();
+      } catch (IOException e) {
+        log.error("Failed to complete log upload to S3 [path: " + stream.key + "]", e);
+      }
+    }
   }
   
   @Override
@@ -63,74 +127,315 @@ public class S3LogStorage extends AbstractLogStorage {
     String[] paths = getLogs(proxy);
     OutputStream[] streams = new OutputStream[2];
     for (int i = 0; i < streams.length; i++) {
-      String fileName = paths[i].substring(paths[i].lastIndexOf("/") + 1);
-      // TODO kubernetes never flushes. So perform timed flushes, and also flush upon container shutdown
-      streams[i] = new BufferedOutputStream(new S3OutputStream(bucketPath + fileName), 1024 * 1024);
+      S3OutputStream stream = new S3OutputStream(getKey(paths[i]));
+      openStreams.add(stream);
+      streams[i] = stream;
     }
     return streams;
   }
   
-  private void doUpload(String key, byte[] bytes) throws IOException {
-    byte[] bytesToUpload = bytes;
-    
-    byte[] originalBytes = getContent(key);
-    if (originalBytes != null) {
-      bytesToUpload = Arrays.copyOf(originalBytes, originalBytes.length + bytes.length);
-      System.arraycopy(bytes, 0, bytesToUpload, originalBytes.length, bytes.length);
+  @Override
+  public long getLogSize(String path) throws IOException {
+    String key = getKey(path);
+    try {
+      return s3.doesObjectExist(bucketName, key) ? s3.getObjectMetadata(bucketName, key).getContentLength() : 0;
+    } catch (AmazonClientException e) {
+      throw new IOException(e);
     }
-    
-    ObjectMetadata metadata = new ObjectMetadata();
-    metadata.setContentLength(bytesToUpload.length);
-    if (enableSSE) metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
-    
-    if (log.isDebugEnabled())
-      log.debug(String.format("Writing log file to S3 [size: %d] [path: %s]", bytesToUpload.length, key));
-    
-    InputStream bufferedInput = new BufferedInputStream(new ByteArrayInputStream(bytesToUpload), 20 * 1024 * 1024);
+  }
+  
+  @Override
+  public byte[] readLog(String path, long offset, int length) throws IOException {
+    if (length <= 0) return new byte[0];
+    GetObjectRequest request = new GetObjectRequest(bucketName, getKey(path)).withRange(offset, offset + length - 1);
+    try (S3Object o = s3.getObject(request); InputStream in = o.getObjectContent()) {
+      return in.readAllBytes();
+    } catch (AmazonClientException e) {
+      throw new IOException(e);
+    }
+  }
+  
+  @Override
+  public LogIndex getLogIndex(String path) throws IOException {
+    String key = getKey(path) + LogIndex.SUFFIX;
     try {
-      transferMgr.upload(bucketName, key, bufferedInput, metadata).waitForCompletion();
-    } catch (AmazonClientException | InterruptedException e) {
+      return new LogIndex(s3.doesObjectExist(bucketName, key) ? getContent(key) : new byte[0]);
+    } catch (AmazonClientException e) {
       throw new IOException(e);
     }
   }
   
+  private String getKey(String path) {
+    return bucketPath + path.substring(path.lastIndexOf("/") + 1);
+  }
+  
+  private void flushIdleStreams() {
+    long now = System.currentTimeMillis();
+    for (S3OutputStream stream : openStreams) {
+      try {
+        stream.flushIfIdle(now);
+      } catch (Exception e) {
+        log.error("Failed to flush log to S3 [path: " + stream.key + "]", e);
+      }
+    }
+  }
+  
+  private ObjectMetadata createMetadata() {
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentType("text/plain");
+    if (enableSSE) metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+    return metadata;
+  }
+  
+  /**
+   * @return The ID of the latest upload to the key that was not completed, or null if there is none.
+   */
+  private String findPendingUpload(String key) {
+    return s3.listMultipartUploads(new ListMultipartUploadsRequest(bucketName).withPrefix(key))
+      .getMultipartUploads().stream()
+      .filter(upload -> upload.getKey().equals(key))
+      .max(Comparator.comparing(MultipartUpload::getInitiated))
+      .map(MultipartUpload::getUploadId)
+      .orElse(null);
+  }
+  
+  private List<PartSummary> listParts(String key, String uploadId) {
+    List<PartSummary> parts = new ArrayList<>();
+    ListPartsRequest request = new ListPartsRequest(bucketName, key, uploadId);
+    PartListing listing;
+    do {
+      listing = s3.listParts(request);
+      parts.addAll(listing.getParts());
+      request.setPartNumberMarker(listing.getNextPartNumberMarker());
+    } while (listing.isTruncated());
+    return parts;
+  }
+  
   private byte[] getContent(String key) throws IOException {
-    if (s3.doesObjectExist(bucketName, key)) {
-      S3Object o = s3.getObject(bucketName, key);
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      try (InputStream in = o.getObjectContent()) {
-        byte[] buffer = new byte[40 * 1024];
-        int len = 0;
-        while ((len = in.read(buffer)) > 0) {
-          out.write(buffer, 0, len);
-        }
+    S3Object o = s3.getObject(bucketName, key);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = o.getObjectContent()) {
+      byte[] buffer = new byte[40 * 1024];
+      int len = 0;
+      while ((len = in.read(buffer)) > 0) {
+        out.write(buffer, 0, len);
       }
-      return out.toByteArray();
-    } else {
-      return null;
+    }
+    return out.toByteArray();
+  }
+  
+  /**
+   * A buffer of which the content can be read without copying it.
+   */
+  private static class PartBuffer extends ByteArrayOutputStream {
+    
+    private PartBuffer(int size) {
+      super(size);
+    }
+    
+    private InputStream toInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
     }
   }
   
+  /**
+   * Appends to a single log file. Written by the thread that attached to the output of the container, and flushed
+   * by the flusher of the storage.
+   */
   private class S3OutputStream extends OutputStream {
     
-    private final String s3Key;
+    private final String key;
+    private PartBuffer buffer;
+    // null if no upload is in progress
+    private String uploadId;
+    private List<PartETag> parts;
+    // the time the oldest byte in the buffer was written, or of the oldest part that was uploaded but not completed
+    private long pendingSince;
+    private boolean closed;
+    private final LogIndex.Builder index;
+    // the entries of the index of the log, including those of the uploads that were completed before
+    private final ByteArrayOutputStream indexEntries = new ByteArrayOutputStream();
+    
+    public S3OutputStream(String key) throws IOException {
+      this.key = key;
+      this.buffer = new PartBuffer(partSize);
+      try {
+        long length = s3.doesObjectExist(bucketName, key) ? s3.getObjectMetadata(bucketName, key).getContentLength() : 0;
+        if (s3.doesObjectExist(bucketName, key + LogIndex.SUFFIX)) indexEntries.write(getContent(key + LogIndex.SUFFIX));
+        String pendingUploadId = findPendingUpload(key);
+        if (pendingUploadId != null) length = completePendingUpload(pendingUploadId, length);
+        index = new LogIndex.Builder(length);
+      } catch (AmazonClientException e) {
+        throw new IOException(e);
+      }
+    }
     
-    public S3OutputStream(String s3Key) {
-      this.s3Key = s3Key;
+    /**
+     * Complete an upload that was interrupted as it is: its last part may be smaller than 5 MB, which only the last
+     * part of an upload may be. The next write starts a new upload that copies the completed object.
+     *
+     * @param uploadId      The ID of the interrupted upload.
+     * @param indexedLength The length of the object the upload started from, which the stored index covers.
+     * @return The length of the object.
+     */
+    private long completePendingUpload(String uploadId, long indexedLength) throws IOException {
+      // the parts include the copy of the object the upload started from
+      List<PartSummary> summaries = listParts(key, uploadId);
+      if (summaries.isEmpty()) {
+        s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+        return indexedLength;
+      }
+      log.info(String.format("Completing interrupted log upload to S3 [parts: %d] [path: %s]", summaries.size(), key));
+      List<PartETag> etags = summaries.stream().map(p -> new PartETag(p.getPartNumber(), p.getETag())).collect(Collectors.toList());
+      s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, etags));
+      
+      // the index entries of the parts that were uploaded since the index was stored, at the time of their upload
+      LogIndex.Builder builder = new LogIndex.Builder(indexedLength);
+      long partStart = 0;
+      for (PartSummary part : summaries) {
+        long partEnd = partStart + part.getSize();
+        if (partEnd > indexedLength) {
+          GetObjectRequest request = new GetObjectRequest(bucketName, key).withRange(Math.max(partStart, indexedLength), partEnd - 1);
+          byte[] bytes;
+          try (S3Object o = s3.getObject(request); InputStream in = o.getObjectContent()) {
+            bytes = in.readAllBytes();
+          }
+          ByteBuffer entries = builder.append(bytes, 0, bytes.length, part.getLastModified().getTime());
+          indexEntries.write(entries.array(), 0, entries.limit());
+        }
+        partStart = partEnd;
+      }
+      uploadIndex();
+      return partStart;
     }
     
     @Override
     public void write(int b) throws IOException {
-      // Warning: highly inefficient. Always write arrays.
-      byte[] bytesToCopy = new byte[]{(byte) b};
-      write(bytesToCopy, 0, 1);
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+    
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+      if (closed) throw new IOException("Stream closed");
+      if (buffer.size() == 0 && uploadId == null) pendingSince = System.currentTimeMillis();
+      buffer.write(b, off, len);
+      ByteBuffer entries = index.append(b, off, len, System.currentTimeMillis());
+      indexEntries.write(entries.array(), 0, entries.limit());
+      if (buffer.size() >= partSize) {
+        try {
+          uploadPart();
+          // an upload cannot have more parts than this, continue with a new upload that copies this one
+          if (parts.size() >= MAX_PARTS - 1) completeUpload();
+        } catch (AmazonClientException e) {
+          throw new IOException(e);
+        }
+      }
     }
     
+    /**
+     * Does nothing: a part cannot be uploaded before it is full, see flushIfIdle.
+     */
     @Override
-    public void write(byte[] b, int off, int len) throws IOException {
-      byte[] bytesToCopy = new byte[len];
-      System.arraycopy(b, off, bytesToCopy, 0, len);
-      doUpload(s3Key, bytesToCopy);
+    public void flush() {
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+      if (closed) return;
+      closed = true;
+      openStreams.remove(this);
+      try {
+        completeUpload();
+      } catch (AmazonClientException e) {
+        throw new IOException(e);
+      } finally {
+        buffer = null;
+      }
+    }
+    
+    private synchronized void flushIfIdle(long now) throws IOException {
+      if (closed || (buffer.size() == 0 && uploadId == null) || now - pendingSince < flushInterval) return;
+      try {
+        completeUpload();
+      } catch (AmazonClientException e) {
+        throw new IOException(e);
+      }
+    }
+    
+    private void startUpload() throws IOException {
+      List<PartETag> parts = new ArrayList<>();
+      long length = s3.doesObjectExist(bucketName, key) ? s3.getObjectMetadata(bucketName, key).getContentLength() : 0;
+      if (length > 0 && length < MIN_PART_SIZE) {
+        // too small to copy as a part: prepend it to the buffer instead
+        PartBuffer prefixed = new PartBuffer((int) length + buffer.size());
+        prefixed.write(getContent(key));
+        buffer.writeTo(prefixed);
+        buffer = prefixed;
+      }
+      
+      String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key, createMetadata())).getUploadId();
+      if (length >= MIN_PART_SIZE) {
+        // copy parts must be at least 5 MB as well, except the last one
+        int copyParts = (int) ((length + MAX_COPY_PART_SIZE - 1) / MAX_COPY_PART_SIZE);
+        long copyPartSize = (length + copyParts - 1) / copyParts;
+        for (long firstByte = 0; firstByte < length; firstByte += copyPartSize) {
+          parts.add(s3.copyPart(new CopyPartRequest()
+            .withSourceBucketName(bucketName)
+            .withSourceKey(key)
+            .withDestinationBucketName(bucketName)
+            .withDestinationKey(key)
+            .withUploadId(uploadId)
+            .withPartNumber(parts.size() + 1)
+            .withFirstByte(firstByte)
+            .withLastByte(Math.min(firstByte + copyPartSize, length) - 1)).getPartETag());
+        }
+      }
+      this.uploadId = uploadId;
+      this.parts = parts;
+    }
+    
+    private void uploadPart() throws IOException {
+      if (uploadId == null) startUpload();
+      if (log.isDebugEnabled()) {
+        log.debug(String.format("Writing log part to S3 [part: %d] [size: %d] [path: %s]", parts.size() + 1, buffer.size(), key));
+      }
+      try (InputStream in = buffer.toInputStream()) {
+        parts.add(s3.uploadPart(new UploadPartRequest()
+          .withBucketName(bucketName)
+          .withKey(key)
+          .withUploadId(uploadId)
+          .withPartNumber(parts.size() + 1)
+          .withInputStream(in)
+          .withPartSize(buffer.size())).getPartETag());
+      }
+      buffer.reset();
+    }
+    
+    /**
+     * Upload the buffer as the last part and complete the upload, or abort it if it has no parts.
+     */
+    private void completeUpload() throws IOException {
+      if (buffer.size() > 0) uploadPart();
+      if (uploadId == null) return;
+      if (parts.isEmpty()) {
+        s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+      } else {
+        if (log.isDebugEnabled()) log.debug(String.format("Completing log upload to S3 [parts: %d] [path: %s]", parts.size(), key));
+        s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, parts));
+        uploadIndex();
+      }
+      uploadId = null;
+      parts = null;
+    }
+    
+    /**
+     * Store the index, which is small enough to be replaced as a whole.
+     */
+    private void uploadIndex() {
+      ObjectMetadata metadata = createMetadata();
+      metadata.setContentType("application/octet-stream");
+      metadata.setContentLength(indexEntries.size());
+      s3.putObject(bucketName, key + LogIndex.SUFFIX, new ByteArrayInputStream(indexEntries.toByteArray()), metadata);
     }
   }
 }
@@ -0,0 +1,54 @@
+package eu.openanalytics.containerproxy.log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Writes container output of which every line starts with an RFC 3339 timestamp and a space (as returned by Docker and
+ * Kubernetes when timestamps are requested), without the timestamps, and skips the lines that were written before.
+ */
+public class TimestampedOutput {
+  
+  /**
+   * @param bytes      The output, one or more lines.
+   * @param offset     The start of the output in bytes.
+   * @param length     The length of the output.
+   * @param since      The time of the last line that was written before, or null.
+   * @param incomplete True to write a last line that does not end with a newline, false to skip it (e.g. because
+   *                   it was cut off by a limit, and will be read again).
+   * @param out        The stream to write the lines to.
+   * @return The time of the last line that was written, or since if no line was written.
+   */
+  public static Instant write(byte[] bytes, int offset, int length, Instant since, boolean incomplete, OutputStream out) throws IOException {
+    Instant last = since;
+    int end = offset + length;
+    int start = offset;
+    while (start < end) {
+      int newline = start;
+      while (newline < end && bytes[newline] != '\n') newline++;
+      if (newline == end && !incomplete) break;
+      int lineEnd = newline < end ? newline + 1 : end;
+      
+      int space = start;
+      while (space < lineEnd && bytes[space] != ' ') space++;
+      Instant timestamp = null;
+      try {
+        if (space < lineEnd) timestamp = Instant.parse(new String(bytes, start, space - start, StandardCharsets.US_ASCII));
+      } catch (DateTimeParseException e) {
+        // not a timestamp, write the line as it is
+      }
+      if (timestamp == null) {
+        out.write(bytes, start, lineEnd - start);
+      } else if (since == null || timestamp.isAfter(since)) {
+        out.write(bytes, space + 1, lineEnd - space - 1);
+        if (last == null || timestamp.isAfter(last)) last = timestamp;
+      }
+      start = lineEnd;
+    }
+    return last;
+  }
+  
+}
@@ -5,6 +5,7 @@ import eu.openanalytics.containerproxy.model.spec.ContainerSpec;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -13,9 +14,18 @@ public class Container {
   @Getter @Setter private String id;
   @Getter @Setter private ContainerSpec spec;
   @Setter private Map<String, Object> parameters = new HashMap<>();
+  @Setter private Duration startupTime;
   
   @JsonIgnore
   public Map<String, Object> getParameters() {
     return parameters;
   }
+  
+  /**
+   * @return The time it took the backend to start this container (until it was ready), or null if unknown.
+   */
+  @JsonIgnore
+  public Duration getStartupTime() {
+    return startupTime;
+  }
 }
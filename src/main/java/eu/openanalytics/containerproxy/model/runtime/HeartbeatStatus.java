@@ -3,10 +3,13 @@ package eu.openanalytics.containerproxy.model.runtime;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public class HeartbeatStatus {
   @Getter private long startRecordTimestamp;
   @Getter @Setter private long lastRecordTimestamp;
-  @Getter @Setter private int totalPayloadLength;
+  // updated from the IO threads of all websocket connections of the proxy
+  private final AtomicLong totalPayloadLength = new AtomicLong();
   @Getter private int terminateCounter;
   
   public HeartbeatStatus() {
@@ -14,13 +17,21 @@ public class HeartbeatStatus {
     this.lastRecordTimestamp = this.startRecordTimestamp;
   }
   
+  public long getTotalPayloadLength() {
+    return totalPayloadLength.get();
+  }
+  
+  public void addPayloadLength(long length) {
+    totalPayloadLength.addAndGet(length);
+  }
+  
   public void increaseCounter() {
     terminateCounter++;
   }
   
   public void clearAll() {
     startRecordTimestamp = System.currentTimeMillis();
-    totalPayloadLength = 0;
+    totalPayloadLength.set(0);
     terminateCounter = 0;
   }
 }
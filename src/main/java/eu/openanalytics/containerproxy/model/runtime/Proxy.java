@@ -1,5 +1,6 @@
 package eu.openanalytics.containerproxy.model.runtime;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import eu.openanalytics.containerproxy.model.spec.ProxySpec;
 import lombok.Getter;
 import lombok.Setter;
@@ -20,4 +21,10 @@ public class Proxy {
   @Getter @Setter private String namespace;
   @Getter @Setter private List<Container> containers = new ArrayList<>();
   @Getter @Setter private Map<String, URI> targets = new HashMap<>();
+  private final ProxyActivity activity = new ProxyActivity();
+  
+  @JsonIgnore
+  public ProxyActivity getActivity() {
+    return activity;
+  }
 }
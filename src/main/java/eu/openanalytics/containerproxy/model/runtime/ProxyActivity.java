@@ -0,0 +1,24 @@
+package eu.openanalytics.containerproxy.model.runtime;
+
+/**
+ * Activity record of a single proxy, created together with the proxy.
+ * <p>
+ * It is updated on every proxied HTTP response, so recording a heartbeat is a single volatile write
+ * which is skipped entirely when the timestamp did not advance.
+ */
+public class ProxyActivity {
+  
+  private volatile long lastHeartbeatTimestamp;
+  
+  public void heartbeat() {
+    long now = System.currentTimeMillis();
+    if (now != lastHeartbeatTimestamp) lastHeartbeatTimestamp = now;
+  }
+  
+  /**
+   * @return The timestamp of the last heartbeat, or 0 if no heartbeat was received yet.
+   */
+  public long getLastHeartbeatTimestamp() {
+    return lastHeartbeatTimestamp;
+  }
+}
@@ -0,0 +1,33 @@
+package eu.openanalytics.containerproxy.model.spec;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The cache of the static assets of the containers of a spec, shared by all proxies of the spec that run the same
+ * images. The size of the cache is set with proxy.asset-cache.* (see AssetCache).
+ */
+public class AssetCacheSpec {
+  /**
+   * Cache the static assets of this spec.
+   */
+  @Getter @Setter private boolean enabled;
+  /**
+   * Ant-style patterns of the paths (relative to the app) that may be cached, by default common static files.
+   * Responses are only cached if the container allows it (see defaultTtl).
+   */
+  @Getter @Setter private List<String> paths;
+  /**
+   * Seconds that a response without max-age or s-maxage is cached, 0 to only cache responses with an explicit lifetime.
+   */
+  @Getter @Setter private int defaultTtl;
+  
+  public void copy(AssetCacheSpec target) {
+    target.setEnabled(enabled);
+    if (paths != null) target.setPaths(new ArrayList<>(paths));
+    target.setDefaultTtl(defaultTtl);
+  }
+}
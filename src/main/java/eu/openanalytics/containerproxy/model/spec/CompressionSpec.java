@@ -0,0 +1,37 @@
+package eu.openanalytics.containerproxy.model.spec;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The compression of the responses of the containers of a spec.
+ * Settings that are not set fall back to proxy.compression.* (see ResponseCompression).
+ */
+public class CompressionSpec {
+  /**
+   * Compress the responses that the container did not compress itself.
+   */
+  @Getter @Setter private Boolean enabled;
+  /**
+   * The media types (without parameters) of the responses that are compressed.
+   */
+  @Getter @Setter private List<String> mimeTypes;
+  /**
+   * The minimum size in bytes of a response with a known length to be compressed.
+   */
+  @Getter @Setter private Integer minSize;
+  /**
+   * The deflate level, from 1 (fastest) to 9 (smallest).
+   */
+  @Getter @Setter private Integer level;
+  
+  public void copy(CompressionSpec target) {
+    target.setEnabled(enabled);
+    if (mimeTypes != null) target.setMimeTypes(new ArrayList<>(mimeTypes));
+    target.setMinSize(minSize);
+    target.setLevel(level);
+  }
+}
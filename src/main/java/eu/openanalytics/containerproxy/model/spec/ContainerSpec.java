@@ -10,6 +10,12 @@ import java.util.stream.Collectors;
 
 public class ContainerSpec {
   
+  @Getter @Setter private String name;
+  /**
+   * Names of the containers of the same proxy that must be started before this one.
+   * When containers are started sequentially (see proxy.container-start-mode), they are started in that order.
+   */
+  @Getter @Setter private String[] dependsOn;
   @Getter @Setter private String image;
   @Getter @Setter private String[] cmd;
   @Getter @Setter private Map<String, String> env = new HashMap<>();
@@ -52,7 +58,16 @@ public class ContainerSpec {
     }
   }
   
+  /**
+   * Add a runtime label, or overwrite its value if it was already added.
+   */
+  public void replaceRuntimeLabel(String key, Boolean safe, String value) {
+    runtimeLabels.put(key, Pair.of(safe, value));
+  }
+  
   public void copy(ContainerSpec target) {
+    target.setName(name);
+    if (dependsOn != null) target.setDependsOn(Arrays.copyOf(dependsOn, dependsOn.length));
     target.setImage(image);
     if (cmd != null) target.setCmd(Arrays.copyOf(cmd, cmd.length));
     if (env != null) {
@@ -28,6 +28,20 @@ public class ProxySpec {
   @Getter @Setter private List<String> kubernetesAdditionalManifests = new ArrayList<>();
   @Getter @Setter private List<SubApplicationSpec> subApps;
   @Getter @Setter private String defaultTutorialLink;
+  /**
+   * The number of proxies of this spec that are started ahead of time, see WarmPoolService.
+   * Only used if userEnv is false: a pooled proxy is started before its user is known.
+   */
+  @Getter @Setter private int warmPoolSize;
+  /**
+   * False to start the containers without the environment that identifies the user (SHINYPROXY_USERNAME,
+   * SHINYPROXY_USERGROUPS and the values added by the authentication backend).
+   */
+  @Getter @Setter private boolean userEnv = true;
+  @Getter @Setter private UpstreamSpec upstream;
+  @Getter @Setter private AssetCacheSpec assetCache;
+  @Getter @Setter private CompressionSpec compression;
+  @Getter @Setter private SharedSpec shared;
   
   public void copy(ProxySpec target) {
     target.setId(id);
@@ -35,12 +49,34 @@ public class ProxySpec {
     target.setDescription(description);
     target.setLogoURL(logoURL);
     target.setDefaultTutorialLink(defaultTutorialLink);
+    target.setWarmPoolSize(warmPoolSize);
+    target.setUserEnv(userEnv);
     
     if (accessControl != null) {
       if (target.getAccessControl() == null) target.setAccessControl(new ProxyAccessControl());
       accessControl.copy(target.getAccessControl());
     }
     
+    if (upstream != null) {
+      if (target.getUpstream() == null) target.setUpstream(new UpstreamSpec());
+      upstream.copy(target.getUpstream());
+    }
+    
+    if (assetCache != null) {
+      if (target.getAssetCache() == null) target.setAssetCache(new AssetCacheSpec());
+      assetCache.copy(target.getAssetCache());
+    }
+    
+    if (compression != null) {
+      if (target.getCompression() == null) target.setCompression(new CompressionSpec());
+      compression.copy(target.getCompression());
+    }
+    
+    if (shared != null) {
+      if (target.getShared() == null) target.setShared(new SharedSpec());
+      shared.copy(target.getShared());
+    }
+    
     if (containerSpecs != null) {
       if (target.getContainerSpecs() == null) target.setContainerSpecs(new ArrayList<>());
       for (ContainerSpec spec : containerSpecs) {
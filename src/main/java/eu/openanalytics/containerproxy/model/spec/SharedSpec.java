@@ -0,0 +1,30 @@
+package eu.openanalytics.containerproxy.model.spec;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Serve all users of a spec from a shared, autoscaled pool of replicas instead of a proxy per user,
+ * see SharedProxyService. Only suitable for apps that do not keep per-user state in the container.
+ */
+public class SharedSpec {
+  @Getter @Setter private boolean enabled;
+  @Getter @Setter private int minReplicas = 1;
+  @Getter @Setter private int maxReplicas = 1;
+  /**
+   * The number of active sessions that a single replica is meant to serve.
+   */
+  @Getter @Setter private int sessionsPerReplica = 50;
+  /**
+   * Add a replica when the mean time of the requests to the pool exceeds this many milliseconds, 0 to ignore latency.
+   */
+  @Getter @Setter private long maxLatency;
+  
+  public void copy(SharedSpec target) {
+    target.setEnabled(enabled);
+    target.setMinReplicas(minReplicas);
+    target.setMaxReplicas(maxReplicas);
+    target.setSessionsPerReplica(sessionsPerReplica);
+    target.setMaxLatency(maxLatency);
+  }
+}
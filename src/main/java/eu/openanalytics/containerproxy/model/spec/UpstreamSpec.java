@@ -0,0 +1,45 @@
+package eu.openanalytics.containerproxy.model.spec;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * The connections from the proxy to the containers of a spec.
+ * Settings that are not set fall back to proxy.upstream.* (see ProxyMappingManager).
+ */
+public class UpstreamSpec {
+  /**
+   * The maximum number of connections per IO thread to a single target.
+   */
+  @Getter @Setter private Integer connectionsPerThread;
+  /**
+   * The number of idle connections per IO thread that are kept open beyond the ttl.
+   */
+  @Getter @Setter private Integer softMaxConnectionsPerThread;
+  /**
+   * The number of requests that may wait for a connection when all connections are in use.
+   */
+  @Getter @Setter private Integer maxQueueSize;
+  /**
+   * Seconds after which idle connections above the soft maximum are closed, -1 to keep them open.
+   */
+  @Getter @Setter private Integer ttl;
+  /**
+   * Seconds before a target that failed to respond is tried again.
+   */
+  @Getter @Setter private Integer problemServerRetry;
+  /**
+   * Upgrade the connections to HTTP/2 (h2c), for containers that support it.
+   * Websockets cannot be proxied over HTTP/2, so this is only useful for apps that do not use them.
+   */
+  @Getter @Setter private Boolean http2;
+  
+  public void copy(UpstreamSpec target) {
+    target.setConnectionsPerThread(connectionsPerThread);
+    target.setSoftMaxConnectionsPerThread(softMaxConnectionsPerThread);
+    target.setMaxQueueSize(maxQueueSize);
+    target.setTtl(ttl);
+    target.setProblemServerRetry(problemServerRetry);
+    target.setHttp2(http2);
+  }
+}
@@ -1,5 +1,7 @@
 package eu.openanalytics.containerproxy.service;
 
+import eu.openanalytics.containerproxy.event.ProxyStartEvent;
+import eu.openanalytics.containerproxy.event.ProxyStopEvent;
 import eu.openanalytics.containerproxy.model.runtime.HeartbeatStatus;
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
 import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
@@ -7,10 +9,16 @@ import eu.openanalytics.containerproxy.spec.EngagementProperties;
 import eu.openanalytics.containerproxy.util.ChannelActiveListener;
 import eu.openanalytics.containerproxy.util.DelegatingStreamSinkConduit;
 import eu.openanalytics.containerproxy.util.DelegatingStreamSourceConduit;
+import eu.openanalytics.containerproxy.util.PathPrefixFilter;
+import eu.openanalytics.containerproxy.util.TimerWheel;
+import eu.openanalytics.containerproxy.util.WebSocketFrameParser;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.server.protocol.http.HttpServerConnection;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.cloud.context.scope.refresh.RefreshScopeRefreshedEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
 import org.xnio.StreamConnection;
@@ -18,17 +26,23 @@ import org.xnio.conduits.ConduitStreamSinkChannel;
 import org.xnio.conduits.ConduitStreamSourceChannel;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import javax.inject.Inject;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Keeps track of the activity of proxies and releases them when they reach their max-age,
+ * stop receiving HTTP requests or when their websocket connections become idle.
+ * <p>
+ * All deadlines (max-age, HTTP inactivity, websocket idle checks and websocket pings) are registered
+ * with a single {@link TimerWheel}, so the work done per tick depends on the number of deadlines that expire,
+ * not on the number of proxies and connections.
+ */
 @Service
 public class HeartbeatService {
   
@@ -36,16 +50,20 @@ public class HeartbeatService {
   private static final String PROP_RATE = "proxy.heartbeat-rate";
   private static final String PROP_TIMEOUT = "proxy.heartbeat-timeout";
   
+  private static final long TIMER_TICK_MS = 100;
+  private static final long WEBSOCKET_WRAP_DELAY_MS = 3000;
+  private static final String FILEBROWSER_SPEC_ID = "filebrowser";
+  
   private static final byte[] WEBSOCKET_PING = {(byte) 0b10001001, (byte) 0b00000000};
-  private static final byte WEBSOCKET_PONG = (byte) 0b10001010;
   
   private final Logger log = LogManager.getLogger(HeartbeatService.class);
   
-  private final Map<String, Long> proxyHeartbeats = Collections.synchronizedMap(new HashMap<>());
-  private final Map<String, HeartbeatStatus> websocketHeartbeats = Collections.synchronizedMap(new HashMap<>());
-  private final ScheduledExecutorService heartbeatExecutor = Executors.newScheduledThreadPool(3);
+  private final Map<String, HeartbeatStatus> websocketHeartbeats = new ConcurrentHashMap<>();
+  private final Map<String, ProxyDeadlines> proxyDeadlines = new ConcurrentHashMap<>();
+  private final TimerWheel timerWheel = new TimerWheel(HeartbeatService.class.getSimpleName(), TIMER_TICK_MS, TimeUnit.MILLISECONDS);
   
   private volatile boolean enabled;
+  private volatile PathPrefixFilter filterPathPrefixes = PathPrefixFilter.compile(null);
   
   private final ProxyService proxyService;
   private final Environment environment;
@@ -53,9 +71,11 @@ public class HeartbeatService {
   @Resource
   private EngagementProperties engagementProperties;
   
-  public HeartbeatService(ProxyService proxyService, Environment environment) {
+  public HeartbeatService(ProxyService proxyService, Environment environment, MeterRegistry registry) {
     this.proxyService = proxyService;
     this.environment = environment;
+    // the deadlines (max-age, inactivity, idle checks and pings) that are currently scheduled
+    registry.gauge("heartbeatScheduledDeadlines", timerWheel, TimerWheel::size);
   }
   
   @PostConstruct
@@ -66,9 +86,18 @@ public class HeartbeatService {
       enabled = environment.getProperty(PROP_RATE) != null || environment.getProperty(PROP_TIMEOUT) != null;
     }
     
-    Thread cleanupThread = new Thread(new InactiveProxyKiller(), InactiveProxyKiller.class.getSimpleName());
-    cleanupThread.setDaemon(true);
-    cleanupThread.start();
+    compileFilterPath();
+    timerWheel.start();
+  }
+  
+  @PreDestroy
+  public void shutdown() {
+    timerWheel.stop();
+  }
+  
+  @EventListener(RefreshScopeRefreshedEvent.class)
+  public void compileFilterPath() {
+    filterPathPrefixes = PathPrefixFilter.compile(engagementProperties.getFilterPath());
   }
   
   public void setEnabled(boolean enabled) {
@@ -80,16 +109,39 @@ public class HeartbeatService {
   }
   
   public Map<String, Long> getProxyHeartbeats() {
+    Map<String, Long> proxyHeartbeats = new HashMap<>();
+    for (Proxy proxy : proxyService.getProxies(null, true)) {
+      long lastHeartbeat = proxy.getActivity().getLastHeartbeatTimestamp();
+      if (lastHeartbeat > 0) proxyHeartbeats.put(proxy.getId(), lastHeartbeat);
+    }
     return proxyHeartbeats;
   }
   
-  public void attachHeartbeatChecker(HttpServerExchange exchange, String proxyId) {
+  @EventListener
+  public void onProxyStart(ProxyStartEvent event) {
+    Proxy proxy = proxyService.getProxy(event.getProxyId());
+    if (proxy == null || proxy.getSpec().getId().equals(FILEBROWSER_SPEC_ID)) return;
+    
+    ProxyDeadlines deadlines = new ProxyDeadlines(proxy);
+    ProxyDeadlines previous = proxyDeadlines.put(proxy.getId(), deadlines);
+    if (previous != null) previous.cancel();
+    deadlines.start();
+  }
+  
+  @EventListener
+  public void onProxyStop(ProxyStopEvent event) {
+    ProxyDeadlines deadlines = proxyDeadlines.remove(event.getProxyId());
+    if (deadlines != null) deadlines.cancel();
+    websocketHeartbeats.remove(event.getProxyId());
+  }
+  
+  public void attachHeartbeatChecker(HttpServerExchange exchange, Proxy proxy) {
     if (exchange.isUpgrade()) {
       // For websockets, attach a ping-pong listener to the underlying TCP channel.
-      HeartbeatConnector connector = new HeartbeatConnector(proxyId);
+      HeartbeatConnector connector = new HeartbeatConnector(proxy);
       // Delay the wrapping, because Undertow will make changes to the channel while the upgrade is being performed.
       HttpServerConnection httpConn = (HttpServerConnection) exchange.getConnection();
-      heartbeatExecutor.schedule(() -> connector.wrapChannels(httpConn.getChannel()), 3000, TimeUnit.MILLISECONDS);
+      timerWheel.schedule(() -> connector.wrapChannels(httpConn.getChannel()), WEBSOCKET_WRAP_DELAY_MS, TimeUnit.MILLISECONDS);
     } else {
       // request URI prefix filter
       // exchange.getRequestPath() == /proxy_endpoint/<proxy_uuid>/<real-path-in-container>
@@ -97,25 +149,12 @@ public class HeartbeatService {
       // e.g access http://<domain-name>/<spring-context-path>/app/app_name/static/js/example.js
       // exchange.getRequestPath() == /proxy_endpoint/<proxy-uuid>/static/js/example.js
       // exchange.getRelativePath() == /static/js/example.js
-      for (String path : engagementProperties.getFilterPath()) {
-        String relativeRequestPath = exchange.getRelativePath();
-        log.debug("Client requests {} to proxy {}", relativeRequestPath, proxyId);
-        if (relativeRequestPath.startsWith(path)) {
-          log.debug("Matched prefix {} of proxy {}", path, proxyId);
-          return;
-        }
-      }
+      if (filterPathPrefixes.matches(exchange.getRelativePath())) return;
       // For regular HTTP requests, just trigger one heartbeat.
-      heartbeatReceived(proxyId);
+      proxy.getActivity().heartbeat();
     }
   }
   
-  private void heartbeatReceived(String proxyId) {
-    Proxy proxy = proxyService.getProxy(proxyId);
-    if (log.isDebugEnabled()) log.debug("Heartbeat received for proxy " + proxyId);
-    if (proxy != null) proxyHeartbeats.put(proxyId, System.currentTimeMillis());
-  }
-  
   private long getHeartbeatRate() {
     return Long.parseLong(environment.getProperty(PROP_RATE, "10000"));
   }
@@ -124,12 +163,24 @@ public class HeartbeatService {
     return Long.parseLong(environment.getProperty(PROP_TIMEOUT, "60000"));
   }
   
+  private void releaseProxy(Proxy proxy, long silence) {
+    ProxyDeadlines deadlines = proxyDeadlines.remove(proxy.getId());
+    if (deadlines != null) deadlines.cancel();
+    websocketHeartbeats.remove(proxy.getId());
+    if (silence < 0) {
+      proxyService.stopProxy(proxy, true, true);
+    } else {
+      proxyService.stopProxy(proxy, true, true, silence);
+    }
+  }
+  
   private class HeartbeatConnector {
     
-    private final String proxyId;
+    private final Proxy proxy;
+    private final WebSocketFrameParser frameParser = new WebSocketFrameParser(this::onPayload, true);
     
-    public HeartbeatConnector(String proxyId) {
-      this.proxyId = proxyId;
+    public HeartbeatConnector(Proxy proxy) {
+      this.proxy = proxy;
     }
     
     private void wrapChannels(StreamConnection streamConn) {
@@ -141,10 +192,10 @@ public class HeartbeatService {
       sinkChannel.setConduit(conduitWrapper);
       
       ConduitStreamSourceChannel sourceChannel = streamConn.getSourceChannel();
-      DelegatingStreamSourceConduit srcConduitWrapper = new DelegatingStreamSourceConduit(sourceChannel.getConduit(), data -> checkPong(data));
+      DelegatingStreamSourceConduit srcConduitWrapper = new DelegatingStreamSourceConduit(sourceChannel.getConduit(), frameParser::parse);
       sourceChannel.setConduit(srcConduitWrapper);
       
-      heartbeatExecutor.schedule(() -> sendPing(writeListener, streamConn), getHeartbeatRate(), TimeUnit.MILLISECONDS);
+      timerWheel.schedule(() -> sendPing(writeListener, streamConn), getHeartbeatRate(), TimeUnit.MILLISECONDS);
     }
     
     private void sendPing(ChannelActiveListener writeListener, StreamConnection streamConn) {
@@ -153,7 +204,7 @@ public class HeartbeatService {
         // therefore we don't send a ping now to not cause collisions
         
         // reschedule ping
-        heartbeatExecutor.schedule(() -> sendPing(writeListener, streamConn), getHeartbeatRate(), TimeUnit.MILLISECONDS);
+        timerWheel.schedule(() -> sendPing(writeListener, streamConn), getHeartbeatRate(), TimeUnit.MILLISECONDS);
         // mark as we received a heartbeat
         // heartbeatReceived(proxyId);
         return;
@@ -167,128 +218,175 @@ public class HeartbeatService {
         // Ignore failure, keep trying as long as the stream connection is valid.
       }
       
-      heartbeatExecutor.schedule(() -> sendPing(writeListener, streamConn), getHeartbeatRate(), TimeUnit.MILLISECONDS);
+      timerWheel.schedule(() -> sendPing(writeListener, streamConn), getHeartbeatRate(), TimeUnit.MILLISECONDS);
     }
     
-    private void checkPong(byte[] response) {
-      if (!(response.length > 0)) return;
-      if (response[0] == WEBSOCKET_PONG) {
-        // ignore websocket PING PONG (native heart beat)
-        // heartbeatReceived(proxyId);
+    private void onPayload(int opcode, long length) {
+      // only count application data, ignore websocket PING PONG (native heart beat) and close frames
+      if (opcode != WebSocketFrameParser.OPCODE_TEXT && opcode != WebSocketFrameParser.OPCODE_BINARY) return;
+      
+      // if a proxy is terminated manually before status block created, stop counting.
+      if (proxy.getStatus() == ProxyStatus.Stopping || proxy.getStatus() == ProxyStatus.Stopped) {
+        websocketHeartbeats.remove(proxy.getId());
         return;
       }
       
-      // payload length analyzer
-      // https://datatracker.ietf.org/doc/html/rfc6455#section-5.2
-      int payloadLength = response[1] & 0x7F;
-      if (payloadLength == 126) {
-        payloadLength = ByteBuffer.wrap(new byte[]{response[2], response[3]}).getShort() & 0xFFFF;
-      } else if (payloadLength == 127) {
-        // We don't calculate the exact payload length of such packet because its payload length greater than 65535 bytes.
-        // Calculating it is meaningless.
-        // If you really want to calculate it, use BigInteger(1, <byte array of response[2] to response[9]>)
-        payloadLength = 65535 * 2;
+      HeartbeatStatus heartbeatStatus = websocketHeartbeats.get(proxy.getId());
+      if (heartbeatStatus == null) {
+        // only create the status block while the proxy is still registered, otherwise it would never be removed
+        if (proxyService.getProxy(proxy.getId()) != proxy) return;
+        heartbeatStatus = websocketHeartbeats.computeIfAbsent(proxy.getId(), k -> new HeartbeatStatus());
+        ProxyDeadlines deadlines = proxyDeadlines.get(proxy.getId());
+        if (deadlines != null) deadlines.startWebsocketIdleCheck();
+      }
+      heartbeatStatus.addPayloadLength(length);
+    }
+  }
+  
+  /**
+   * The deadlines of a single proxy that is up.
+   */
+  private class ProxyDeadlines {
+    
+    private final Proxy proxy;
+    private TimerWheel.Timeout maxAgeTimeout;
+    private TimerWheel.Timeout inactivityTimeout;
+    private TimerWheel.Timeout websocketIdleTimeout;
+    private boolean cancelled;
+    
+    private ProxyDeadlines(Proxy proxy) {
+      this.proxy = proxy;
+    }
+    
+    private synchronized void start() {
+      long now = System.currentTimeMillis();
+      scheduleMaxAge(proxy.getStartupTimestamp() + engagementProperties.getMaxAge().toMillis() - now);
+      scheduleInactivity(proxy.getStartupTimestamp() + getHeartbeatTimeout() - now);
+    }
+    
+    private synchronized void startWebsocketIdleCheck() {
+      if (cancelled || websocketIdleTimeout != null) return;
+      websocketIdleTimeout = timerWheel.schedule(this::checkWebsocketIdle, getHeartbeatRate(), TimeUnit.MILLISECONDS);
+    }
+    
+    private synchronized void cancel() {
+      cancelled = true;
+      if (maxAgeTimeout != null) maxAgeTimeout.cancel();
+      if (inactivityTimeout != null) inactivityTimeout.cancel();
+      if (websocketIdleTimeout != null) websocketIdleTimeout.cancel();
+    }
+    
+    private synchronized void scheduleMaxAge(long delay) {
+      if (!cancelled) maxAgeTimeout = timerWheel.schedule(this::checkMaxAge, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    private synchronized void scheduleInactivity(long delay) {
+      if (!cancelled) inactivityTimeout = timerWheel.schedule(this::checkInactivity, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    private synchronized void scheduleWebsocketIdle(long delay) {
+      if (!cancelled) websocketIdleTimeout = timerWheel.schedule(this::checkWebsocketIdle, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * @return False if the proxy is no longer running, in which case its deadlines are dropped.
+     */
+    private boolean isActive() {
+      if (proxyService.getProxy(proxy.getId()) == proxy && proxy.getStatus() == ProxyStatus.Up) return true;
+      proxyDeadlines.remove(proxy.getId(), this);
+      cancel();
+      return false;
+    }
+    
+    private void checkMaxAge() {
+      if (!isActive()) return;
+      long maxAge = engagementProperties.getMaxAge().toMillis();
+      long remaining = proxy.getStartupTimestamp() + maxAge - System.currentTimeMillis();
+      if (!enabled || remaining >= 0) {
+        // disabled, or the max-age was increased by a configuration refresh
+        scheduleMaxAge(Math.max(remaining, getHeartbeatRate()));
+        return;
       }
       
-      Proxy proxy = proxyService.getProxy(proxyId);
-      
-      // if a proxy is terminated manually before status block created, stop checkPong.
-      if (proxy == null || (proxy.getStatus() == ProxyStatus.Stopping || proxy.getStatus() == ProxyStatus.Stopped)) {
-        websocketHeartbeats.remove(proxyId);
+      // reached max-age limitation
+      log.info(String.format("Releasing timeout proxy [user: %s] [spec: %s] [id: %s] [duration: %dhr]", proxy.getUserId(), proxy.getSpec().getId(), proxy.getId(), engagementProperties.getMaxAge().toHours()));
+      releaseProxy(proxy, -1);
+    }
+    
+    private void checkInactivity() {
+      if (!isActive()) return;
+      long heartbeatTimeout = getHeartbeatTimeout();
+      if (!enabled || !engagementProperties.isEnabled()) {
+        scheduleInactivity(getHeartbeatRate());
         return;
       }
+      // proxies with websocket traffic are released by the websocket idle check
+      if (websocketHeartbeats.containsKey(proxy.getId())) return;
       
-      HeartbeatStatus heartbeatStatus = websocketHeartbeats.computeIfAbsent(proxyId, k -> new HeartbeatStatus());
-      int lastLength = heartbeatStatus.getTotalPayloadLength();
-      heartbeatStatus.setTotalPayloadLength(lastLength + payloadLength);
+      long lastHeartbeat = proxy.getActivity().getLastHeartbeatTimestamp();
+      if (lastHeartbeat == 0) lastHeartbeat = proxy.getStartupTimestamp();
+      long proxySilence = System.currentTimeMillis() - lastHeartbeat;
+      if (proxySilence > heartbeatTimeout) {
+        log.info("Releasing {} proxy [user: {}] [spec: {}] [id: {}] [silence: {}ms]",
+          "inactive",
+          proxy.getUserId(),
+          proxy.getSpec().getId(),
+          proxy.getId(),
+          proxySilence);
+        releaseProxy(proxy, proxySilence);
+      } else {
+        // a heartbeat was received in the meantime, check again when it expires
+        log.debug("proxy {} received HTTP requests {} ms ago, threshold={} ms", proxy.getId(), proxySilence, heartbeatTimeout);
+        scheduleInactivity(heartbeatTimeout - proxySilence + 1);
+      }
     }
-  }
-  
-  private class InactiveProxyKiller implements Runnable {
-    @Override
-    public void run() {
+    
+    private void checkWebsocketIdle() {
+      if (!isActive()) return;
       long cleanupInterval = getHeartbeatRate();
       long heartbeatTimeout = getHeartbeatTimeout();
+      HeartbeatStatus heartbeatStatus = websocketHeartbeats.get(proxy.getId());
+      if (!enabled || !engagementProperties.isEnabled() || heartbeatStatus == null) {
+        scheduleWebsocketIdle(cleanupInterval);
+        return;
+      }
       
-      while (true) {
-        if (enabled) {
-          try {
-            long currentTimestamp = System.currentTimeMillis();
-            for (Proxy proxy : proxyService.getProxies(null, true)) {
-              if (proxy.getStatus() != ProxyStatus.Up) continue;
-              else if (proxy.getSpec().getId().equals("filebrowser")) continue;
-              
-              // reached max-age limitation
-              if (currentTimestamp - proxy.getStartupTimestamp() > engagementProperties.getMaxAge().toMillis()) {
-                log.info(String.format("Releasing timeout proxy [user: %s] [spec: %s] [id: %s] [duration: %dhr]", proxy.getUserId(), proxy.getSpec().getId(), proxy.getId(), engagementProperties.getMaxAge().toHours()));
-                proxyHeartbeats.remove(proxy.getId());
-                websocketHeartbeats.remove(proxy.getId());
-                proxyService.stopProxy(proxy, true, true);
-                continue;
-              }
-              
-              // websocket idle termination
-              boolean isPureHttp = false;
-              boolean isIdled = false;
-              int idleRetryLimit = engagementProperties.getIdleRetry();
-              if (engagementProperties.isEnabled()) {
-                HeartbeatStatus heartbeatStatus = websocketHeartbeats.get(proxy.getId());
-                
-                // 230 bytes per second default (10% load, 2300 bytes/sec when working on vscode)
-                int threshold = engagementProperties.getThreshold();
-                
-                if (heartbeatStatus == null) {
-                  isPureHttp = true;
-                } else {
-                  long duration = currentTimestamp - heartbeatStatus.getStartRecordTimestamp();
-                  // idle
-                  double rate = heartbeatStatus.getTotalPayloadLength() / (duration / 1000.0);
-                  if (rate < threshold) {
-                    heartbeatStatus.increaseCounter();
-                    log.debug("proxy {} websocket idle detected ({}/{})! average speed={} bytes/sec, threshold={} bytes/sec", proxy.getId(), heartbeatStatus.getTerminateCounter(), idleRetryLimit, rate, threshold);
-                  }
-                  // active
-                  else {
-                    log.debug("proxy {} websocket active, average speed={} bytes/sec, threshold={} bytes/sec", proxy.getId(), rate, threshold);
-                    heartbeatStatus.clearAll();
-                  }
-                  
-                  // idle confirmed
-                  if (heartbeatStatus.getTerminateCounter() >= idleRetryLimit) {
-                    isIdled = true;
-                  }
-                  
-                  heartbeatStatus.setLastRecordTimestamp(System.currentTimeMillis());
-                }
-                
-                Long lastHeartbeat = proxyHeartbeats.get(proxy.getId());
-                if (lastHeartbeat == null) lastHeartbeat = proxy.getStartupTimestamp();
-                long proxySilence = currentTimestamp - lastHeartbeat;
-                if ((proxySilence > heartbeatTimeout) && (isPureHttp | isIdled)) {
-                  long silence = isPureHttp ? proxySilence : cleanupInterval * (heartbeatStatus.getTerminateCounter() - 1);
-                  log.info("Releasing {} proxy [user: {}] [spec: {}] [id: {}] [silence: {}ms]",
-                    isPureHttp ? "inactive" : "idled",
-                    proxy.getUserId(),
-                    proxy.getSpec().getId(),
-                    proxy.getId(),
-                    silence);
-                  
-                  proxyHeartbeats.remove(proxy.getId());
-                  websocketHeartbeats.remove(proxy.getId());
-                  proxyService.stopProxy(proxy, true, true, silence);
-                }
-                log.debug("proxy {} received HTTP requests {} ms ago, threshold={} ms", proxy.getId(), proxySilence, heartbeatTimeout);
-              }
-            }
-          } catch (Throwable t) {
-            log.error("Error in " + this.getClass().getSimpleName(), t);
-          }
-        }
-        try {
-          Thread.sleep(cleanupInterval);
-        } catch (InterruptedException e) {
-        }
+      long currentTimestamp = System.currentTimeMillis();
+      int idleRetryLimit = engagementProperties.getIdleRetry();
+      // 230 bytes per second default (10% load, 2300 bytes/sec when working on vscode)
+      int threshold = engagementProperties.getThreshold();
+      
+      long duration = currentTimestamp - heartbeatStatus.getStartRecordTimestamp();
+      // idle
+      double rate = heartbeatStatus.getTotalPayloadLength() / (duration / 1000.0);
+      if (rate < threshold) {
+        heartbeatStatus.increaseCounter();
+        log.debug("proxy {} websocket idle detected ({}/{})! average speed={} bytes/sec, threshold={} bytes/sec", proxy.getId(), heartbeatStatus.getTerminateCounter(), idleRetryLimit, rate, threshold);
+      }
+      // active
+      else {
+        log.debug("proxy {} websocket active, average speed={} bytes/sec, threshold={} bytes/sec", proxy.getId(), rate, threshold);
+        heartbeatStatus.clearAll();
+      }
+      heartbeatStatus.setLastRecordTimestamp(currentTimestamp);
+      
+      // idle confirmed
+      long lastHeartbeat = proxy.getActivity().getLastHeartbeatTimestamp();
+      if (lastHeartbeat == 0) lastHeartbeat = proxy.getStartupTimestamp();
+      long proxySilence = currentTimestamp - lastHeartbeat;
+      if (heartbeatStatus.getTerminateCounter() >= idleRetryLimit && proxySilence > heartbeatTimeout) {
+        long silence = cleanupInterval * (heartbeatStatus.getTerminateCounter() - 1);
+        log.info("Releasing {} proxy [user: {}] [spec: {}] [id: {}] [silence: {}ms]",
+          "idled",
+          proxy.getUserId(),
+          proxy.getSpec().getId(),
+          proxy.getId(),
+          silence);
+        releaseProxy(proxy, silence);
+        return;
       }
+      log.debug("proxy {} received HTTP requests {} ms ago, threshold={} ms", proxy.getId(), proxySilence, heartbeatTimeout);
+      scheduleWebsocketIdle(cleanupInterval);
     }
   }
 }
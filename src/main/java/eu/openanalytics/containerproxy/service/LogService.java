@@ -1,8 +1,13 @@
 package eu.openanalytics.containerproxy.service;
 
+import eu.openanalytics.containerproxy.log.ILogReader;
 import eu.openanalytics.containerproxy.log.ILogStorage;
+import eu.openanalytics.containerproxy.log.LogChunk;
+import eu.openanalytics.containerproxy.log.LogIndex;
 import eu.openanalytics.containerproxy.log.NoopLogStorage;
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.core.env.Environment;
@@ -11,25 +16,66 @@ import org.springframework.stereotype.Service;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 
+/**
+ * Collects the output of the containers of proxies into the log storage.
+ * <p>
+ * By default, the output is attached to: a thread per proxy blocks on the output of its container until the container
+ * stops. With proxy.container-log-collection set to pull, the output is instead read periodically by a fixed pool of
+ * proxy.container-log-pull.threads threads, for the backends that support it. Each log is read again after
+ * proxy.container-log-pull.min-interval if it had new output, otherwise the interval doubles up to
+ * proxy.container-log-pull.max-interval, so idle containers cost little and chatty containers cannot occupy the pool.
+ * <p>
+ * The number of logs that are being collected is published as containerLogActiveStreams, the bytes that were
+ * collected as containerLogBytesRead.
+ * <p>
+ * The collected logs can be read back without reading them from their start: the last lines (tail), the lines that
+ * were written in a time window (range, using the {@link LogIndex} of the log) or the lines after an offset (follow,
+ * polled by a client with the end offset of its previous read). A single read is limited to
+ * proxy.container-log-read-max-bytes.
+ */
 @Service
 public class LogService {
   
   private static final String PARAM_STREAMS = "streams";
+  private static final String STREAM_STDOUT = "stdout";
+  private static final String STREAM_STDERR = "stderr";
+  private static final int TAIL_BLOCK_SIZE = 64 * 1024;
   private final Logger log = LogManager.getLogger(LogService.class);
   final Environment environment;
   final ILogStorage logStorage;
+  private final MeterRegistry registry;
+  private final Map<String, PulledLog> pulledLogs = new ConcurrentHashMap<>();
+  private final AtomicInteger activeStreams = new AtomicInteger();
   private ExecutorService executor;
+  private ScheduledExecutorService puller;
+  private Counter bytesRead;
+  private long minPullInterval;
+  private long maxPullInterval;
+  private int readMaxBytes;
   private boolean loggingEnabled;
   
-  public LogService(Environment environment, ILogStorage logStorage) {
+  public LogService(Environment environment, ILogStorage logStorage, MeterRegistry registry) {
     this.environment = environment;
     this.logStorage = logStorage;
+    this.registry = registry;
   }
   
   @PostConstruct
@@ -43,6 +89,14 @@ public class LogService {
     
     if (isLoggingEnabled()) {
       executor = Executors.newCachedThreadPool();
+      if (environment.getProperty("proxy.container-log-collection", "attach").equalsIgnoreCase("pull")) {
+        puller = Executors.newScheduledThreadPool(environment.getProperty("proxy.container-log-pull.threads", Integer.class, 4));
+        minPullInterval = Duration.parse(environment.getProperty("proxy.container-log-pull.min-interval", "PT1S")).toMillis();
+        maxPullInterval = Duration.parse(environment.getProperty("proxy.container-log-pull.max-interval", "PT10S")).toMillis();
+      }
+      readMaxBytes = environment.getProperty("proxy.container-log-read-max-bytes", Integer.class, 1024 * 1024);
+      bytesRead = registry.counter("containerLogBytesRead");
+      registry.gauge("containerLogActiveStreams", activeStreams);
       log.info("Container logging enabled. Log files will be saved to " + logStorage.getStorageLocation());
     }
   }
@@ -50,12 +104,21 @@ public class LogService {
   @PreDestroy
   public void shutdown() {
     if (executor != null) executor.shutdown();
+    if (puller != null) puller.shutdown();
+    if (isLoggingEnabled()) logStorage.shutdown();
   }
   
   public boolean isLoggingEnabled() {
     return loggingEnabled;
   }
   
+  /**
+   * @return True if the output of proxies should be pulled with a log reader (see pullOutput), if the backend supports it.
+   */
+  public boolean isPullingEnabled() {
+    return puller != null;
+  }
+  
   public void attachToOutput(Proxy proxy, BiConsumer<OutputStream, OutputStream> outputAttacher) {
     if (!isLoggingEnabled()) return;
     
@@ -67,8 +130,13 @@ public class LogService {
         } else {
           proxy.getContainers().get(0).getParameters().put(PARAM_STREAMS, streams);
           if (log.isDebugEnabled()) log.debug("Container logging started for proxy " + proxy.getId());
-          // Note that this call will block until the container is stopped.
-          outputAttacher.accept(streams[0], streams[1]);
+          activeStreams.incrementAndGet();
+          try {
+            // Note that this call will block until the container is stopped.
+            outputAttacher.accept(new CountingOutputStream(streams[0]), new CountingOutputStream(streams[1]));
+          } finally {
+            activeStreams.decrementAndGet();
+          }
         }
       } catch (Exception e) {
         log.error("Failed to attach logging of proxy " + proxy.getId(), e);
@@ -77,9 +145,41 @@ public class LogService {
     });
   }
   
+  /**
+   * Periodically read the output of a proxy with the given reader, on the pool of the pulling threads, until the
+   * proxy is detached.
+   */
+  public void pullOutput(Proxy proxy, ILogReader logReader) {
+    if (!isPullingEnabled()) return;
+    
+    // registered before the first read, so a proxy that is detached before that read is never read
+    PulledLog pulledLog = new PulledLog(proxy, logReader);
+    pulledLogs.put(proxy.getId(), pulledLog);
+    activeStreams.incrementAndGet();
+    puller.execute(pulledLog);
+  }
+  
+  /**
+   * Read the output of a proxy that was not pulled yet, before its containers are stopped.
+   * Does nothing if the output of the proxy is attached to instead.
+   */
+  public void collectRemaining(Proxy proxy) {
+    PulledLog pulledLog = pulledLogs.get(proxy.getId());
+    if (pulledLog != null) pulledLog.pull();
+  }
+  
   public void detach(Proxy proxy) {
     if (!isLoggingEnabled()) return;
     
+    PulledLog pulledLog = pulledLogs.remove(proxy.getId());
+    if (pulledLog != null) {
+      pulledLog.stop();
+      activeStreams.decrementAndGet();
+      if (log.isDebugEnabled()) log.debug("Container logging ended for proxy " + proxy.getId());
+    }
+    
+    // e.g. the proxies of shared specs, which are served by the containers of a replica
+    if (proxy.getContainers().isEmpty()) return;
     OutputStream[] streams = (OutputStream[]) proxy.getContainers().get(0).getParameters().get(PARAM_STREAMS);
     if (streams == null || streams.length < 2) {
       log.warn("Cannot detach container logging: streams not found");
@@ -107,4 +207,236 @@ public class LogService {
     return null;
   }
   
+  /**
+   * @param stream stdout or stderr.
+   * @return The last complete lines of the log, or null if the log cannot be read.
+   */
+  public LogChunk tail(Proxy proxy, String stream, int lines) {
+    if (!isLoggingEnabled()) return null;
+    
+    try {
+      String path = getLogPath(proxy, stream);
+      if (path == null) return null;
+      
+      // read blocks backwards until they contain the start of the first line
+      long start = logStorage.getLogSize(path);
+      byte[] bytes = new byte[0];
+      int newlines = 0;
+      while (start > 0 && newlines <= lines && bytes.length < readMaxBytes) {
+        int length = (int) Math.min(Math.min(TAIL_BLOCK_SIZE, start), readMaxBytes - bytes.length);
+        start -= length;
+        byte[] block = logStorage.readLog(path, start, length);
+        for (byte b : block) {
+          if (b == '\n') newlines++;
+        }
+        byte[] joined = new byte[block.length + bytes.length];
+        System.arraycopy(block, 0, joined, 0, block.length);
+        System.arraycopy(bytes, 0, joined, block.length, bytes.length);
+        bytes = joined;
+      }
+      
+      int last = lastNewline(bytes, bytes.length) + 1;
+      int first = last;
+      for (int i = 0; i < lines && first > 0; i++) {
+        first = lastNewline(bytes, first - 1) + 1;
+      }
+      // not the start of a line, but the start of what was read
+      if (first == 0 && start > 0) first = indexOfNewline(bytes) + 1;
+      List<String> result = toLines(bytes, first, last);
+      return new LogChunk(result, start + first, start + last, result.size() < lines && start > 0);
+    } catch (IOException e) {
+      log.error("Failed to read logs of proxy " + proxy.getId(), e);
+    }
+    
+    return null;
+  }
+  
+  /**
+   * @param stream stdout or stderr.
+   * @return The lines that were written between the given times (in milliseconds since the epoch), with the
+   * precision of the index of the log, or null if the log cannot be read.
+   */
+  public LogChunk range(Proxy proxy, String stream, long from, long to) {
+    if (!isLoggingEnabled()) return null;
+    
+    try {
+      String path = getLogPath(proxy, stream);
+      if (path == null) return null;
+      
+      LogIndex index = logStorage.getLogIndex(path);
+      long size = logStorage.getLogSize(path);
+      long start = Math.min(index.getOffsetAtOrBefore(from), size);
+      long end = index.getOffsetAfter(to);
+      if (end < 0 || end > size) end = size;
+      return read(path, start, Math.max(start, end));
+    } catch (IOException e) {
+      log.error("Failed to read logs of proxy " + proxy.getId(), e);
+    }
+    
+    return null;
+  }
+  
+  /**
+   * @param stream stdout or stderr.
+   * @param offset The end offset of the previous read, or 0.
+   * @return The complete lines that were written after the offset, or null if the log cannot be read. Starts at the
+   * beginning of the log again if it is shorter than the offset, i.e. it was rotated.
+   */
+  public LogChunk follow(Proxy proxy, String stream, long offset) {
+    if (!isLoggingEnabled()) return null;
+    
+    try {
+      String path = getLogPath(proxy, stream);
+      if (path == null) return null;
+      
+      long size = logStorage.getLogSize(path);
+      return read(path, offset > size || offset < 0 ? 0 : offset, size);
+    } catch (IOException e) {
+      log.error("Failed to read logs of proxy " + proxy.getId(), e);
+    }
+    
+    return null;
+  }
+  
+  private String getLogPath(Proxy proxy, String stream) throws IOException {
+    String[] paths = logStorage.getLogs(proxy);
+    if (paths == null || paths.length < 2) return null;
+    if (STREAM_STDOUT.equals(stream)) return paths[0];
+    if (STREAM_STDERR.equals(stream)) return paths[1];
+    return null;
+  }
+  
+  /**
+   * Read the complete lines between the offsets, where start is the start of a line.
+   */
+  private LogChunk read(String path, long start, long end) throws IOException {
+    boolean truncated = end - start > readMaxBytes;
+    byte[] bytes = logStorage.readLog(path, start, (int) Math.min(end - start, readMaxBytes));
+    int last = lastNewline(bytes, bytes.length) + 1;
+    // a line that is longer than a read is split, otherwise it could never be read
+    if (last == 0 && truncated) last = bytes.length;
+    return new LogChunk(toLines(bytes, 0, last), start, start + last, truncated);
+  }
+  
+  /**
+   * @return The index of the last newline before the given index, or -1.
+   */
+  private static int lastNewline(byte[] bytes, int before) {
+    for (int i = before - 1; i >= 0; i--) {
+      if (bytes[i] == '\n') return i;
+    }
+    return -1;
+  }
+  
+  private static int indexOfNewline(byte[] bytes) {
+    for (int i = 0; i < bytes.length; i++) {
+      if (bytes[i] == '\n') return i;
+    }
+    return -1;
+  }
+  
+  private static List<String> toLines(byte[] bytes, int from, int to) {
+    List<String> lines = new ArrayList<>();
+    int start = from;
+    for (int i = from; i < to; i++) {
+      if (bytes[i] != '\n' && i < to - 1) continue;
+      int end = bytes[i] == '\n' ? i : i + 1;
+      if (end > start && bytes[end - 1] == '\r') end--;
+      lines.add(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+      start = i + 1;
+    }
+    return lines;
+  }
+  
+  /**
+   * The output of a proxy that is read periodically. A read never runs concurrently with another read or with stop.
+   */
+  private class PulledLog implements Runnable {
+    
+    private final Proxy proxy;
+    private final ILogReader logReader;
+    // null before the streams were created
+    private OutputStream stdOut;
+    private OutputStream stdErr;
+    // the time of the last output that was read, null before the first read
+    private Instant since;
+    private long interval = minPullInterval;
+    private ScheduledFuture<?> nextPull;
+    private boolean stopped;
+    
+    private PulledLog(Proxy proxy, ILogReader logReader) {
+      this.proxy = proxy;
+      this.logReader = logReader;
+    }
+    
+    @Override
+    public synchronized void run() {
+      if (stopped) return;
+      if (stdOut == null && !createStreams()) {
+        stopped = true;
+        return;
+      }
+      pull();
+      nextPull = puller.schedule(this, interval, TimeUnit.MILLISECONDS);
+    }
+    
+    private boolean createStreams() {
+      try {
+        OutputStream[] streams = logStorage.createOutputStreams(proxy);
+        if (streams == null || streams.length < 2) {
+          log.error("Failed to attach logging of proxy " + proxy.getId() + ": no output streams defined");
+          return false;
+        }
+        proxy.getContainers().get(0).getParameters().put(PARAM_STREAMS, streams);
+        stdOut = new CountingOutputStream(streams[0]);
+        stdErr = new CountingOutputStream(streams[1]);
+        if (log.isDebugEnabled()) log.debug("Container logging started for proxy " + proxy.getId());
+        return true;
+      } catch (Exception e) {
+        log.error("Failed to attach logging of proxy " + proxy.getId(), e);
+        return false;
+      }
+    }
+    
+    private synchronized void pull() {
+      if (stopped || stdOut == null) return;
+      try {
+        Instant last = logReader.read(since, stdOut, stdErr);
+        boolean newOutput = last != null && !last.equals(since);
+        since = last;
+        interval = newOutput ? minPullInterval : Math.min(interval * 2, maxPullInterval);
+      } catch (Exception e) {
+        log.warn("Failed to read container output of proxy " + proxy.getId(), e);
+        interval = maxPullInterval;
+      }
+    }
+    
+    private synchronized void stop() {
+      stopped = true;
+      if (nextPull != null) nextPull.cancel(false);
+    }
+  }
+  
+  /**
+   * Counts the bytes of container output that are written to the log storage.
+   */
+  private class CountingOutputStream extends FilterOutputStream {
+    
+    private CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      bytesRead.increment();
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      bytesRead.increment(len);
+    }
+  }
+  
 }
@@ -0,0 +1,104 @@
+package eu.openanalytics.containerproxy.service;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent registry of the active proxies, indexed by proxy id, user id and spec id.
+ * <p>
+ * The secondary indexes are only mutated inside {@link ConcurrentHashMap#compute} of their own key,
+ * so an add and a remove for the same user (or spec) can never leave a stale or empty bucket behind.
+ * Lookups never block each other.
+ */
+public class ProxyRegistry {
+  
+  private final Map<String, Proxy> proxiesById = new ConcurrentHashMap<>();
+  private final Map<String, Set<Proxy>> proxiesByUserId = new ConcurrentHashMap<>();
+  private final Map<String, Set<Proxy>> proxiesBySpecId = new ConcurrentHashMap<>();
+  
+  /**
+   * Register a proxy. The proxy must already have an id, a user id and a spec.
+   *
+   * @param proxy The proxy to register.
+   * @return False if another proxy with the same id is already registered.
+   */
+  public boolean add(Proxy proxy) {
+    if (proxiesById.putIfAbsent(proxy.getId(), proxy) != null) return false;
+    addToIndex(proxiesByUserId, proxy.getUserId(), proxy);
+    addToIndex(proxiesBySpecId, proxy.getSpec().getId(), proxy);
+    if (proxiesById.get(proxy.getId()) != proxy) {
+      // removed concurrently while the secondary indexes were being updated
+      removeFromIndex(proxiesByUserId, proxy.getUserId(), proxy);
+      removeFromIndex(proxiesBySpecId, proxy.getSpec().getId(), proxy);
+    }
+    return true;
+  }
+  
+  /**
+   * Unregister a proxy.
+   *
+   * @param proxy The proxy to unregister.
+   * @return False if the proxy was not registered.
+   */
+  public boolean remove(Proxy proxy) {
+    if (proxy == null || proxy.getId() == null || !proxiesById.remove(proxy.getId(), proxy)) return false;
+    removeFromIndex(proxiesByUserId, proxy.getUserId(), proxy);
+    removeFromIndex(proxiesBySpecId, proxy.getSpec().getId(), proxy);
+    return true;
+  }
+  
+  public Proxy get(String proxyId) {
+    if (proxyId == null) return null;
+    return proxiesById.get(proxyId);
+  }
+  
+  public Collection<Proxy> getByUserId(String userId) {
+    return getFromIndex(proxiesByUserId, userId);
+  }
+  
+  public Collection<Proxy> getBySpecId(String specId) {
+    return getFromIndex(proxiesBySpecId, specId);
+  }
+  
+  /**
+   * @return A snapshot of all registered proxies.
+   */
+  public Collection<Proxy> getAll() {
+    return new ArrayList<>(proxiesById.values());
+  }
+  
+  public int size() {
+    return proxiesById.size();
+  }
+  
+  private static void addToIndex(Map<String, Set<Proxy>> index, String key, Proxy proxy) {
+    if (key == null) return;
+    index.compute(key, (k, proxies) -> {
+      if (proxies == null) proxies = ConcurrentHashMap.newKeySet();
+      proxies.add(proxy);
+      return proxies;
+    });
+  }
+  
+  private static void removeFromIndex(Map<String, Set<Proxy>> index, String key, Proxy proxy) {
+    if (key == null) return;
+    index.computeIfPresent(key, (k, proxies) -> {
+      proxies.remove(proxy);
+      return proxies.isEmpty() ? null : proxies;
+    });
+  }
+  
+  private static List<Proxy> getFromIndex(Map<String, Set<Proxy>> index, String key) {
+    if (key == null) return Collections.emptyList();
+    Set<Proxy> proxies = index.get(key);
+    if (proxies == null) return Collections.emptyList();
+    return new ArrayList<>(proxies);
+  }
+}
@@ -1,10 +1,13 @@
 package eu.openanalytics.containerproxy.service;
 
+import com.google.common.collect.Lists;
 import eu.openanalytics.containerproxy.ContainerProxyException;
 import eu.openanalytics.containerproxy.backend.IContainerBackend;
 import eu.openanalytics.containerproxy.event.ProxyStartEvent;
 import eu.openanalytics.containerproxy.event.ProxyStartFailedEvent;
 import eu.openanalytics.containerproxy.event.ProxyStopEvent;
+import eu.openanalytics.containerproxy.log.ILogReader;
+import eu.openanalytics.containerproxy.model.runtime.Container;
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
 import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
 import eu.openanalytics.containerproxy.model.runtime.RuntimeSetting;
@@ -13,11 +16,16 @@ import eu.openanalytics.containerproxy.spec.IProxySpecMergeStrategy;
 import eu.openanalytics.containerproxy.spec.IProxySpecProvider;
 import eu.openanalytics.containerproxy.spec.ProxySpecException;
 import eu.openanalytics.containerproxy.util.ProxyMappingManager;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Lazy;
+import org.springframework.core.env.Environment;
 import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutor;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PreDestroy;
@@ -25,12 +33,23 @@ import java.io.OutputStream;
 import java.net.URI;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -51,8 +70,11 @@ import java.util.stream.Collectors;
 public class ProxyService {
   
   private final Logger log = LogManager.getLogger(ProxyService.class);
-  private final List<Proxy> activeProxies = Collections.synchronizedList(new ArrayList<>());
-  private final ExecutorService containerKiller = Executors.newSingleThreadExecutor();
+  private final ProxyRegistry activeProxies = new ProxyRegistry();
+  private final ThreadPoolExecutor containerKiller;
+  private final Map<String, ProxyStartup> pendingStartups = new ConcurrentHashMap<>();
+  private final ThreadPoolExecutor containerStarter;
+  private final ExecutorService securedContainerStarter;
   
   private final IProxySpecProvider baseSpecProvider;
   private final IProxySpecMergeStrategy specMergeStrategy;
@@ -60,32 +82,74 @@ public class ProxyService {
   private final ProxyMappingManager mappingManager;
   private final UserService userService;
   private final LogService logService;
+  private final WarmPoolService warmPoolService;
+  private final SharedProxyService sharedProxyService;
   private final ApplicationEventPublisher applicationEventPublisher;
   
+  private static final String PROP_START_THREADS = "proxy.start-threads";
+  private static final String PROP_STOP_THREADS = "proxy.stop-threads";
+  private static final String PROP_STOP_TIMEOUT = "proxy.stop-timeout";
+  
+  private final long stopTimeout;
+  
   @Lazy
-  public ProxyService(IProxySpecProvider baseSpecProvider, IProxySpecMergeStrategy specMergeStrategy, IContainerBackend backend, ProxyMappingManager mappingManager, UserService userService, LogService logService, ApplicationEventPublisher applicationEventPublisher) {
+  public ProxyService(IProxySpecProvider baseSpecProvider, IProxySpecMergeStrategy specMergeStrategy, IContainerBackend backend, ProxyMappingManager mappingManager, UserService userService, LogService logService, WarmPoolService warmPoolService, SharedProxyService sharedProxyService, ApplicationEventPublisher applicationEventPublisher, Environment environment, MeterRegistry registry) {
     this.baseSpecProvider = baseSpecProvider;
     this.specMergeStrategy = specMergeStrategy;
     this.backend = backend;
     this.mappingManager = mappingManager;
     this.userService = userService;
     this.logService = logService;
+    this.warmPoolService = warmPoolService;
+    this.sharedProxyService = sharedProxyService;
     this.applicationEventPublisher = applicationEventPublisher;
+    
+    int startThreads = environment.getProperty(PROP_START_THREADS, Integer.class, 32);
+    containerStarter = new ThreadPoolExecutor(startThreads, startThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    containerStarter.allowCoreThreadTimeOut(true);
+    // the backends resolve the groups of the user from the security context of the caller
+    securedContainerStarter = new DelegatingSecurityContextExecutorService(containerStarter);
+    
+    // stops are independent of each other: a slow stop must not hold up the others
+    int stopThreads = environment.getProperty(PROP_STOP_THREADS, Integer.class, 8);
+    containerKiller = new ThreadPoolExecutor(stopThreads, stopThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    containerKiller.allowCoreThreadTimeOut(true);
+    stopTimeout = Duration.parse(environment.getProperty(PROP_STOP_TIMEOUT, "PT60S")).toMillis();
+    registry.gauge("proxyStopQueueSize", containerKiller, e -> e.getQueue().size());
+    registry.gauge("proxyStopActive", containerKiller, ThreadPoolExecutor::getActiveCount);
   }
   
   @PreDestroy
   public void shutdown() {
-    try {
-      containerKiller.shutdown();
-    } finally {
-      for (Proxy proxy : activeProxies) {
+    containerStarter.shutdownNow();
+    
+    // spread the remaining proxies over the stop threads, each thread stops its share as one batch
+    // the proxies of shared specs have no containers, their replicas are released by the SharedProxyService
+    List<Proxy> proxies = activeProxies.getAll().stream().filter(p -> !SharedProxyService.isShared(p.getSpec())).collect(Collectors.toList());
+    int batchSize = Math.max(1, (proxies.size() + containerKiller.getMaximumPoolSize() - 1) / containerKiller.getMaximumPoolSize());
+    for (List<Proxy> batch : Lists.partition(proxies, batchSize)) {
+      Runnable releaser = () -> {
         try {
-          backend.stopProxy(proxy);
+          backend.stopProxies(batch);
         } catch (Exception exception) {
-          exception.printStackTrace();
+          log.error("Failed to release proxies on shutdown", exception);
         }
+      };
+      try {
+        containerKiller.submit(releaser);
+      } catch (RejectedExecutionException e) {
+        releaser.run();
       }
     }
+    
+    containerKiller.shutdown();
+    try {
+      if (!containerKiller.awaitTermination(stopTimeout, TimeUnit.MILLISECONDS)) {
+        log.warn(String.format("Not all proxies were released within %dms", stopTimeout));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
   
   /**
@@ -146,7 +210,56 @@ public class ProxyService {
    * @return The matching proxy, or null if no match was found.
    */
   public Proxy getProxy(String id) {
-    return findProxy(proxy -> proxy.getId().equals(id), true);
+    return activeProxies.get(id);
+  }
+  
+  /**
+   * Find a proxy using its ID.
+   *
+   * @param id                  The ID of the proxy to find.
+   * @param ignoreAccessControl True to search in all proxies, regardless of the current security context.
+   * @return The matching proxy, or null if no match was found.
+   */
+  public Proxy getProxy(String id, boolean ignoreAccessControl) {
+    Proxy proxy = activeProxies.get(id);
+    if (proxy == null || ignoreAccessControl || userService.isAdmin() || userService.isOwner(proxy)) return proxy;
+    return null;
+  }
+  
+  /**
+   * Find the first proxy of the given user that is based on the given ProxySpec.
+   *
+   * @param userId              The ID of the user owning the proxy.
+   * @param specId              The ID of the ProxySpec the proxy is based on.
+   * @param ignoreAccessControl True to search in all proxies, regardless of the current security context.
+   * @return The first matching proxy, or null if no match was found.
+   */
+  public Proxy findUserProxy(String userId, String specId, boolean ignoreAccessControl) {
+    return getUserProxies(userId, proxy -> proxy.getSpec().getId().equals(specId), ignoreAccessControl).stream().findAny().orElse(null);
+  }
+  
+  /**
+   * Find all proxies owned by the given user that match an optional filter.
+   *
+   * @param userId              The ID of the user owning the proxies.
+   * @param filter              The filter to match, or null.
+   * @param ignoreAccessControl True to search in all proxies, regardless of the current security context.
+   * @return A List of matching proxies, may be empty.
+   */
+  public List<Proxy> getUserProxies(String userId, Predicate<Proxy> filter, boolean ignoreAccessControl) {
+    return filterProxies(activeProxies.getByUserId(userId), filter, ignoreAccessControl);
+  }
+  
+  /**
+   * Find all proxies based on the given ProxySpec that match an optional filter.
+   *
+   * @param specId              The ID of the ProxySpec the proxies are based on.
+   * @param filter              The filter to match, or null.
+   * @param ignoreAccessControl True to search in all proxies, regardless of the current security context.
+   * @return A List of matching proxies, may be empty.
+   */
+  public List<Proxy> getSpecProxies(String specId, Predicate<Proxy> filter, boolean ignoreAccessControl) {
+    return filterProxies(activeProxies.getBySpecId(specId), filter, ignoreAccessControl);
   }
   
   /**
@@ -162,23 +275,40 @@ public class ProxyService {
   
   /**
    * Find all proxies that match an optional filter.
+   * <p>
+   * This scans all active proxies, prefer {@link #getProxy(String)}, {@link #getUserProxies} or
+   * {@link #getSpecProxies} when the ID of the proxy, user or spec is known.
+   * </p>
    *
    * @param filter              The filter to match, or null.
    * @param ignoreAccessControl True to search in all proxies, regardless of the current security context.
    * @return A List of matching proxies, may be empty.
    */
   public List<Proxy> getProxies(Predicate<Proxy> filter, boolean ignoreAccessControl) {
-    boolean isAdmin = userService.isAdmin();
+    return filterProxies(activeProxies.getAll(), filter, ignoreAccessControl);
+  }
+  
+  private List<Proxy> filterProxies(Collection<Proxy> proxies, Predicate<Proxy> filter, boolean ignoreAccessControl) {
+    boolean isAdmin = !ignoreAccessControl && userService.isAdmin();
     List<Proxy> matches = new ArrayList<>();
-    synchronized (activeProxies) {
-      for (Proxy proxy : activeProxies) {
-        boolean hasAccess = ignoreAccessControl || isAdmin || userService.isOwner(proxy);
-        if (hasAccess && (filter == null || filter.test(proxy))) matches.add(proxy);
-      }
+    for (Proxy proxy : proxies) {
+      boolean hasAccess = ignoreAccessControl || isAdmin || userService.isOwner(proxy);
+      if (hasAccess && (filter == null || filter.test(proxy))) matches.add(proxy);
     }
     return matches;
   }
   
+  /**
+   * Find the startup of a proxy that is still being started.
+   *
+   * @param proxyId The ID of the proxy.
+   * @return The pending startup, or null if the proxy is not being started.
+   */
+  public ProxyStartup getProxyStartup(String proxyId) {
+    if (proxyId == null) return null;
+    return pendingStartups.get(proxyId);
+  }
+  
   /**
    * Launch a new proxy using the given ProxySpec.
    *
@@ -188,32 +318,149 @@ public class ProxyService {
    * @throws ContainerProxyException If the proxy fails to start for any reason.
    */
   public Proxy startProxy(ProxySpec spec, boolean ignoreAccessControl) throws ContainerProxyException {
+    ProxyStartup startup = createProxy(spec, ignoreAccessControl);
+    try {
+      runStartup(startup).join();
+    } catch (CompletionException e) {
+      Throwable cause = unwrap(e);
+      if (cause instanceof Error) throw (Error) cause;
+      throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+    }
+    return startup.getProxy();
+  }
+  
+  /**
+   * Launch a new proxy using the given ProxySpec, without waiting for it to become available.
+   * <p>
+   * The proxy is registered immediately (in status {@link ProxyStatus#New}, or {@link ProxyStatus#Starting} when it
+   * is taken from the warm pool), the containers are started (or the pooled proxy is claimed) on a
+   * separate thread pool. The returned startup can be used to follow the status of the proxy and is completed
+   * once the proxy is up, or completed exceptionally if it failed to start.
+   * </p>
+   *
+   * @param spec                The ProxySpec to base the new proxy on.
+   * @param ignoreAccessControl True to allow access to the given ProxySpec, regardless of the current security context.
+   * @return The startup of the newly registered proxy.
+   */
+  public ProxyStartup startProxyAsync(ProxySpec spec, boolean ignoreAccessControl) {
+    ProxyStartup startup = createProxy(spec, ignoreAccessControl);
+    try {
+      securedContainerStarter.submit(() -> {
+        runStartup(startup).whenComplete((result, error) -> {
+          if (error == null) return;
+          // the startup was failed as well, but its callers do not necessarily log the cause
+          Proxy proxy = startup.getProxy();
+          log.error(String.format("Failed to start proxy [user: %s] [spec: %s] [id: %s]", proxy.getUserId(), proxy.getSpec().getId(), proxy.getId()), unwrap(error));
+        });
+      });
+    } catch (RejectedExecutionException e) {
+      pendingStartups.remove(startup.getProxy().getId());
+      activeProxies.remove(startup.getProxy());
+      startup.fail(new ContainerProxyException("Failed to start proxy: service is shutting down", e));
+    }
+    return startup;
+  }
+  
+  private ProxyStartup createProxy(ProxySpec spec, boolean ignoreAccessControl) {
     if (!ignoreAccessControl && !userService.canAccess(spec)) {
       throw new AccessDeniedException(String.format("Cannot start proxy %s: access denied", spec.getId()));
     }
     
-    Proxy proxy = new Proxy();
-    proxy.setStatus(ProxyStatus.New);
+    // a pooled proxy is already running, it only has to be handed over to the user
+    Proxy proxy = SharedProxyService.isShared(spec) ? null : warmPoolService.claim(spec);
+    boolean claimed = proxy != null;
+    if (claimed) {
+      // not up for the user before it was claimed and its mappings were added, see runStartup
+      proxy.setStatus(ProxyStatus.Starting);
+    } else {
+      proxy = new Proxy();
+      proxy.setId(UUID.randomUUID().toString());
+      proxy.setStatus(ProxyStatus.New);
+      proxy.setSpec(spec);
+    }
     proxy.setUserId(userService.getCurrentUserId());
-    proxy.setSpec(spec);
-    activeProxies.add(proxy);
     
+    ProxyStartup startup = new ProxyStartup(proxy, claimed);
+    pendingStartups.put(proxy.getId(), startup);
+    activeProxies.add(proxy);
+    return startup;
+  }
+  
+  /**
+   * Start the proxy of the given startup. A starter thread is only held while the containers are created:
+   * the remainder of the startup runs on the starter pool again once the proxy responded.
+   *
+   * @return A future that completes once the startup completed or failed.
+   */
+  private CompletableFuture<Void> runStartup(ProxyStartup startup) {
+    Proxy proxy = startup.getProxy();
+    ProxySpec spec = proxy.getSpec();
+    boolean claimed = startup.isClaimed();
+    boolean shared = SharedProxyService.isShared(spec);
+    CompletableFuture<Void> started;
     try {
-      backend.startProxy(proxy);
-    } finally {
-      if (proxy.getStatus() != ProxyStatus.Up) {
-        activeProxies.remove(proxy);
-        applicationEventPublisher.publishEvent(new ProxyStartFailedEvent(this, proxy.getUserId(), spec.getId()));
+      if (shared) {
+        startup.setStatus(ProxyStatus.Starting);
+        sharedProxyService.join(proxy);
+        started = CompletableFuture.completedFuture(null);
+      } else if (claimed) {
+        backend.claimProxy(proxy);
+        started = CompletableFuture.completedFuture(null);
+      } else {
+        startup.setStatus(ProxyStatus.Starting);
+        // the probe completes on a thread without the security context of the user
+        Executor starter = new DelegatingSecurityContextExecutor(containerStarter, SecurityContextHolder.getContext());
+        started = backend.startProxyAsync(proxy, command -> {
+          try {
+            starter.execute(command);
+          } catch (RejectedExecutionException e) {
+            // shutting down: finish on the thread of the probe, rather than never completing the startup
+            command.run();
+          }
+        });
       }
+    } catch (RuntimeException | Error e) {
+      started = CompletableFuture.failedFuture(e);
     }
     
-    for (Entry<String, URI> target : proxy.getTargets().entrySet()) {
-      mappingManager.addMapping(proxy.getId(), target.getKey(), target.getValue());
+    return started
+      .whenComplete((result, error) -> {
+        if (error != null || !(claimed || proxy.getStatus() == ProxyStatus.Up)) {
+          activeProxies.remove(proxy);
+          applicationEventPublisher.publishEvent(new ProxyStartFailedEvent(this, proxy.getUserId(), spec.getId()));
+        }
+      })
+      .thenRun(() -> activate(startup))
+      .whenComplete((result, error) -> {
+        pendingStartups.remove(proxy.getId());
+        if (error == null) {
+          startup.complete();
+        } else {
+          startup.fail(unwrap(error));
+        }
+      });
+  }
+  
+  private void activate(ProxyStartup startup) {
+    Proxy proxy = startup.getProxy();
+    ProxySpec spec = proxy.getSpec();
+    boolean claimed = startup.isClaimed();
+    boolean shared = SharedProxyService.isShared(spec);
+    
+    // the mapping of a shared proxy was added when it joined its pool
+    if (!shared) {
+      for (Entry<String, URI> target : proxy.getTargets().entrySet()) {
+        mappingManager.addMapping(proxy, target.getKey(), target.getValue());
+      }
     }
+    if (claimed) proxy.setStatus(ProxyStatus.Up);
     
-    if (logService.isLoggingEnabled()) {
-      BiConsumer<OutputStream, OutputStream> outputAttacher = backend.getOutputAttacher(proxy);
-      if (outputAttacher == null) {
+    if (logService.isLoggingEnabled() && !shared) {
+      ILogReader logReader = logService.isPullingEnabled() ? backend.getLogReader(proxy) : null;
+      BiConsumer<OutputStream, OutputStream> outputAttacher = logReader == null ? backend.getOutputAttacher(proxy) : null;
+      if (logReader != null) {
+        logService.pullOutput(proxy, logReader);
+      } else if (outputAttacher == null) {
         log.warn("Cannot log proxy output: " + backend.getClass() + " does not support output attaching.");
       } else {
         logService.attachToOutput(proxy, outputAttacher);
@@ -221,9 +468,24 @@ public class ProxyService {
     }
     
     log.info(String.format("Proxy activated [user: %s] [spec: %s] [id: %s]", proxy.getUserId(), spec.getId(), proxy.getId()));
-    applicationEventPublisher.publishEvent(new ProxyStartEvent(this, proxy.getUserId(), spec.getId(), Duration.ofMillis(proxy.getStartupTimestamp() - proxy.getCreatedTimestamp())));
-    
-    return proxy;
+    // the containers of a claimed proxy were started ahead of time, they did not delay this start
+    Map<String, Duration> containerStartupTimes = claimed || shared ? Collections.emptyMap() : getContainerStartupTimes(proxy);
+    applicationEventPublisher.publishEvent(new ProxyStartEvent(this, proxy.getId(), proxy.getUserId(), spec.getId(), Duration.ofMillis(proxy.getStartupTimestamp() - proxy.getCreatedTimestamp()), containerStartupTimes));
+  }
+  
+  private static Throwable unwrap(Throwable error) {
+    return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+  }
+  
+  private Map<String, Duration> getContainerStartupTimes(Proxy proxy) {
+    Map<String, Duration> startupTimes = new LinkedHashMap<>();
+    for (int i = 0; i < proxy.getContainers().size(); i++) {
+      Container container = proxy.getContainers().get(i);
+      if (container.getStartupTime() == null) continue;
+      String name = container.getSpec() == null ? null : container.getSpec().getName();
+      startupTimes.put(name == null ? String.valueOf(i) : name, container.getStartupTime());
+    }
+    return startupTimes;
   }
   
   /**
@@ -234,37 +496,16 @@ public class ProxyService {
    * @param ignoreAccessControl True to allow access to any proxy, regardless of the current security context.
    */
   public void stopProxy(Proxy proxy, boolean async, boolean ignoreAccessControl) {
-    if (!ignoreAccessControl && !userService.isAdmin() && !userService.isOwner(proxy)) {
-      throw new AccessDeniedException(String.format("Cannot stop proxy %s: access denied", proxy.getId()));
-    }
-    
-    activeProxies.remove(proxy);
-    
-    Runnable releaser = () -> {
-      try {
-        backend.stopProxy(proxy);
-        logService.detach(proxy);
-        log.info(String.format("Proxy released [user: %s] [spec: %s] [id: %s]", proxy.getUserId(), proxy.getSpec().getId(), proxy.getId()));
-        if (proxy.getStartupTimestamp() > 0) {
-          applicationEventPublisher.publishEvent(new ProxyStopEvent(this, proxy.getUserId(),
-            proxy.getSpec().getId(),
-            Duration.ofMillis(System.currentTimeMillis() - proxy.getStartupTimestamp())));
-        }
-      } catch (Exception e) {
-        log.error("Failed to release proxy " + proxy.getId(), e);
-      }
-    };
-    if (async) containerKiller.submit(releaser);
-    else releaser.run();
-    
-    for (Entry<String, URI> target : proxy.getTargets().entrySet()) {
-      mappingManager.removeMapping(target.getKey());
-    }
+    stopProxy(proxy, async, ignoreAccessControl, 0);
   }
   
   
   /**
    * Stop a running proxy, overloaded for idle silence offset
+   * <p>
+   * A proxy that is still being started is released as soon as its start has finished (a failed start
+   * releases the proxy by itself), this method then always returns immediately.
+   * </p>
    *
    * @param proxy               The proxy to stop.
    * @param async               True to return immediately and stop the proxy in an asynchronous manner.
@@ -278,25 +519,95 @@ public class ProxyService {
     
     activeProxies.remove(proxy);
     
+    ProxyStartup startup = pendingStartups.get(proxy.getId());
+    if (startup != null) {
+      startup.getFuture().thenRun(() -> releaseProxies(Collections.singletonList(proxy), true, silenceOffset));
+      return;
+    }
+    releaseProxies(Collections.singletonList(proxy), async, silenceOffset);
+  }
+  
+  /**
+   * Stop several running proxies at once, e.g. all proxies of a user that logs out.
+   * Backends that support it release all containers of these proxies using a few bulk operations.
+   *
+   * @param proxies             The proxies to stop.
+   * @param async               True to return immediately and stop the proxies in an asynchronous manner.
+   * @param ignoreAccessControl True to allow access to any proxy, regardless of the current security context.
+   */
+  public void stopProxies(Collection<Proxy> proxies, boolean async, boolean ignoreAccessControl) {
+    for (Proxy proxy : proxies) {
+      if (!ignoreAccessControl && !userService.isAdmin() && !userService.isOwner(proxy)) {
+        throw new AccessDeniedException(String.format("Cannot stop proxy %s: access denied", proxy.getId()));
+      }
+    }
+    
+    List<Proxy> started = new ArrayList<>();
+    for (Proxy proxy : proxies) {
+      activeProxies.remove(proxy);
+      ProxyStartup startup = pendingStartups.get(proxy.getId());
+      if (startup != null) {
+        startup.getFuture().thenRun(() -> releaseProxies(Collections.singletonList(proxy), true, 0));
+      } else {
+        started.add(proxy);
+      }
+    }
+    if (!started.isEmpty()) releaseProxies(started, async, 0);
+  }
+  
+  private void releaseProxies(List<Proxy> proxies, boolean async, long silenceOffset) {
     Runnable releaser = () -> {
       try {
-        backend.stopProxy(proxy);
-        logService.detach(proxy);
-        log.info(String.format("Proxy released [user: %s] [spec: %s] [id: %s]", proxy.getUserId(), proxy.getSpec().getId(), proxy.getId()));
-        if (proxy.getStartupTimestamp() > 0) {
-          applicationEventPublisher.publishEvent(new ProxyStopEvent(this, proxy.getUserId(),
-            proxy.getSpec().getId(),
-            Duration.ofMillis(System.currentTimeMillis() - proxy.getStartupTimestamp() - silenceOffset)));
+        List<Proxy> owned = new ArrayList<>();
+        for (Proxy proxy : proxies) {
+          if (SharedProxyService.isShared(proxy.getSpec())) {
+            sharedProxyService.leave(proxy);
+          } else {
+            owned.add(proxy);
+          }
+        }
+        // the output of pulled logs that was not read yet is lost once the containers are removed
+        owned.forEach(logService::collectRemaining);
+        if (owned.size() == 1) {
+          backend.stopProxy(owned.get(0));
+        } else if (!owned.isEmpty()) {
+          backend.stopProxies(owned);
         }
       } catch (Exception e) {
-        log.error("Failed to release proxy " + proxy.getId(), e);
+        log.error("Failed to release proxy " + proxies.stream().map(Proxy::getId).collect(Collectors.joining(", ")), e);
+      } finally {
+        // the proxies are no longer active, so their logging and heartbeats end even if a container failed to stop
+        for (Proxy proxy : proxies) {
+          try {
+            // the output of a shared proxy was never attached, see runStartup
+            if (!SharedProxyService.isShared(proxy.getSpec())) logService.detach(proxy);
+          } catch (Exception e) {
+            log.error("Failed to detach container logging of proxy " + proxy.getId(), e);
+          }
+          log.info(String.format("Proxy released [user: %s] [spec: %s] [id: %s]", proxy.getUserId(), proxy.getSpec().getId(), proxy.getId()));
+          if (proxy.getStartupTimestamp() > 0) {
+            applicationEventPublisher.publishEvent(new ProxyStopEvent(this, proxy.getId(), proxy.getUserId(),
+              proxy.getSpec().getId(),
+              Duration.ofMillis(System.currentTimeMillis() - proxy.getStartupTimestamp() - silenceOffset)));
+          }
+        }
       }
     };
-    if (async) containerKiller.submit(releaser);
-    else releaser.run();
+    if (async) {
+      try {
+        containerKiller.submit(releaser);
+      } catch (RejectedExecutionException e) {
+        // shutting down
+        releaser.run();
+      }
+    } else {
+      releaser.run();
+    }
     
-    for (Entry<String, URI> target : proxy.getTargets().entrySet()) {
-      mappingManager.removeMapping(target.getKey());
+    for (Proxy proxy : proxies) {
+      for (Entry<String, URI> target : proxy.getTargets().entrySet()) {
+        mappingManager.removeMapping(target.getKey());
+      }
     }
   }
 }
@@ -0,0 +1,87 @@
+package eu.openanalytics.containerproxy.service;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Handle on a proxy that is being started.
+ * <p>
+ * Callers that need the proxy to be up (e.g. to show it to the user) subscribe to the status
+ * transitions or chain on {@link #getFuture()} instead of polling the proxy from a request thread.
+ */
+public class ProxyStartup {
+  
+  private final Proxy proxy;
+  private final boolean claimed;
+  private final CompletableFuture<Proxy> future = new CompletableFuture<>();
+  private final List<Consumer<ProxyStatus>> statusListeners = new ArrayList<>();
+  private ProxyStatus status;
+  
+  ProxyStartup(Proxy proxy, boolean claimed) {
+    this.proxy = proxy;
+    this.claimed = claimed;
+    this.status = proxy.getStatus();
+  }
+  
+  public Proxy getProxy() {
+    return proxy;
+  }
+  
+  /**
+   * @return True if the proxy was taken from the warm pool, and only has to be claimed for its user.
+   */
+  boolean isClaimed() {
+    return claimed;
+  }
+  
+  /**
+   * @return A future that completes with the proxy once it is up, or exceptionally if it failed to start.
+   */
+  public CompletableFuture<Proxy> getFuture() {
+    return future;
+  }
+  
+  /**
+   * Subscribe to the status transitions of the proxy.
+   * The listener is called immediately with the current status, and afterwards for every transition until the
+   * proxy is up. A failed startup is only reported through {@link #getFuture()}.
+   *
+   * @param listener The listener to call, must not block.
+   */
+  public synchronized void addStatusListener(Consumer<ProxyStatus> listener) {
+    listener.accept(status);
+    if (!future.isDone()) statusListeners.add(listener);
+  }
+  
+  public synchronized void removeStatusListener(Consumer<ProxyStatus> listener) {
+    statusListeners.remove(listener);
+  }
+  
+  synchronized void setStatus(ProxyStatus status) {
+    if (this.status == status) return;
+    this.status = status;
+    for (Consumer<ProxyStatus> listener : statusListeners) {
+      listener.accept(status);
+    }
+  }
+  
+  void complete() {
+    synchronized (this) {
+      setStatus(ProxyStatus.Up);
+      statusListeners.clear();
+    }
+    future.complete(proxy);
+  }
+  
+  void fail(Throwable cause) {
+    synchronized (this) {
+      statusListeners.clear();
+    }
+    future.completeExceptionally(cause);
+  }
+}
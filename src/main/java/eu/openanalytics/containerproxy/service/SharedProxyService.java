@@ -0,0 +1,397 @@
+package eu.openanalytics.containerproxy.service;
+
+import eu.openanalytics.containerproxy.ContainerProxyException;
+import eu.openanalytics.containerproxy.backend.IContainerBackend;
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.containerproxy.model.spec.SharedSpec;
+import eu.openanalytics.containerproxy.spec.IProxySpecMergeStrategy;
+import eu.openanalytics.containerproxy.spec.IProxySpecProvider;
+import eu.openanalytics.containerproxy.util.ProxyMappingManager;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves all users of a shared spec ({@code shared.enabled}) from a pool of replicas, instead of starting a proxy
+ * per user.
+ * <p>
+ * The replicas are proxies that are started through the backend before their users are known, like the proxies of
+ * the warm pool: their containers see a placeholder user. The proxy of a user that starts a shared spec has no
+ * containers of its own. Its mapping balances the requests over the hosts of all replicas, but sticks to the
+ * replica that the user was assigned to (the replica with the fewest sessions) as long as that replica is available.
+ * <p>
+ * Every {@code proxy.shared.scale-interval}, the number of replicas is scaled to the number of sessions divided by
+ * {@code shared.sessions-per-replica}, within {@code shared.min-replicas} and {@code shared.max-replicas}.
+ * A replica is added when the mean request time exceeds {@code shared.max-latency}. Replicas are only removed after
+ * the pool was too large for {@code proxy.shared.scale-down-delay}: the replica is drained first (it gets no new
+ * sessions) and is stopped once its last session has ended.
+ */
+@Service
+public class SharedProxyService {
+  
+  public static final String SHARED_USER_ID = "sp-shared";
+  
+  private static final String PROP_SCALE_INTERVAL = "proxy.shared.scale-interval";
+  private static final String PROP_SCALE_DOWN_DELAY = "proxy.shared.scale-down-delay";
+  private static final String PROP_START_TIMEOUT = "proxy.shared.start-timeout";
+  private static final String PROP_START_THREADS = "proxy.shared.start-threads";
+  
+  private final Logger log = LogManager.getLogger(SharedProxyService.class);
+  private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+  // the replica of every session, by the ID of the proxy of the session
+  private final Map<String, Replica> sessions = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService maintainer = Executors.newSingleThreadScheduledExecutor();
+  private ExecutorService containerStarter;
+  
+  private final IProxySpecProvider baseSpecProvider;
+  private final IProxySpecMergeStrategy specMergeStrategy;
+  private final IContainerBackend backend;
+  private final ProxyMappingManager mappingManager;
+  private final MeterRegistry registry;
+  private final Environment environment;
+  
+  public SharedProxyService(IProxySpecProvider baseSpecProvider, IProxySpecMergeStrategy specMergeStrategy, IContainerBackend backend, ProxyMappingManager mappingManager, MeterRegistry registry, Environment environment) {
+    this.baseSpecProvider = baseSpecProvider;
+    this.specMergeStrategy = specMergeStrategy;
+    this.backend = backend;
+    this.mappingManager = mappingManager;
+    this.registry = registry;
+    this.environment = environment;
+  }
+  
+  @PostConstruct
+  public void init() {
+    containerStarter = Executors.newFixedThreadPool(environment.getProperty(PROP_START_THREADS, Integer.class, 4));
+    long scaleInterval = Duration.parse(environment.getProperty(PROP_SCALE_INTERVAL, "PT15S")).toMillis();
+    maintainer.scheduleWithFixedDelay(this::maintain, 0, scaleInterval, TimeUnit.MILLISECONDS);
+  }
+  
+  @PreDestroy
+  public void shutdown() {
+    maintainer.shutdownNow();
+    containerStarter.shutdownNow();
+    for (Pool pool : pools.values()) {
+      List<Replica> replicas;
+      synchronized (pool) {
+        replicas = new ArrayList<>(pool.replicas);
+        pool.replicas.clear();
+      }
+      for (Replica replica : replicas) {
+        try {
+          backend.stopProxy(replica.proxy);
+        } catch (Exception e) {
+          log.error("Failed to release replica " + replica.proxy.getId(), e);
+        }
+      }
+    }
+  }
+  
+  /**
+   * @return True if the users of the given spec share the replicas of a pool.
+   */
+  public static boolean isShared(ProxySpec spec) {
+    return spec.getShared() != null && spec.getShared().isEnabled();
+  }
+  
+  /**
+   * Serve the given proxy of a shared spec by a replica of the pool of the spec, starting the first replica of the
+   * pool if there is none yet. Blocks until a replica is up.
+   *
+   * @param proxy The proxy of the user, without containers.
+   * @throws ContainerProxyException If no replica could be started.
+   */
+  public void join(Proxy proxy) {
+    ProxySpec spec = proxy.getSpec();
+    Pool pool = pools.computeIfAbsent(spec.getId(), Pool::new);
+    if (proxy.getCreatedTimestamp() == 0) proxy.setCreatedTimestamp(System.currentTimeMillis());
+    long deadline = System.currentTimeMillis() + Duration.parse(environment.getProperty(PROP_START_TIMEOUT, "PT10M")).toMillis();
+    
+    Replica replica;
+    while (true) {
+      CompletableFuture<Void> starting;
+      synchronized (pool) {
+        replica = pool.replicas.stream()
+          .filter(r -> !r.draining && r.proxy.getStatus() == ProxyStatus.Up)
+          .min(Comparator.comparingInt(r -> r.sessions.get()))
+          .orElse(null);
+        if (replica != null) {
+          replica.sessions.incrementAndGet();
+          break;
+        }
+        if (pool.starting.isEmpty()) startReplica(pool, getReplicaSpec(spec.getId()));
+        if (pool.starting.isEmpty()) throw new ContainerProxyException("Failed to start a replica of shared spec " + spec.getId() + ": service is shutting down");
+        starting = pool.starting.get(0).ready;
+      }
+      
+      try {
+        starting.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        throw new ContainerProxyException("Timed out waiting for a replica of shared spec " + spec.getId());
+      } catch (ExecutionException e) {
+        throw new ContainerProxyException("Failed to start a replica of shared spec " + spec.getId(), e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ContainerProxyException("Interrupted while waiting for a replica of shared spec " + spec.getId(), e);
+      }
+    }
+    
+    sessions.put(proxy.getId(), replica);
+    try {
+      mappingManager.addSharedMapping(proxy, proxy.getId(), spec.getId(), replica.proxy.getId());
+    } catch (RuntimeException e) {
+      leave(proxy);
+      throw e;
+    }
+    // the target of the mapping, so it is removed when the proxy is released
+    proxy.getTargets().put(proxy.getId(), replica.proxy.getTargets().values().stream().findFirst().orElse(null));
+    proxy.setStartupTimestamp(System.currentTimeMillis());
+    proxy.setStatus(ProxyStatus.Up);
+    
+    // scale up right away instead of at the next interval
+    if (replica.sessions.get() > getSharedSpec(spec).getSessionsPerReplica()) scale();
+  }
+  
+  /**
+   * End the session of the given proxy of a shared spec. The mappings of the proxy are removed by the caller.
+   */
+  public void leave(Proxy proxy) {
+    Replica replica = sessions.remove(proxy.getId());
+    if (replica != null) replica.sessions.decrementAndGet();
+  }
+  
+  private void scale() {
+    try {
+      maintainer.execute(this::maintain);
+    } catch (RejectedExecutionException e) {
+      // shutting down
+    }
+  }
+  
+  private void maintain() {
+    try {
+      long scaleDownDelay = Duration.parse(environment.getProperty(PROP_SCALE_DOWN_DELAY, "PT5M")).toMillis();
+      Set<String> sharedSpecIds = new HashSet<>();
+      for (ProxySpec baseSpec : baseSpecProvider.getSpecs()) {
+        if (!isShared(baseSpec)) continue;
+        sharedSpecIds.add(baseSpec.getId());
+        ProxySpec spec = getReplicaSpec(baseSpec);
+        scale(pools.computeIfAbsent(spec.getId(), Pool::new), spec, scaleDownDelay);
+      }
+      
+      // specs that were removed from the configuration, or are no longer shared
+      for (Pool pool : pools.values()) {
+        if (!sharedSpecIds.contains(pool.specId)) scale(pool, null, scaleDownDelay);
+      }
+    } catch (Throwable t) {
+      log.error("Error in " + this.getClass().getSimpleName(), t);
+    }
+  }
+  
+  /**
+   * The replicas are shared by all users, so they are started from the base spec resolved without a user, not from
+   * the spec of the proxy of the user that happens to start one.
+   */
+  private ProxySpec getReplicaSpec(ProxySpec baseSpec) {
+    return specMergeStrategy.merge(baseSpec, null, null);
+  }
+  
+  private ProxySpec getReplicaSpec(String specId) {
+    ProxySpec baseSpec = baseSpecProvider.getSpec(specId);
+    if (baseSpec == null || !isShared(baseSpec)) throw new ContainerProxyException("Failed to start a replica of shared spec " + specId + ": spec is no longer shared");
+    return getReplicaSpec(baseSpec);
+  }
+  
+  /**
+   * @param spec The resolved spec of the pool, or null to remove all replicas.
+   */
+  private void scale(Pool pool, ProxySpec spec, long scaleDownDelay) {
+    SharedSpec shared = spec == null ? null : getSharedSpec(spec);
+    double latency = mappingManager.getSharedLatency(pool.specId);
+    List<Replica> stopped = new ArrayList<>();
+    
+    synchronized (pool) {
+      // replicas that are no longer running
+      pool.replicas.removeIf(replica -> {
+        if (replica.proxy.getStatus() == ProxyStatus.Up) return false;
+        stopped.add(replica);
+        return true;
+      });
+      
+      int sessionCount = pool.getSessionCount();
+      int desired = 0;
+      if (shared != null) {
+        desired = (sessionCount + shared.getSessionsPerReplica() - 1) / Math.max(1, shared.getSessionsPerReplica());
+        if (shared.getMaxLatency() > 0 && latency > shared.getMaxLatency()) {
+          log.debug(String.format("Mean request time of shared spec %s is %.0fms", pool.specId, latency));
+          desired = Math.max(desired, pool.getActiveCount() + 1);
+        }
+        desired = Math.max(shared.getMinReplicas(), Math.min(Math.max(shared.getMaxReplicas(), shared.getMinReplicas()), desired));
+      }
+      
+      int active = pool.getActiveCount();
+      if (desired > active) {
+        pool.scaleDownTimestamp = 0;
+        // take back draining replicas before starting new ones
+        for (Replica replica : pool.replicas) {
+          if (replica.draining && active < desired) {
+            replica.draining = false;
+            active++;
+          }
+        }
+        for (int i = active; i < desired; i++) {
+          startReplica(pool, spec);
+        }
+      } else if (desired < active) {
+        if (pool.scaleDownTimestamp == 0) pool.scaleDownTimestamp = System.currentTimeMillis();
+        if (spec == null || System.currentTimeMillis() - pool.scaleDownTimestamp >= scaleDownDelay) {
+          pool.replicas.stream()
+            .filter(r -> !r.draining)
+            .sorted(Comparator.comparingInt(r -> r.sessions.get()))
+            .limit(active - desired)
+            .forEach(r -> r.draining = true);
+          pool.scaleDownTimestamp = 0;
+        }
+      } else {
+        pool.scaleDownTimestamp = 0;
+      }
+      
+      // drained replicas without sessions
+      pool.replicas.removeIf(replica -> {
+        if (!replica.draining || replica.sessions.get() > 0) return false;
+        stopped.add(replica);
+        return true;
+      });
+    }
+    
+    for (Replica replica : stopped) {
+      mappingManager.removeReplica(pool.specId, replica.proxy);
+      stopReplica(replica.proxy);
+    }
+  }
+  
+  /**
+   * Start a replica on the starter threads. The caller holds the lock of the pool.
+   */
+  private void startReplica(Pool pool, ProxySpec spec) {
+    Proxy proxy = new Proxy();
+    proxy.setId(UUID.randomUUID().toString());
+    proxy.setStatus(ProxyStatus.New);
+    proxy.setUserId(SHARED_USER_ID);
+    proxy.setSpec(spec);
+    Replica replica = new Replica(proxy);
+    pool.starting.add(replica);
+    
+    try {
+      containerStarter.submit(() -> {
+        try {
+          backend.startProxy(proxy);
+          mappingManager.addReplica(pool.specId, proxy);
+          synchronized (pool) {
+            pool.starting.remove(replica);
+            pool.replicas.add(replica);
+          }
+          log.info(String.format("Replica started [spec: %s] [id: %s]", pool.specId, proxy.getId()));
+          replica.ready.complete(null);
+        } catch (Throwable t) {
+          synchronized (pool) {
+            pool.starting.remove(replica);
+          }
+          log.warn(String.format("Failed to start replica [spec: %s]", pool.specId), t);
+          replica.ready.completeExceptionally(t);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      pool.starting.remove(replica);
+      replica.ready.completeExceptionally(new ContainerProxyException("Failed to start replica: service is shutting down", e));
+    }
+  }
+  
+  private void stopReplica(Proxy proxy) {
+    log.info(String.format("Replica released [spec: %s] [id: %s]", proxy.getSpec().getId(), proxy.getId()));
+    try {
+      containerStarter.submit(() -> {
+        try {
+          backend.stopProxy(proxy);
+        } catch (Exception e) {
+          log.error("Failed to release replica " + proxy.getId(), e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      backend.stopProxy(proxy);
+    }
+  }
+  
+  private static SharedSpec getSharedSpec(ProxySpec spec) {
+    return spec.getShared() == null ? new SharedSpec() : spec.getShared();
+  }
+  
+  private class Pool {
+    
+    private final String specId;
+    // the replicas that are up (or failed since the last scaling), guarded by the lock of the pool
+    private final List<Replica> replicas = new ArrayList<>();
+    private final List<Replica> starting = new ArrayList<>();
+    // the time since which the pool has more replicas than it needs, or 0
+    private long scaleDownTimestamp;
+    
+    private Pool(String specId) {
+      this.specId = specId;
+      registry.gauge("sharedReplicas", Tags.of("spec.id", specId), this, Pool::getReplicaCount);
+      registry.gauge("sharedSessions", Tags.of("spec.id", specId), this, Pool::getSessionCount);
+    }
+    
+    private synchronized int getReplicaCount() {
+      return replicas.size();
+    }
+    
+    private synchronized int getSessionCount() {
+      return replicas.stream().mapToInt(r -> r.sessions.get()).sum();
+    }
+    
+    /**
+     * @return The number of replicas that are up and not draining, or starting.
+     */
+    private synchronized int getActiveCount() {
+      return (int) replicas.stream().filter(r -> !r.draining).count() + starting.size();
+    }
+  }
+  
+  private static class Replica {
+    
+    private final Proxy proxy;
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    // a draining replica gets no new sessions, and is stopped once it has none
+    private volatile boolean draining;
+    
+    private Replica(Proxy proxy) {
+      this.proxy = proxy;
+    }
+  }
+}
@@ -137,7 +137,7 @@ public class UserService {
     return false;
   }
   
-  private String getUserId(Authentication auth) {
+  public String getUserId(Authentication auth) {
     if (auth == null) return null;
     if (auth instanceof AnonymousAuthenticationToken) {
       // Anonymous authentication: use the session id instead of the user name.
@@ -0,0 +1,277 @@
+package eu.openanalytics.containerproxy.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.openanalytics.containerproxy.backend.IContainerBackend;
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.containerproxy.spec.IProxySpecMergeStrategy;
+import eu.openanalytics.containerproxy.spec.IProxySpecProvider;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a pool of idle proxies per ProxySpec that are started ahead of time, so that a user starting one of these
+ * specs gets a running proxy immediately instead of waiting for the image pull, scheduling and readiness checks.
+ * <p>
+ * The size of a pool is configured per spec ({@code warm-pool-size}, together with {@code user-env: false}). A pool
+ * is refilled in the background after every claim, and is drained when none of its proxies was claimed for
+ * {@code proxy.warm-pool.idle-timeout}; it grows again after the next miss.
+ * <p>
+ * Pooled proxies are started before their owner is known, so their containers cannot depend on the user. A spec is
+ * therefore only pooled if it opts out of the environment that identifies the user ({@code user-env: false}, see
+ * {@link ProxySpec#isUserEnv()}), which would otherwise contain the placeholder user of the pool. Specs containing
+ * SpEL expressions (e.g. {@code #{proxy.userId}} in a volume) are never pooled, and neither are specs the backend
+ * cannot hand over to another user (see {@link IContainerBackend#supportsWarmPool(ProxySpec)}).
+ */
+@Service
+public class WarmPoolService {
+  
+  public static final String POOL_USER_ID = "sp-warm-pool";
+  
+  private static final String PROP_IDLE_TIMEOUT = "proxy.warm-pool.idle-timeout";
+  private static final String PROP_REFILL_INTERVAL = "proxy.warm-pool.refill-interval";
+  private static final String PROP_START_THREADS = "proxy.warm-pool.start-threads";
+  
+  private final Logger log = LogManager.getLogger(WarmPoolService.class);
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final Map<String, SpecPool> pools = new ConcurrentHashMap<>();
+  private final Set<String> unpoolableSpecs = ConcurrentHashMap.newKeySet();
+  private final ScheduledExecutorService maintainer = Executors.newSingleThreadScheduledExecutor();
+  private ExecutorService containerStarter;
+  
+  private final IProxySpecProvider baseSpecProvider;
+  private final IProxySpecMergeStrategy specMergeStrategy;
+  private final IContainerBackend backend;
+  private final MeterRegistry registry;
+  private final Environment environment;
+  
+  public WarmPoolService(IProxySpecProvider baseSpecProvider, IProxySpecMergeStrategy specMergeStrategy, IContainerBackend backend, MeterRegistry registry, Environment environment) {
+    this.baseSpecProvider = baseSpecProvider;
+    this.specMergeStrategy = specMergeStrategy;
+    this.backend = backend;
+    this.registry = registry;
+    this.environment = environment;
+  }
+  
+  @PostConstruct
+  public void init() {
+    containerStarter = Executors.newFixedThreadPool(environment.getProperty(PROP_START_THREADS, Integer.class, 4));
+    long refillInterval = Duration.parse(environment.getProperty(PROP_REFILL_INTERVAL, "PT30S")).toMillis();
+    maintainer.scheduleWithFixedDelay(this::maintain, 0, refillInterval, TimeUnit.MILLISECONDS);
+  }
+  
+  @PreDestroy
+  public void shutdown() {
+    maintainer.shutdownNow();
+    containerStarter.shutdownNow();
+    for (SpecPool pool : pools.values()) {
+      PooledProxy pooled;
+      while ((pooled = pool.idle.pollFirst()) != null) {
+        stopPooledProxy(pooled.proxy);
+      }
+    }
+  }
+  
+  /**
+   * Take an idle proxy of the given spec out of the pool.
+   * <p>
+   * The returned proxy is up, but still belongs to the pool user: the caller has to set its owner and
+   * hand it over using {@link IContainerBackend#claimProxy(Proxy)}.
+   *
+   * @param spec The resolved spec the caller is about to start.
+   * @return A running proxy of an identical spec, or null if there is none (or the spec is not pooled, or differs
+   * from the spec of the pool).
+   */
+  public Proxy claim(ProxySpec spec) {
+    if (spec.getWarmPoolSize() <= 0) return null;
+    SpecPool pool = pools.get(spec.getId());
+    if (pool == null) return null;
+    
+    String fingerprint = getFingerprint(spec);
+    ProxySpec baseSpec = baseSpecProvider.getSpec(spec.getId());
+    if (fingerprint == null || baseSpec == null || !fingerprint.equals(getFingerprint(resolve(baseSpec)))) {
+      // e.g. a spec with runtime settings: the pooled proxies do not fit this caller, but still fit the others
+      return null;
+    }
+    
+    pool.lastClaimTimestamp = System.currentTimeMillis();
+    PooledProxy pooled;
+    while ((pooled = pool.idle.pollFirst()) != null) {
+      if (pooled.fingerprint.equals(fingerprint) && pooled.proxy.getStatus() == ProxyStatus.Up) {
+        pool.hits.increment();
+        refill();
+        log.debug(String.format("Claimed pooled proxy [spec: %s] [id: %s]", spec.getId(), pooled.proxy.getId()));
+        return pooled.proxy;
+      }
+      // started from an outdated configuration, or no longer running
+      stopPooledProxy(pooled.proxy);
+    }
+    pool.misses.increment();
+    refill();
+    return null;
+  }
+  
+  private void refill() {
+    try {
+      maintainer.execute(this::maintain);
+    } catch (RejectedExecutionException e) {
+      // shutting down
+    }
+  }
+  
+  private void maintain() {
+    try {
+      long idleTimeout = Duration.parse(environment.getProperty(PROP_IDLE_TIMEOUT, "PT30M")).toMillis();
+      Set<String> pooledSpecIds = new HashSet<>();
+      
+      for (ProxySpec baseSpec : baseSpecProvider.getSpecs()) {
+        if (baseSpec.getWarmPoolSize() <= 0) continue;
+        ProxySpec spec = resolve(baseSpec);
+        String fingerprint = getFingerprint(spec);
+        if (spec.isUserEnv()) {
+          if (unpoolableSpecs.add(spec.getId())) {
+            log.warn(String.format("Not keeping a warm pool for spec %s: its containers get the environment of the user who starts them, set user-env to false to pool it", spec.getId()));
+          }
+          continue;
+        }
+        if (fingerprint == null || fingerprint.contains("#{") || !backend.supportsWarmPool(spec)) {
+          if (unpoolableSpecs.add(spec.getId())) {
+            log.warn(String.format("Not keeping a warm pool for spec %s: its containers depend on the user who starts them", spec.getId()));
+          }
+          continue;
+        }
+        pooledSpecIds.add(spec.getId());
+        
+        SpecPool pool = pools.computeIfAbsent(spec.getId(), SpecPool::new);
+        int target = System.currentTimeMillis() - pool.lastClaimTimestamp > idleTimeout ? 0 : spec.getWarmPoolSize();
+        
+        int size = 0;
+        for (Iterator<PooledProxy> it = pool.idle.iterator(); it.hasNext(); ) {
+          PooledProxy pooled = it.next();
+          if (!pooled.fingerprint.equals(fingerprint) || pooled.proxy.getStatus() != ProxyStatus.Up || size >= target) {
+            if (pool.idle.removeFirstOccurrence(pooled)) stopPooledProxy(pooled.proxy);
+          } else {
+            size++;
+          }
+        }
+        
+        for (int i = size + pool.starting.get(); i < target; i++) {
+          pool.starting.incrementAndGet();
+          containerStarter.submit(() -> startPooledProxy(pool, fingerprint));
+        }
+      }
+      
+      // specs that were removed from the configuration, or no longer have a pool
+      for (SpecPool pool : pools.values()) {
+        if (pooledSpecIds.contains(pool.specId)) continue;
+        PooledProxy pooled;
+        while ((pooled = pool.idle.pollFirst()) != null) {
+          stopPooledProxy(pooled.proxy);
+        }
+      }
+    } catch (Throwable t) {
+      log.error("Error in " + this.getClass().getSimpleName(), t);
+    }
+  }
+  
+  private void startPooledProxy(SpecPool pool, String fingerprint) {
+    Proxy proxy = new Proxy();
+    proxy.setId(UUID.randomUUID().toString());
+    proxy.setStatus(ProxyStatus.New);
+    proxy.setUserId(POOL_USER_ID);
+    try {
+      ProxySpec baseSpec = baseSpecProvider.getSpec(pool.specId);
+      if (baseSpec == null) return;
+      proxy.setSpec(resolve(baseSpec));
+      
+      backend.startProxy(proxy);
+      pool.idle.addLast(new PooledProxy(proxy, fingerprint));
+      log.info(String.format("Pooled proxy started [spec: %s] [id: %s]", pool.specId, proxy.getId()));
+    } catch (Exception e) {
+      log.warn(String.format("Failed to start pooled proxy [spec: %s]", pool.specId), e);
+    } finally {
+      pool.starting.decrementAndGet();
+    }
+  }
+  
+  private void stopPooledProxy(Proxy proxy) {
+    try {
+      containerStarter.submit(() -> {
+        try {
+          backend.stopProxy(proxy);
+        } catch (Exception e) {
+          log.error("Failed to release pooled proxy " + proxy.getId(), e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      backend.stopProxy(proxy);
+    }
+  }
+  
+  private ProxySpec resolve(ProxySpec baseSpec) {
+    return specMergeStrategy.merge(baseSpec, null, null);
+  }
+  
+  private String getFingerprint(ProxySpec spec) {
+    try {
+      return objectMapper.writeValueAsString(spec);
+    } catch (JsonProcessingException e) {
+      return null;
+    }
+  }
+  
+  private class SpecPool {
+    
+    private final String specId;
+    private final Deque<PooledProxy> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger starting = new AtomicInteger();
+    private final Counter hits;
+    private final Counter misses;
+    // a new pool is filled right away
+    private volatile long lastClaimTimestamp = System.currentTimeMillis();
+    
+    private SpecPool(String specId) {
+      this.specId = specId;
+      this.hits = registry.counter("warmPoolHits", "spec.id", specId);
+      this.misses = registry.counter("warmPoolMisses", "spec.id", specId);
+      registry.gauge("warmPoolIdle", Tags.of("spec.id", specId), idle, Deque::size);
+      registry.gauge("warmPoolStarting", Tags.of("spec.id", specId), starting);
+    }
+  }
+  
+  private static class PooledProxy {
+    
+    private final Proxy proxy;
+    private final String fingerprint;
+    
+    private PooledProxy(Proxy proxy, String fingerprint) {
+      this.proxy = proxy;
+      this.fingerprint = fingerprint;
+    }
+  }
+}
@@ -1,15 +1,40 @@
 package eu.openanalytics.containerproxy.stat.impl;
 
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.commons.lang.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.core.env.Environment;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * # MonetDB, Postgresql, MySQL/MariaDB usage-stats-url:
@@ -30,14 +55,64 @@ import java.sql.Timestamp;
  * <p>
  * create table event( event_time datetime, username varchar(128), type
  * varchar(128), data text );
+ * <p>
+ * Events are not written on the thread that published them: they are queued (up to proxy.usage-stats-queue-size)
+ * and a writer thread inserts them in batches of up to proxy.usage-stats-batch-size, at the latest
+ * proxy.usage-stats-flush-interval after the first event of a batch was queued.
+ * <p>
+ * proxy.usage-stats-overflow decides what happens to an event when the queue is full: block (wait until there is
+ * room), drop, or spill (append it to the file at proxy.usage-stats-spill-path, by default
+ * usage-stats-spill-&lt;proxy.identifier-value&gt;.log in the temporary directory). With spill, the events of a batch
+ * that could not be written are spilled as well, and the spilled events are written once the queue is idle, also
+ * after a restart. With block, a batch that could not be written is retried with an exponential backoff (up to
+ * proxy.usage-stats-write-attempts attempts) before it is dropped.
+ * <p>
+ * Published metrics: usageStatsQueueSize, usageStatsBatchSize, usageStatsWriteLatency, usageStatsEventsDropped and
+ * usageStatsEventsSpilled.
  */
 public class JDBCCollector extends AbstractDbCollector {
   
+  public enum OverflowPolicy {
+    Block,
+    Drop,
+    Spill
+  }
+  
+  private static final String SQL = "INSERT INTO event(event_time, username, type, specid, identifier, info) VALUES (?,?,?,?,?,?)";
+  private static final long POLL_INTERVAL_MS = 1000;
+  private static final long STOP_TIMEOUT_MS = 10000;
+  private static final long SPILL_RETRY_INTERVAL_MS = 30000;
+  private static final long WRITE_RETRY_DELAY_MS = 500;
+  private static final long WRITE_RETRY_MAX_DELAY_MS = 10000;
+  
+  private final Logger log = LogManager.getLogger(JDBCCollector.class);
+  private final ObjectMapper objectMapper = new ObjectMapper().setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+  private final Object spillLock = new Object();
+  
   private HikariDataSource ds;
   
   @Inject
   private Environment environment;
   
+  @Inject
+  private MeterRegistry registry;
+  
+  private BlockingQueue<Event> queue;
+  private Thread writer;
+  private volatile boolean running = true;
+  private String identifier;
+  private int batchSize;
+  private long flushInterval;
+  private int writeAttempts;
+  private OverflowPolicy overflowPolicy;
+  private Path spillPath;
+  // the time the spilled events failed to be written, they are not retried before SPILL_RETRY_INTERVAL_MS
+  private long spillFailedTimestamp;
+  private DistributionSummary batchSizes;
+  private Timer writeLatency;
+  private Counter eventsDropped;
+  private Counter eventsSpilled;
+  
   @PostConstruct
   public void init() {
     String baseURL = environment.getProperty("proxy.usage-stats-url.jdbc-url");
@@ -73,24 +148,243 @@ public class JDBCCollector extends AbstractDbCollector {
       ds.setMaximumPoolSize(maximumPoolSize);
     }
     
+    identifier = environment.getProperty("proxy.identifier-value", "default-identifier");
+    batchSize = environment.getProperty("proxy.usage-stats-batch-size", Integer.class, 100);
+    flushInterval = Duration.parse(environment.getProperty("proxy.usage-stats-flush-interval", "PT1S")).toMillis();
+    overflowPolicy = OverflowPolicy.valueOf(StringUtils.capitalize(environment.getProperty("proxy.usage-stats-overflow", "block").toLowerCase()));
+    writeAttempts = Math.max(1, environment.getProperty("proxy.usage-stats-write-attempts", Integer.class, 5));
+    // instances sharing a temporary directory must not write to the same file
+    String spillFile = "usage-stats-spill-" + identifier.replaceAll("[^A-Za-z0-9._-]", "_") + ".log";
+    spillPath = Paths.get(environment.getProperty("proxy.usage-stats-spill-path", Paths.get(System.getProperty("java.io.tmpdir"), spillFile).toString()));
+    queue = new ArrayBlockingQueue<>(environment.getProperty("proxy.usage-stats-queue-size", Integer.class, 10000));
+    
+    registry.gauge("usageStatsQueueSize", queue, BlockingQueue::size);
+    batchSizes = registry.summary("usageStatsBatchSize");
+    writeLatency = registry.timer("usageStatsWriteLatency");
+    eventsDropped = registry.counter("usageStatsEventsDropped");
+    eventsSpilled = registry.counter("usageStatsEventsSpilled");
+    
+    writer = new Thread(this::run, "JDBCCollector");
+    writer.setDaemon(true);
+    writer.start();
+  }
+  
+  /**
+   * Write the events that are still queued, and close the connections.
+   */
+  @PreDestroy
+  public void shutdown() {
+    running = false;
+    try {
+      writer.join(STOP_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    ds.close();
   }
   
   @Override
   protected void writeToDb(long timestamp, String userId, String type, String specId, String info) throws IOException {
-    String identifier = environment.getProperty("proxy.identifier-value", "default-identifier");
-    String sql = "INSERT INTO event(event_time, username, type, specid, identifier, info) VALUES (?,?,?,?,?,?)";
+    Event event = new Event(timestamp, userId, type, specId, info);
+    if (overflowPolicy == OverflowPolicy.Block) {
+      try {
+        queue.put(event);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the stats queue", e);
+      }
+    } else if (!queue.offer(event)) {
+      if (overflowPolicy == OverflowPolicy.Spill) {
+        spill(List.of(event));
+      } else {
+        eventsDropped.increment();
+      }
+    }
+  }
+  
+  private void run() {
+    List<Event> batch = new ArrayList<>(batchSize);
+    while (running || !queue.isEmpty()) {
+      try {
+        Event first = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          writeSpilled();
+          continue;
+        }
+        // collect a batch until it is full or the first event waited long enough
+        batch.add(first);
+        long deadline = System.currentTimeMillis() + flushInterval;
+        while (batch.size() < batchSize) {
+          queue.drainTo(batch, batchSize - batch.size());
+          long remaining = deadline - System.currentTimeMillis();
+          if (batch.size() >= batchSize || remaining <= 0 || !running) break;
+          Event next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+          if (next == null) break;
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        running = false;
+      }
+      if (batch.isEmpty()) continue;
+      try {
+        writeWithRetry(batch);
+      } catch (SQLException | RuntimeException e) {
+        // never let the writer thread die, the following batches may succeed
+        log.error("Exception while logging stats", e);
+        if (overflowPolicy == OverflowPolicy.Spill) {
+          spill(batch);
+        } else {
+          eventsDropped.increment(batch.size());
+        }
+      }
+      batch.clear();
+    }
+  }
+  
+  /**
+   * Write a batch, retrying it with an exponential backoff when the block policy applies: the events cannot be
+   * spilled, and a database that is briefly unavailable should not lose them. Meanwhile, the queue fills up and
+   * blocks the publishers, as the policy demands.
+   */
+  private void writeWithRetry(List<Event> batch) throws SQLException {
+    int attempts = overflowPolicy == OverflowPolicy.Block ? writeAttempts : 1;
+    long delay = WRITE_RETRY_DELAY_MS;
+    for (int attempt = 1; ; attempt++) {
+      try {
+        write(batch);
+        return;
+      } catch (SQLException | RuntimeException e) {
+        if (attempt >= attempts || !running) throw e;
+        log.warn(String.format("Exception while logging stats, trying again in %dms (%d/%d): %s", delay, attempt, attempts, e.getMessage()));
+      }
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        running = false;
+      }
+      delay = Math.min(delay * 2, WRITE_RETRY_MAX_DELAY_MS);
+    }
+  }
+  
+  private void write(List<Event> batch) throws SQLException {
+    long start = System.nanoTime();
     try (Connection con = ds.getConnection()) {
-      try (PreparedStatement stmt = con.prepareStatement(sql)) {
-        stmt.setTimestamp(1, new Timestamp(timestamp));
-        stmt.setString(2, userId);
-        stmt.setString(3, type);
-        stmt.setString(4, specId);
-        stmt.setString(5, identifier);
-        stmt.setString(6, info);
-        stmt.executeUpdate();
+      try (PreparedStatement stmt = con.prepareStatement(SQL)) {
+        for (Event event : batch) {
+          stmt.setTimestamp(1, new Timestamp(event.timestamp));
+          stmt.setString(2, event.userId);
+          stmt.setString(3, event.type);
+          stmt.setString(4, event.specId);
+          stmt.setString(5, identifier);
+          stmt.setString(6, event.info);
+          stmt.addBatch();
+        }
+        stmt.executeBatch();
+      }
+    }
+    writeLatency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    batchSizes.record(batch.size());
+  }
+  
+  private void spill(List<Event> events) {
+    StringBuilder lines = new StringBuilder();
+    try {
+      for (Event event : events) {
+        lines.append(objectMapper.writeValueAsString(event)).append('\n');
+      }
+      synchronized (spillLock) {
+        Files.writeString(spillPath, lines, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      }
+      eventsSpilled.increment(events.size());
+    } catch (IOException e) {
+      log.error("Failed to spill stats to " + spillPath, e);
+      eventsDropped.increment(events.size());
+    }
+  }
+  
+  /**
+   * Write the events that were spilled, in batches. If writing a batch fails, the events that were already written
+   * are removed from the replay file, so they are not written again by the next attempt.
+   */
+  private void writeSpilled() {
+    if (System.currentTimeMillis() - spillFailedTimestamp < SPILL_RETRY_INTERVAL_MS) return;
+    Path replay = Paths.get(spillPath + ".replay");
+    try {
+      if (!Files.exists(replay)) {
+        // events that are spilled from now on go to a new file
+        synchronized (spillLock) {
+          if (!Files.exists(spillPath)) return;
+          Files.move(spillPath, replay);
+        }
       }
-    } catch (SQLException e) {
-      throw new IOException("Exception while logging stats", e);
+      
+      // the number of lines of the replay file of which the events were written
+      long writtenLines = 0;
+      try {
+        List<Event> batch = new ArrayList<>(batchSize);
+        long lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(replay, StandardCharsets.UTF_8)) {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            lines++;
+            if (line.isEmpty()) continue;
+            batch.add(objectMapper.readValue(line, Event.class));
+            if (batch.size() >= batchSize) {
+              write(batch);
+              batch.clear();
+              writtenLines = lines;
+            }
+          }
+        }
+        if (!batch.isEmpty()) write(batch);
+      } catch (IOException | SQLException | RuntimeException e) {
+        if (writtenLines > 0) removeLines(replay, writtenLines);
+        throw e;
+      }
+      Files.delete(replay);
+      log.info("Written spilled stats from " + spillPath);
+    } catch (IOException | SQLException | RuntimeException e) {
+      log.error("Failed to write spilled stats from " + spillPath, e);
+      spillFailedTimestamp = System.currentTimeMillis();
+    }
+  }
+  
+  /**
+   * Remove the first lines of the given file, by replacing it with a copy of the remaining lines.
+   */
+  private static void removeLines(Path file, long count) throws IOException {
+    Path remaining = Paths.get(file + ".tmp");
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+         BufferedWriter writer = Files.newBufferedWriter(remaining, StandardCharsets.UTF_8)) {
+      String line;
+      long lines = 0;
+      while ((line = reader.readLine()) != null) {
+        if (++lines <= count) continue;
+        writer.write(line);
+        writer.newLine();
+      }
+    }
+    Files.move(remaining, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  private static class Event {
+    
+    private long timestamp;
+    private String userId;
+    private String type;
+    private String specId;
+    private String info;
+    
+    // used when reading spilled events
+    private Event() {
+    }
+    
+    private Event(long timestamp, String userId, String type, String specId, String info) {
+      this.timestamp = timestamp;
+      this.userId = userId;
+      this.type = type;
+      this.specId = specId;
+      this.info = info;
     }
   }
 }
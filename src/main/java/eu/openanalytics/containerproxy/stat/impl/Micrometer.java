@@ -57,6 +57,8 @@ public class Micrometer implements IStatCollector {
     logger.debug("ProxyStartEvent [user: {}, startupTime: {}]", event.getUserId(), event.getStartupTime());
     registry.counter("appStarts", "spec.id", event.getSpecId(), "user.id", event.getUserId()).increment();
     registry.timer("startupTime", "spec.id", event.getSpecId(), "user.id", event.getUserId()).record(event.getStartupTime());
+    event.getContainerStartupTimes().forEach((container, startupTime) ->
+      registry.timer("containerStartupTime", "spec.id", event.getSpecId(), "container", container).record(startupTime));
   }
   
   @EventListener
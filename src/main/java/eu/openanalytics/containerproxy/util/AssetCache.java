@@ -0,0 +1,111 @@
+package eu.openanalytics.containerproxy.util;
+
+import io.undertow.util.HttpString;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded, least recently used cache of responses of containers, shared by all specs that enable the
+ * asset cache (see AssetCacheHandler).
+ * <p>
+ * The bodies are kept on the heap, or in direct buffers outside the heap when proxy.asset-cache.off-heap is set.
+ */
+public class AssetCache {
+  
+  // a rough estimate of the memory that an entry uses besides its key and body
+  private static final int ENTRY_OVERHEAD = 512;
+  
+  private final long maxSize;
+  private final int maxEntrySize;
+  private final boolean offHeap;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long size;
+  
+  /**
+   * @param maxSize      The maximum number of bytes of all entries together.
+   * @param maxEntrySize The maximum number of bytes of the body of a single entry.
+   * @param offHeap      Whether to keep the bodies outside the heap.
+   */
+  public AssetCache(long maxSize, int maxEntrySize, boolean offHeap) {
+    this.maxSize = maxSize;
+    this.maxEntrySize = maxEntrySize;
+    this.offHeap = offHeap;
+  }
+  
+  public int getMaxEntrySize() {
+    return maxEntrySize;
+  }
+  
+  /**
+   * @return The entry of the key, or null if there is none or it expired.
+   */
+  public synchronized Entry get(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null) return null;
+    if (entry.expireTimestamp <= System.currentTimeMillis()) {
+      entries.remove(key);
+      size -= entry.size;
+      return null;
+    }
+    return entry;
+  }
+  
+  /**
+   * Store a response, replacing the entry of the same key, and evict the least recently used entries until the
+   * cache fits its maximum size again.
+   */
+  public void put(String key, Map<HttpString, String> headers, byte[] body, int length, long ttlMs) {
+    if (length > maxEntrySize) return;
+    ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+    buffer.put(body, 0, length).flip();
+    Entry entry = new Entry(headers, buffer.asReadOnlyBuffer(), System.currentTimeMillis() + ttlMs,
+      (long) key.length() * 2 + length + ENTRY_OVERHEAD);
+    
+    synchronized (this) {
+      Entry previous = entries.put(key, entry);
+      if (previous != null) size -= previous.size;
+      size += entry.size;
+      Iterator<Entry> eldest = entries.values().iterator();
+      while (size > maxSize && eldest.hasNext()) {
+        size -= eldest.next().size;
+        eldest.remove();
+      }
+    }
+  }
+  
+  public synchronized long size() {
+    return size;
+  }
+  
+  public static class Entry {
+    
+    private final Map<HttpString, String> headers;
+    private final ByteBuffer body;
+    private final long expireTimestamp;
+    private final long size;
+    
+    private Entry(Map<HttpString, String> headers, ByteBuffer body, long expireTimestamp, long size) {
+      this.headers = headers;
+      this.body = body;
+      this.expireTimestamp = expireTimestamp;
+      this.size = size;
+    }
+    
+    /**
+     * @return The headers of the response that are replayed with the body, by name.
+     */
+    public Map<HttpString, String> getHeaders() {
+      return headers;
+    }
+    
+    /**
+     * @return A new read-only view of the body, so concurrent requests do not share a position.
+     */
+    public ByteBuffer getBody() {
+      return body.duplicate();
+    }
+  }
+}
@@ -0,0 +1,346 @@
+package eu.openanalytics.containerproxy.util;
+
+import eu.openanalytics.containerproxy.model.spec.AssetCacheSpec;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.DateUtils;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.Methods;
+import io.undertow.util.QValueParser;
+import io.undertow.util.StatusCodes;
+import org.springframework.util.AntPathMatcher;
+import org.xnio.channels.StreamSourceChannel;
+import org.xnio.conduits.AbstractStreamSinkConduit;
+import org.xnio.conduits.ConduitWritableByteChannel;
+import org.xnio.conduits.Conduits;
+import org.xnio.conduits.StreamSinkConduit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the static assets of a proxy mapping from the shared AssetCache, so that the containers of a spec do not
+ * serve the same files to every user.
+ * <p>
+ * The entries are keyed on the spec, the images of its containers, the path of the request relative to the
+ * proxy (so they are shared by all proxies of the spec) and the content encoding that is preferred by the request.
+ * A response is only stored if it has that encoding or no encoding, so a client never gets an encoding it did not
+ * accept.
+ * <p>
+ * Only GET responses with status 200 are cached, and only if the container allows it: responses with Cache-Control
+ * no-store, no-cache or private, with a cookie or with a Vary header other than Accept-Encoding are not cached.
+ * A response is cached for its s-maxage or max-age, or else for the default ttl of the spec. Conditional requests
+ * that match the ETag or Last-Modified of an entry get a 304 without reaching the container.
+ */
+public class AssetCacheHandler implements HttpHandler {
+  
+  private static final List<String> DEFAULT_PATHS = Arrays.asList(
+    "/**/*.js", "/**/*.mjs", "/**/*.css", "/**/*.map", "/**/*.woff", "/**/*.woff2", "/**/*.ttf", "/**/*.eot",
+    "/**/*.svg", "/**/*.png", "/**/*.jpg", "/**/*.gif", "/**/*.ico", "/**/*.wasm");
+  // the headers of a response that are stored with its body
+  private static final HttpString[] STORED_HEADERS = {Headers.CONTENT_TYPE, Headers.CONTENT_ENCODING,
+    Headers.CONTENT_LANGUAGE, Headers.ETAG, Headers.LAST_MODIFIED, Headers.CACHE_CONTROL, Headers.VARY};
+  // the headers that are repeated in a 304 response
+  private static final HttpString[] NOT_MODIFIED_HEADERS = {Headers.ETAG, Headers.LAST_MODIFIED, Headers.CACHE_CONTROL, Headers.VARY};
+  // the encodings a response of a container may have, in the order of preference of most containers
+  private static final List<String> UPSTREAM_ENCODINGS = Arrays.asList("br", "gzip", "deflate");
+  private static final AntPathMatcher PATH_MATCHER = new AntPathMatcher();
+  
+  private final HttpHandler next;
+  private final AssetCache cache;
+  private final String keyPrefix;
+  private final List<String> paths;
+  private final long defaultTtlMs;
+  private final List<String> encodings;
+  private final Counter hits;
+  private final Counter notModified;
+  private final Counter misses;
+  
+  /**
+   * @param next      The handler that proxies the request to the container.
+   * @param cache     The cache to store the responses in.
+   * @param keyPrefix The prefix of the keys of this mapping, see the class documentation.
+   * @param spec      The asset cache settings of the spec.
+   * @param registry  The registry to publish the hits and misses to.
+   * @param specId    The ID of the spec.
+   * @param encodings The encodings ResponseCompression compresses the responses with (see
+   *                  ResponseCompression.getEncodings), or an empty list if it does not compress them.
+   */
+  public AssetCacheHandler(HttpHandler next, AssetCache cache, String keyPrefix, AssetCacheSpec spec, MeterRegistry registry, String specId, List<String> encodings) {
+    this.next = next;
+    this.cache = cache;
+    this.keyPrefix = keyPrefix;
+    this.paths = spec.getPaths() == null || spec.getPaths().isEmpty() ? DEFAULT_PATHS : spec.getPaths();
+    this.defaultTtlMs = spec.getDefaultTtl() * 1000L;
+    // with compression, the key is the encoding it will choose; otherwise the one the container most likely chooses
+    this.encodings = encodings.isEmpty() ? UPSTREAM_ENCODINGS : encodings;
+    this.hits = registry.counter("assetCacheRequests", "spec.id", specId, "result", "hit");
+    this.notModified = registry.counter("assetCacheRequests", "spec.id", specId, "result", "notModified");
+    this.misses = registry.counter("assetCacheRequests", "spec.id", specId, "result", "miss");
+  }
+  
+  @Override
+  public void handleRequest(HttpServerExchange exchange) throws Exception {
+    if (!isCacheable(exchange)) {
+      next.handleRequest(exchange);
+      return;
+    }
+    
+    String encoding = getEncoding(exchange.getRequestHeaders());
+    String key = getKey(exchange, encoding);
+    AssetCache.Entry entry = noCache(exchange.getRequestHeaders()) ? null : cache.get(key);
+    if (entry == null) {
+      misses.increment();
+      Capture capture = new Capture(cache.getMaxEntrySize());
+      try {
+        exchange.addResponseWrapper((factory, ex) -> new CapturingSinkConduit(factory.create(), capture));
+      } catch (IllegalStateException e) {
+        // the response channel is already in use, so the response cannot be captured
+        next.handleRequest(exchange);
+        return;
+      }
+      exchange.addExchangeCompleteListener((ex, nextListener) -> {
+        try {
+          store(ex, key, encoding, capture);
+        } finally {
+          nextListener.proceed();
+        }
+      });
+      next.handleRequest(exchange);
+      return;
+    }
+    
+    Map<HttpString, String> headers = entry.getHeaders();
+    HeaderMap responseHeaders = exchange.getResponseHeaders();
+    if (isNotModified(exchange.getRequestHeaders(), headers)) {
+      notModified.increment();
+      exchange.setStatusCode(StatusCodes.NOT_MODIFIED);
+      for (HttpString name : NOT_MODIFIED_HEADERS) {
+        if (headers.containsKey(name)) responseHeaders.put(name, headers.get(name));
+      }
+      exchange.endExchange();
+      return;
+    }
+    
+    hits.increment();
+    ByteBuffer body = entry.getBody();
+    exchange.setStatusCode(StatusCodes.OK);
+    headers.forEach(responseHeaders::put);
+    responseHeaders.put(Headers.CONTENT_LENGTH, body.remaining());
+    exchange.getResponseSender().send(body);
+  }
+  
+  private boolean isCacheable(HttpServerExchange exchange) {
+    if (!exchange.getRequestMethod().equals(Methods.GET)) return false;
+    if (exchange.getRequestHeaders().contains(Headers.RANGE)) return false;
+    String path = exchange.getRelativePath();
+    for (String pattern : paths) {
+      if (PATH_MATCHER.match(pattern, path)) return true;
+    }
+    return false;
+  }
+  
+  private String getKey(HttpServerExchange exchange, String encoding) {
+    String query = exchange.getQueryString();
+    return keyPrefix + exchange.getRelativePath() + (query.isEmpty() ? "" : "?" + query) + "|" + encoding;
+  }
+  
+  /**
+   * Negotiates the encoding of the response like the EncodingHandler of Undertow: the encodings with the highest
+   * q-value win, an encoding with q-value 0 (or following one) is not accepted, and * only accepts the identity.
+   *
+   * @return The preferred encoding of the request among the encodings of the responses, or an empty string if it
+   * only accepts the identity.
+   */
+  private String getEncoding(HeaderMap requestHeaders) {
+    List<String> acceptEncoding = requestHeaders.get(Headers.ACCEPT_ENCODING);
+    if (acceptEncoding == null || acceptEncoding.isEmpty()) return "";
+    for (List<QValueParser.QValueResult> group : QValueParser.parse(acceptEncoding)) {
+      if (group.get(0).isQValueZero()) return "";
+      String preferred = null;
+      for (QValueParser.QValueResult result : group) {
+        String encoding = result.getValue().toLowerCase();
+        if (encodings.contains(encoding) && (preferred == null || encodings.indexOf(encoding) < encodings.indexOf(preferred))) {
+          preferred = encoding;
+        }
+      }
+      if (preferred != null) return preferred;
+    }
+    return "";
+  }
+  
+  private void store(HttpServerExchange exchange, String key, String encoding, Capture capture) {
+    if (exchange.getStatusCode() != StatusCodes.OK || capture.overflow) return;
+    HeaderMap responseHeaders = exchange.getResponseHeaders();
+    // other requests with the same key may not accept another encoding
+    String contentEncoding = responseHeaders.getFirst(Headers.CONTENT_ENCODING);
+    if (contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity") && !contentEncoding.trim().equalsIgnoreCase(encoding)) return;
+    String contentLength = responseHeaders.getFirst(Headers.CONTENT_LENGTH);
+    if (contentLength != null && !contentLength.equals(String.valueOf(capture.length))) return;
+    if (responseHeaders.contains(Headers.SET_COOKIE) || responseHeaders.contains(Headers.CONTENT_RANGE)) return;
+    
+    String vary = responseHeaders.getFirst(Headers.VARY);
+    if (vary != null) {
+      for (String header : vary.split(",")) {
+        if (!header.trim().equalsIgnoreCase(Headers.ACCEPT_ENCODING_STRING)) return;
+      }
+    }
+    
+    long ttlMs = defaultTtlMs;
+    String cacheControl = responseHeaders.getFirst(Headers.CACHE_CONTROL);
+    if (cacheControl != null) {
+      long maxAge = -1;
+      for (String directive : cacheControl.toLowerCase().split(",")) {
+        directive = directive.trim();
+        if (directive.equals("no-store") || directive.equals("no-cache") || directive.equals("private")) return;
+        if (directive.startsWith("s-maxage=")) {
+          maxAge = parseSeconds(directive.substring("s-maxage=".length()));
+        } else if (directive.startsWith("max-age=") && maxAge < 0) {
+          maxAge = parseSeconds(directive.substring("max-age=".length()));
+        }
+      }
+      if (maxAge >= 0) ttlMs = maxAge * 1000;
+    }
+    if (ttlMs <= 0) return;
+    
+    Map<HttpString, String> headers = new HashMap<>();
+    for (HttpString name : STORED_HEADERS) {
+      String value = responseHeaders.getFirst(name);
+      if (value != null) headers.put(name, value);
+    }
+    cache.put(key, headers, capture.bytes, capture.length, ttlMs);
+  }
+  
+  private static long parseSeconds(String value) {
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+  
+  private static boolean noCache(HeaderMap requestHeaders) {
+    String cacheControl = requestHeaders.getFirst(Headers.CACHE_CONTROL);
+    if (cacheControl != null && cacheControl.toLowerCase().contains("no-cache")) return true;
+    String pragma = requestHeaders.getFirst(Headers.PRAGMA);
+    return pragma != null && pragma.toLowerCase().contains("no-cache");
+  }
+  
+  private static boolean isNotModified(HeaderMap requestHeaders, Map<HttpString, String> headers) {
+    String ifNoneMatch = requestHeaders.getFirst(Headers.IF_NONE_MATCH);
+    String etag = headers.get(Headers.ETAG);
+    if (ifNoneMatch != null) {
+      if (etag == null) return false;
+      for (String candidate : ifNoneMatch.split(",")) {
+        candidate = candidate.trim();
+        if (candidate.equals("*") || stripWeak(candidate).equals(stripWeak(etag))) return true;
+      }
+      return false;
+    }
+    
+    String ifModifiedSince = requestHeaders.getFirst(Headers.IF_MODIFIED_SINCE);
+    String lastModified = headers.get(Headers.LAST_MODIFIED);
+    if (ifModifiedSince == null || lastModified == null) return false;
+    Date ifModifiedSinceDate = DateUtils.parseDate(ifModifiedSince);
+    Date lastModifiedDate = DateUtils.parseDate(lastModified);
+    return ifModifiedSinceDate != null && lastModifiedDate != null && !lastModifiedDate.after(ifModifiedSinceDate);
+  }
+  
+  private static String stripWeak(String etag) {
+    return etag.startsWith("W/") ? etag.substring(2) : etag;
+  }
+  
+  /**
+   * The body of a response as far as it was written, unless it grew larger than the maximum size of an entry.
+   */
+  private static class Capture {
+    
+    private final int maxSize;
+    private byte[] bytes = new byte[1024];
+    private int length;
+    private boolean overflow;
+    
+    private Capture(int maxSize) {
+      this.maxSize = maxSize;
+    }
+    
+    private void add(ByteBuffer buffer, int position, int count) {
+      if (overflow || count <= 0) return;
+      if (length + count > maxSize) {
+        overflow = true;
+        bytes = null;
+        return;
+      }
+      if (length + count > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.min(maxSize, Math.max(bytes.length * 2, length + count)));
+      }
+      ByteBuffer written = buffer.duplicate();
+      written.position(position);
+      written.get(bytes, length, count);
+      length += count;
+    }
+  }
+  
+  private static class CapturingSinkConduit extends AbstractStreamSinkConduit<StreamSinkConduit> {
+    
+    private final Capture capture;
+    
+    private CapturingSinkConduit(StreamSinkConduit next, Capture capture) {
+      super(next);
+      this.capture = capture;
+    }
+    
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      int position = src.position();
+      int written = next.write(src);
+      capture.add(src, position, written);
+      return written;
+    }
+    
+    @Override
+    public long write(ByteBuffer[] srcs, int offs, int len) throws IOException {
+      int[] positions = new int[len];
+      for (int i = 0; i < len; i++) {
+        positions[i] = srcs[offs + i].position();
+      }
+      long written = next.write(srcs, offs, len);
+      for (int i = 0; i < len; i++) {
+        ByteBuffer src = srcs[offs + i];
+        capture.add(src, positions[i], src.position() - positions[i]);
+      }
+      return written;
+    }
+    
+    @Override
+    public int writeFinal(ByteBuffer src) throws IOException {
+      return Conduits.writeFinalBasic(this, src);
+    }
+    
+    @Override
+    public long writeFinal(ByteBuffer[] srcs, int offs, int len) throws IOException {
+      return Conduits.writeFinalBasic(this, srcs, offs, len);
+    }
+    
+    @Override
+    public long transferFrom(FileChannel src, long position, long count) throws IOException {
+      // go through write, so the bytes are captured
+      return src.transferTo(position, count, new ConduitWritableByteChannel(this));
+    }
+    
+    @Override
+    public long transferFrom(StreamSourceChannel source, long count, ByteBuffer throughBuffer) throws IOException {
+      return Conduits.transfer(source, count, throughBuffer, this);
+    }
+  }
+}
@@ -10,14 +10,15 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Consumer;
 
 public class DelegatingStreamSourceConduit implements StreamSourceConduit {
   
   private final StreamSourceConduit delegate;
-  private final Consumer<byte[]> readListener;
+  private final ReadListener readListener;
+  // reused for scatter reads, a conduit is only read by a single thread at a time
+  private int[] scatterStarts = new int[0];
   
-  public DelegatingStreamSourceConduit(StreamSourceConduit delegate, Consumer<byte[]> readListener) {
+  public DelegatingStreamSourceConduit(StreamSourceConduit delegate, ReadListener readListener) {
     this.delegate = delegate;
     this.readListener = readListener;
   }
@@ -92,20 +93,45 @@ public class DelegatingStreamSourceConduit implements StreamSourceConduit {
     if (readListener == null) {
       return delegate.read(dst);
     } else {
+      int start = dst.position();
       int read = delegate.read(dst);
-      ByteBuffer copy = dst.duplicate();
-      copy.flip();
-      byte[] data = new byte[copy.remaining()];
-      copy.get(data);
-      readListener.accept(data);
+      if (read > 0) readListener.onRead(dst, start, dst.position());
       return read;
     }
   }
   
   @Override
   public long read(ByteBuffer[] dsts, int offs, int len) throws IOException {
-    return delegate.read(dsts, offs, len);
+    if (readListener == null) {
+      return delegate.read(dsts, offs, len);
+    } else {
+      if (scatterStarts.length < len) scatterStarts = new int[len];
+      int[] starts = scatterStarts;
+      for (int i = 0; i < len; i++) {
+        starts[i] = dsts[offs + i].position();
+      }
+      long read = delegate.read(dsts, offs, len);
+      if (read > 0) {
+        for (int i = 0; i < len; i++) {
+          ByteBuffer dst = dsts[offs + i];
+          if (dst.position() > starts[i]) readListener.onRead(dst, starts[i], dst.position());
+        }
+      }
+      return read;
+    }
   }
   
-  
+  /**
+   * Notified of the bytes read into a buffer, without copying them.
+   */
+  @FunctionalInterface
+  public interface ReadListener {
+    
+    /**
+     * @param buffer The buffer that was read into. Its position and limit must not be modified.
+     * @param from   The absolute index of the first byte that was read.
+     * @param to     The absolute index after the last byte that was read.
+     */
+    void onRead(ByteBuffer buffer, int from, int to);
+  }
 }
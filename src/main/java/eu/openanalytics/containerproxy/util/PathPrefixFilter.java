@@ -0,0 +1,53 @@
+package eu.openanalytics.containerproxy.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeSet;
+
+/**
+ * An immutable set of path prefixes, compiled once so it can be matched cheaply on every proxied request.
+ * Prefixes that are covered by a shorter prefix are dropped at compile time.
+ */
+public class PathPrefixFilter {
+  
+  private static final PathPrefixFilter EMPTY = new PathPrefixFilter(new String[0], Integer.MAX_VALUE);
+  
+  private final String[] prefixes;
+  private final int minLength;
+  
+  private PathPrefixFilter(String[] prefixes, int minLength) {
+    this.prefixes = prefixes;
+    this.minLength = minLength;
+  }
+  
+  public static PathPrefixFilter compile(Collection<String> prefixes) {
+    if (prefixes == null || prefixes.isEmpty()) return EMPTY;
+    
+    TreeSet<String> sorted = new TreeSet<>();
+    prefixes.stream().filter(Objects::nonNull).forEach(sorted::add);
+    
+    // in lexicographic order a prefix always comes right before the prefixes it covers
+    List<String> effective = new ArrayList<>();
+    int minLength = Integer.MAX_VALUE;
+    for (String prefix : sorted) {
+      if (!effective.isEmpty() && prefix.startsWith(effective.get(effective.size() - 1))) continue;
+      effective.add(prefix);
+      minLength = Math.min(minLength, prefix.length());
+    }
+    if (effective.isEmpty()) return EMPTY;
+    return new PathPrefixFilter(effective.toArray(new String[0]), minLength);
+  }
+  
+  /**
+   * @return True if the path starts with any of the prefixes of this filter.
+   */
+  public boolean matches(String path) {
+    if (path == null || path.length() < minLength) return false;
+    for (String prefix : prefixes) {
+      if (path.startsWith(prefix)) return true;
+    }
+    return false;
+  }
+}
@@ -17,7 +17,7 @@ public class PortAllocator {
     occupiedPortOwners = Collections.synchronizedMap(new HashMap<>());
   }
   
-  public int allocate(String ownerId) {
+  public synchronized int allocate(String ownerId) {
     int nextPort = range[0];
     while (occupiedPorts.contains(nextPort)) nextPort++;
     
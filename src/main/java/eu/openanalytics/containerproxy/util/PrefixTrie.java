@@ -0,0 +1,183 @@
+package eu.openanalytics.containerproxy.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A concurrent, case-insensitive radix trie that finds the longest key that is a prefix of a given string.
+ * <p>
+ * Lookups do not lock and do not allocate (for ASCII input): they walk the trie once, so their cost depends on the
+ * length of the string that is looked up and not on the number of keys.
+ * Modifications are serialized on the trie and never change a node that is reachable by a lookup in a way that
+ * would make the lookup fail: children arrays are replaced instead of modified, and split edges are replaced by
+ * new nodes.
+ *
+ * @param <V> The type of the values, must not be null.
+ */
+public class PrefixTrie<V> {
+  
+  private static final Node<?>[] NO_CHILDREN = new Node<?>[0];
+  
+  private final Node<V> root = new Node<>("", null, noChildren());
+  private int size;
+  
+  /**
+   * Add a key, or replace the value of a key that was already added.
+   */
+  public synchronized void put(String key, V value) {
+    Objects.requireNonNull(value);
+    String normalizedKey = normalize(key);
+    Node<V> node = root;
+    int offset = 0;
+    while (offset < normalizedKey.length()) {
+      Node<V>[] children = node.children;
+      int index = indexOf(children, normalizedKey.charAt(offset));
+      if (index < 0) {
+        node.children = append(children, new Node<>(normalizedKey.substring(offset), value, noChildren()));
+        size++;
+        return;
+      }
+      
+      Node<V> child = children[index];
+      int common = commonPrefixLength(child.label, normalizedKey, offset);
+      if (common < child.label.length()) {
+        // the key ends or branches off halfway the edge of the child: split that edge
+        Node<V> tail = new Node<>(child.label.substring(common), child.value, child.children);
+        Node<V> split = new Node<>(child.label.substring(0, common), null, noChildren());
+        split.children = append(split.children, tail);
+        node.children = replace(children, index, split);
+        child = split;
+      }
+      node = child;
+      offset += common;
+    }
+    if (node.value == null) size++;
+    node.value = value;
+  }
+  
+  /**
+   * @return The value of the removed key, or null if the key was not present.
+   */
+  public synchronized V remove(String key) {
+    String normalizedKey = normalize(key);
+    List<Node<V>> parents = new ArrayList<>();
+    Node<V> node = root;
+    int offset = 0;
+    while (offset < normalizedKey.length()) {
+      int index = indexOf(node.children, normalizedKey.charAt(offset));
+      if (index < 0) return null;
+      Node<V> child = node.children[index];
+      if (!normalizedKey.startsWith(child.label, offset)) return null;
+      parents.add(node);
+      node = child;
+      offset += child.label.length();
+    }
+    
+    V value = node.value;
+    if (value == null) return null;
+    node.value = null;
+    size--;
+    
+    // prune the nodes that no longer lead to any key
+    for (int i = parents.size() - 1; i >= 0 && node.value == null && node.children.length == 0; i--) {
+      Node<V> parent = parents.get(i);
+      parent.children = remove(parent.children, node);
+      node = parent;
+    }
+    return value;
+  }
+  
+  /**
+   * Find the value of the longest key that is a prefix of the given string, ignoring case.
+   *
+   * @return The value, or null if no key is a prefix of the given string.
+   */
+  public V getLongestPrefixMatch(String string) {
+    Node<V> node = root;
+    V match = root.value;
+    int offset = 0;
+    while (offset < string.length()) {
+      Node<V> child = find(node.children, Character.toLowerCase(string.charAt(offset)));
+      if (child == null || !string.regionMatches(true, offset, child.label, 0, child.label.length())) break;
+      node = child;
+      offset += child.label.length();
+      V value = node.value;
+      if (value != null) match = value;
+    }
+    return match;
+  }
+  
+  public synchronized int size() {
+    return size;
+  }
+  
+  private static String normalize(String key) {
+    StringBuilder normalized = new StringBuilder(key.length());
+    for (int i = 0; i < key.length(); i++) {
+      normalized.append(Character.toLowerCase(key.charAt(i)));
+    }
+    return normalized.toString();
+  }
+  
+  private static int commonPrefixLength(String label, String key, int offset) {
+    int length = Math.min(label.length(), key.length() - offset);
+    int i = 0;
+    while (i < length && label.charAt(i) == key.charAt(offset + i)) i++;
+    return i;
+  }
+  
+  private static <V> Node<V> find(Node<V>[] children, char c) {
+    for (Node<V> child : children) {
+      if (child.label.charAt(0) == c) return child;
+    }
+    return null;
+  }
+  
+  private static <V> int indexOf(Node<V>[] children, char c) {
+    for (int i = 0; i < children.length; i++) {
+      if (children[i].label.charAt(0) == c) return i;
+    }
+    return -1;
+  }
+  
+  private static <V> Node<V>[] append(Node<V>[] children, Node<V> child) {
+    Node<V>[] result = Arrays.copyOf(children, children.length + 1);
+    result[children.length] = child;
+    return result;
+  }
+  
+  private static <V> Node<V>[] replace(Node<V>[] children, int index, Node<V> child) {
+    Node<V>[] result = children.clone();
+    result[index] = child;
+    return result;
+  }
+  
+  private static <V> Node<V>[] remove(Node<V>[] children, Node<V> child) {
+    List<Node<V>> result = new ArrayList<>(children.length);
+    for (Node<V> c : children) {
+      if (c != child) result.add(c);
+    }
+    return result.toArray(Arrays.copyOf(children, 0));
+  }
+  
+  @SuppressWarnings("unchecked")
+  private static <V> Node<V>[] noChildren() {
+    return (Node<V>[]) NO_CHILDREN;
+  }
+  
+  private static class Node<V> {
+    
+    // lower case, only empty for the root
+    private final String label;
+    private volatile V value;
+    private volatile Node<V>[] children;
+    
+    private Node(String label, V value, Node<V>[] children) {
+      this.label = label;
+      this.value = value;
+      this.children = children;
+    }
+  }
+}
@@ -1,11 +1,21 @@
 package eu.openanalytics.containerproxy.util;
 
-import com.google.common.collect.Streams;
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.spec.AssetCacheSpec;
+import eu.openanalytics.containerproxy.model.spec.ContainerSpec;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.containerproxy.model.spec.UpstreamSpec;
 import eu.openanalytics.containerproxy.service.HeartbeatService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.undertow.UndertowOptions;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
-import io.undertow.server.handlers.PathHandler;
+import io.undertow.server.ResponseCommitListener;
+import io.undertow.server.handlers.Cookie;
+import io.undertow.server.handlers.CookieImpl;
 import io.undertow.server.handlers.ResponseCodeHandler;
 import io.undertow.server.handlers.proxy.LoadBalancingProxyClient;
 import io.undertow.server.handlers.proxy.ProxyCallback;
@@ -13,25 +23,37 @@ import io.undertow.server.handlers.proxy.ProxyConnection;
 import io.undertow.server.handlers.proxy.ProxyHandler;
 import io.undertow.servlet.handlers.ServletRequestContext;
 import io.undertow.util.AttachmentKey;
-import io.undertow.util.PathMatcher;
+import io.undertow.util.Headers;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.security.core.session.SessionDestroyedEvent;
 import org.springframework.stereotype.Component;
+import org.xnio.OptionMap;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /**
@@ -43,15 +65,63 @@ public class ProxyMappingManager {
   
   private static final String PROXY_INTERNAL_ENDPOINT = "/proxy_endpoint";
   private static final String PROXY_PORT_MAPPINGS_ENDPOINT = "/port_mappings";
+  private static final String PROP_UPSTREAM = "proxy.upstream.";
+  private static final long PROBE_WAIT_TIME_MS = 60000;
+  private static final OptionMap HTTP2_OPTIONS = OptionMap.create(UndertowOptions.ENABLE_HTTP2, true);
+  private static final String SHARED_ROUTE_COOKIE = "sp-shared-route";
+  private static final String DIRECT_ROUTE_COOKIE = "sp-route";
+  private static final String APP_DIRECT_ROUTE_COOKIE = "sp-app-route";
+  private static final String PROP_DIRECT_ROUTE = "proxy.direct-route.";
   private static final AttachmentKey<ProxyMappingManager> ATTACHMENT_KEY_DISPATCHER = AttachmentKey.create(ProxyMappingManager.class);
-  private final Map<String, String> mappings = new HashMap<>();
-  private final Map<String, URI> defaultTargetMappings = new HashMap<>();
+  private final Map<String, String> mappings = new ConcurrentHashMap<>();
+  // the same mappings, for looking up the proxy of a request path without scanning all mappings
+  private final PrefixTrie<String> mappingIndex = new PrefixTrie<>();
+  private final Map<String, URI> defaultTargetMappings = new ConcurrentHashMap<>();
+  private final TargetProber targetProber = new TargetProber();
   private final Logger log = LogManager.getLogger(ProxyMappingManager.class);
-  private PathHandler pathHandler;
+  private ProxyPathHandler pathHandler;
+  private final Map<String, UpstreamProxyClient> upstreams = new ConcurrentHashMap<>();
+  private final Map<String, UpstreamMetrics> upstreamMetrics = new ConcurrentHashMap<>();
+  private final Map<String, SharedUpstream> sharedUpstreams = new ConcurrentHashMap<>();
+  // null if proxy.traffic-metrics.enabled is false
+  private final TrafficMetrics trafficMetrics;
+  private final AssetCache assetCache;
+  private final ResponseCompression responseCompression;
+  // null if proxy.direct-route.enabled is false
+  private final RouteSigner routeSigner;
+  private final long routeCookieTtl;
+  // the sessions of which the route cookies are no longer accepted, until the cookies that were added for them expired
+  private final Map<String, Long> revokedSessions = new ConcurrentHashMap<>();
+  private final Counter directRouteRequests;
   private final HeartbeatService heartbeatService;
+  private final MeterRegistry registry;
+  private final Environment environment;
+  private final int ioThreads;
   
-  public ProxyMappingManager(HeartbeatService heartbeatService) {
+  public ProxyMappingManager(HeartbeatService heartbeatService, MeterRegistry registry, Environment environment) {
     this.heartbeatService = heartbeatService;
+    this.registry = registry;
+    this.environment = environment;
+    this.ioThreads = environment.getProperty("server.undertow.threads.io", Integer.class, Math.max(Runtime.getRuntime().availableProcessors(), 2));
+    if (environment.getProperty("proxy.traffic-metrics.enabled", Boolean.class, true)) {
+      this.trafficMetrics = new TrafficMetrics(registry,
+        environment.getProperty("proxy.traffic-metrics.max-proxies", Integer.class, 1000),
+        environment.getProperty("proxy.traffic-metrics.proxy-histograms", Boolean.class, false));
+    } else {
+      this.trafficMetrics = null;
+    }
+    this.assetCache = new AssetCache(
+      environment.getProperty("proxy.asset-cache.max-size", Long.class, 128L * 1024 * 1024),
+      environment.getProperty("proxy.asset-cache.max-entry-size", Integer.class, 8 * 1024 * 1024),
+      environment.getProperty("proxy.asset-cache.off-heap", Boolean.class, false));
+    this.responseCompression = new ResponseCompression(registry, environment);
+    if (environment.getProperty(PROP_DIRECT_ROUTE + "enabled", Boolean.class, true)) {
+      this.routeSigner = new RouteSigner(environment.getProperty(PROP_DIRECT_ROUTE + "secret"));
+    } else {
+      this.routeSigner = null;
+    }
+    this.routeCookieTtl = Duration.parse(environment.getProperty(PROP_DIRECT_ROUTE + "cookie-ttl", "PT10M")).toMillis();
+    this.directRouteRequests = registry.counter("directRouteRequests");
   }
   
   public synchronized HttpHandler createHttpHandler(HttpHandler defaultHandler) {
@@ -61,44 +131,317 @@ public class ProxyMappingManager {
     return pathHandler;
   }
   
-  @SuppressWarnings("deprecation")
-  public synchronized void addMapping(String proxyId, String mapping, URI target) {
+  /**
+   * Create the handler that routes requests to /api/route and /app_direct straight to the proxy handlers, before
+   * they reach the servlet stack, if they carry a valid route cookie (see addRouteCookie and addAppDirectRouteCookie).
+   * All other requests, e.g. requests to port mappings, requests without a valid cookie or when
+   * proxy.direct-route.enabled is false, go to the given handler, i.e. through Spring Security to the
+   * ProxyRouteController or AppController.
+   */
+  public HttpHandler createDirectRouteHandler(HttpHandler defaultHandler) {
+    if (routeSigner == null) return defaultHandler;
+    String contextPath = SessionHelper.getContextPath(environment, true);
+    return new DirectRouteHandler(defaultHandler, contextPath + "api/route/", contextPath + "app_direct/",
+      SessionHelper.getSessionCookieName(environment));
+  }
+  
+  /**
+   * Add a route cookie to the response of the current request, which allows the following requests of the same
+   * session to the proxy to skip the servlet stack until the cookie expires (see proxy.direct-route.cookie-ttl).
+   * Should only be called after the current user was authorized to access the proxy.
+   * <p>
+   * The cookie is bound to the session cookie of the request, so no cookie is added if the request has none yet.
+   *
+   * @param proxyId The ID of the proxy, which must be the start of the mapping that the request is dispatched to.
+   */
+  public void addRouteCookie(String proxyId) {
+    if (routeSigner == null) return;
+    HttpServerExchange exchange = ServletRequestContext.current().getExchange();
+    Cookie sessionCookie = exchange.getRequestCookie(SessionHelper.getSessionCookieName(environment));
+    if (sessionCookie == null) return;
+    
+    String value = routeSigner.sign(proxyId, sessionCookie.getValue(), System.currentTimeMillis() + routeCookieTtl);
+    exchange.setResponseCookie(new CookieImpl(DIRECT_ROUTE_COOKIE, value)
+      .setPath(getRouteCookiePath(proxyId))
+      .setMaxAge((int) (routeCookieTtl / 1000))
+      .setHttpOnly(true)
+      .setSecure(environment.getProperty("server.secureCookies", Boolean.class, false))
+      .setSameSiteMode(environment.getProperty("proxy.same-site-cookie", "Lax")));
+  }
+  
+  /**
+   * Add a route cookie for /app_direct/{app}/ to the response of the current request, like addRouteCookie.
+   * Should only be called after the current user was authorized to access the proxy, which must be up.
+   * <p>
+   * The cookie holds the endpoint of the proxy the app is served by, signed together with the app.
+   *
+   * @param appName  The ID of the spec of the proxy, as in the path of the request.
+   * @param endpoint The mapping of the proxy that requests to the app are dispatched to.
+   */
+  public void addAppDirectRouteCookie(String appName, String endpoint) {
+    if (routeSigner == null) return;
+    HttpServerExchange exchange = ServletRequestContext.current().getExchange();
+    Cookie sessionCookie = exchange.getRequestCookie(SessionHelper.getSessionCookieName(environment));
+    if (sessionCookie == null) return;
+    
+    String encodedEndpoint = Base64.getUrlEncoder().withoutPadding().encodeToString(endpoint.getBytes(StandardCharsets.UTF_8));
+    String value = encodedEndpoint + "." + routeSigner.sign(appName + "/" + endpoint, sessionCookie.getValue(), System.currentTimeMillis() + routeCookieTtl);
+    exchange.setResponseCookie(new CookieImpl(APP_DIRECT_ROUTE_COOKIE, value)
+      .setPath(getAppDirectCookiePath(appName))
+      .setMaxAge((int) (routeCookieTtl / 1000))
+      .setHttpOnly(true)
+      .setSecure(environment.getProperty("server.secureCookies", Boolean.class, false))
+      .setSameSiteMode(environment.getProperty("proxy.same-site-cookie", "Lax")));
+  }
+  
+  /**
+   * Remove the route cookies of the given proxies from the browser of the current request, e.g. when the user logs
+   * out, and stop accepting the route cookies of its session.
+   *
+   * @param proxies The proxies of the user of the current request.
+   */
+  public void removeRouteCookies(HttpServletRequest request, HttpServletResponse response, Collection<Proxy> proxies) {
+    if (routeSigner == null) return;
+    HttpSession session = request.getSession(false);
+    if (session != null) revokeRouteCookies(session.getId());
+    
+    // one cookie per proxy, with the same name but another path, so they are not set with setResponseCookie
+    for (Proxy proxy : proxies) {
+      removeCookie(response, DIRECT_ROUTE_COOKIE, getRouteCookiePath(proxy.getId()));
+      removeCookie(response, APP_DIRECT_ROUTE_COOKIE, getAppDirectCookiePath(proxy.getSpec().getId()));
+    }
+  }
+  
+  private static void removeCookie(HttpServletResponse response, String name, String path) {
+    response.addHeader(Headers.SET_COOKIE_STRING, String.format("%s=; Path=%s; Max-Age=0; Expires=Thu, 01 Jan 1970 00:00:00 GMT; HttpOnly", name, path));
+  }
+  
+  @EventListener
+  public void onSessionDestroyedEvent(SessionDestroyedEvent event) {
+    revokeRouteCookies(event.getId());
+  }
+  
+  /**
+   * Stop accepting the route cookies of the given session. The route cookies are bound to the session cookie,
+   * which a browser may still send after the session ended.
+   */
+  private void revokeRouteCookies(String sessionId) {
+    if (routeSigner == null || sessionId == null) return;
+    long now = System.currentTimeMillis();
+    // a route cookie of the session that is older than its ttl is rejected anyway
+    revokedSessions.values().removeIf(expiry -> expiry < now);
+    revokedSessions.put(sessionId, now + routeCookieTtl);
+  }
+  
+  private String getRouteCookiePath(String proxyId) {
+    return SessionHelper.getContextPath(environment, true) + "api/route/" + proxyId + "/";
+  }
+  
+  private String getAppDirectCookiePath(String appName) {
+    return SessionHelper.getContextPath(environment, true) + "app_direct/" + appName + "/";
+  }
+  
+  /**
+   * @return The ID of the session of the given session cookie: Spring Session encodes it in its cookie with base64.
+   */
+  private String getSessionId(Cookie sessionCookie) {
+    String value = sessionCookie.getValue();
+    if (sessionCookie.getName().equals("JSESSIONID")) return value;
+    try {
+      return new String(Base64.getDecoder().decode(value), StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      return value;
+    }
+  }
+  
+  /**
+   * @return The given path, with every sequence of slashes replaced by a single slash.
+   */
+  private static String collapseSlashes(String path) {
+    if (!path.contains("//")) return path;
+    StringBuilder collapsed = new StringBuilder(path.length());
+    for (int i = 0; i < path.length(); i++) {
+      char c = path.charAt(i);
+      if (c != '/' || i == 0 || path.charAt(i - 1) != '/') collapsed.append(c);
+    }
+    return collapsed.toString();
+  }
+  
+  public synchronized void addMapping(Proxy proxy, String mapping, URI target) {
     if (pathHandler == null) throw new IllegalStateException("Cannot change mappings: web server is not yet running.");
     if (mappings.get(mapping) != null) return;
     
-    LoadBalancingProxyClient proxyClient = new LoadBalancingProxyClient() {
-      @Override
-      public void getConnection(ProxyTarget target, HttpServerExchange exchange, ProxyCallback<ProxyConnection> callback, long timeout, TimeUnit timeUnit) {
-        try {
-          exchange.addResponseCommitListener(ex -> heartbeatService.attachHeartbeatChecker(ex, proxyId));
-        } catch (Exception e) {
-          log.error(e);
-        }
-        super.getConnection(target, exchange, callback, timeout, timeUnit);
-      }
-    };
-    proxyClient.setMaxQueueSize(100);
-    proxyClient.addHost(target);
+    String proxyId = proxy.getId();
+    // created once per mapping, so no listener is allocated per proxied request
+    ResponseCommitListener heartbeatListener = ex -> heartbeatService.attachHeartbeatChecker(ex, proxy);
+    TrafficMetrics.Recorder recorder = trafficMetrics == null ? null : trafficMetrics.acquire(proxy);
+    UpstreamProxyClient proxyClient = createProxyClient(proxy.getSpec(), heartbeatListener, recorder);
+    addHost(proxyClient, target, null);
     
+    upstreams.put(mapping, proxyClient);
     mappings.put(mapping, proxyId);
+    mappingIndex.put(mapping, proxyId);
     defaultTargetMappings.computeIfAbsent(proxyId, key -> target);
     
-    String path = PROXY_INTERNAL_ENDPOINT + "/" + mapping;
-    pathHandler.addPrefixPath(path, new ProxyHandler(proxyClient, ResponseCodeHandler.HANDLE_404));
+    HttpHandler handler = wrapProxyHandler(proxy, mapping, new ProxyHandler(proxyClient, ResponseCodeHandler.HANDLE_404));
+    pathHandler.addPrefixPath(PROXY_INTERNAL_ENDPOINT + "/" + mapping, recorder == null ? handler : new TrafficMetricsHandler(handler, recorder));
+  }
+  
+  /**
+   * Add a mapping of a proxy that does not have containers of its own, but is served by the replicas of a
+   * shared spec (see SharedProxyService). The requests of the mapping are balanced over the replicas of the pool,
+   * but stick to the given replica as long as it is available.
+   *
+   * @param proxy   The proxy of the user.
+   * @param mapping The mapping to add.
+   * @param poolId  The ID of the pool of replicas, to which at least one replica was added.
+   * @param route   The ID of the replica that the requests of this proxy stick to.
+   */
+  public synchronized void addSharedMapping(Proxy proxy, String mapping, String poolId, String route) {
+    if (pathHandler == null) throw new IllegalStateException("Cannot change mappings: web server is not yet running.");
+    if (mappings.get(mapping) != null) return;
+    SharedUpstream upstream = sharedUpstreams.get(poolId);
+    if (upstream == null) throw new IllegalStateException("Cannot add shared mapping: pool " + poolId + " has no replicas.");
+    
+    String proxyId = proxy.getId();
+    ResponseCommitListener heartbeatListener = ex -> heartbeatService.attachHeartbeatChecker(ex, proxy);
+    TrafficMetrics.Recorder recorder = trafficMetrics == null ? null : trafficMetrics.acquire(proxy);
+    mappings.put(mapping, proxyId);
+    mappingIndex.put(mapping, proxyId);
+    
+    HttpHandler proxyHandler = wrapProxyHandler(proxy, mapping, new ProxyHandler(upstream.proxyClient, ResponseCodeHandler.HANDLE_404));
+    // the load balancer takes the route from the part of the cookie value after the '.'
+    String stickyRoute = proxyId + "." + route;
+    HttpHandler handler = exchange -> {
+      exchange.setRequestCookie(new CookieImpl(SHARED_ROUTE_COOKIE, stickyRoute));
+      exchange.addResponseCommitListener(heartbeatListener);
+      long startTime = System.nanoTime();
+      exchange.addExchangeCompleteListener((ex, nextListener) -> {
+        upstream.requestNanos.add(System.nanoTime() - startTime);
+        upstream.requests.increment();
+        nextListener.proceed();
+      });
+      proxyHandler.handleRequest(exchange);
+    };
+    pathHandler.addPrefixPath(PROXY_INTERNAL_ENDPOINT + "/" + mapping, recorder == null ? handler : new TrafficMetricsHandler(handler, recorder));
+  }
+  
+  /**
+   * Add a replica of a shared spec to the hosts of its pool, with the ID of the replica as its route.
+   */
+  public synchronized void addReplica(String poolId, Proxy replica) {
+    SharedUpstream upstream = sharedUpstreams.computeIfAbsent(poolId, id -> new SharedUpstream(createProxyClient(replica.getSpec(), null, null)));
+    URI target = getReplicaTarget(replica);
+    if (target != null) upstream.hosts.put(target, addHost(upstream.proxyClient, target, replica.getId()));
+  }
+  
+  public synchronized void removeReplica(String poolId, Proxy replica) {
+    SharedUpstream upstream = sharedUpstreams.get(poolId);
+    URI target = getReplicaTarget(replica);
+    if (upstream == null || target == null) return;
+    upstream.proxyClient.removeHost(upstream.hosts.getOrDefault(target, target));
+    upstream.hosts.remove(target);
+    upstream.proxyClient.metrics.capacity.addAndGet(-upstream.proxyClient.capacity);
+  }
+  
+  /**
+   * @return The mean time in milliseconds of the requests to the replicas of a pool since the previous call,
+   * or 0 if there were no requests.
+   */
+  public double getSharedLatency(String poolId) {
+    SharedUpstream upstream = sharedUpstreams.get(poolId);
+    if (upstream == null) return 0;
+    long requests = upstream.requests.sumThenReset();
+    long nanos = upstream.requestNanos.sumThenReset();
+    return requests == 0 ? 0 : (double) nanos / requests / 1_000_000;
+  }
+  
+  private static URI getReplicaTarget(Proxy replica) {
+    URI target = replica.getTargets().get(replica.getId());
+    if (target != null || replica.getTargets().isEmpty()) return target;
+    return replica.getTargets().values().iterator().next();
+  }
+  
+  private UpstreamProxyClient createProxyClient(ProxySpec spec, ResponseCommitListener heartbeatListener, TrafficMetrics.Recorder recorder) {
+    UpstreamSpec upstream = spec.getUpstream() == null ? new UpstreamSpec() : spec.getUpstream();
+    UpstreamMetrics metrics = upstreamMetrics.computeIfAbsent(spec.getId(), UpstreamMetrics::new);
+    
+    int connectionsPerThread = getUpstreamSetting(upstream.getConnectionsPerThread(), "connections-per-thread", 10);
+    boolean http2 = upstream.getHttp2() != null ? upstream.getHttp2() : environment.getProperty(PROP_UPSTREAM + "http2", Boolean.class, false);
+    UpstreamProxyClient proxyClient = new UpstreamProxyClient(heartbeatListener, metrics, recorder, connectionsPerThread * ioThreads, http2);
+    proxyClient.setConnectionsPerThread(connectionsPerThread);
+    proxyClient.setSoftMaxConnectionsPerThread(getUpstreamSetting(upstream.getSoftMaxConnectionsPerThread(), "soft-max-connections-per-thread", 5));
+    proxyClient.setMaxQueueSize(getUpstreamSetting(upstream.getMaxQueueSize(), "max-queue-size", 100));
+    int ttl = getUpstreamSetting(upstream.getTtl(), "ttl", -1);
+    proxyClient.setTtl(ttl < 0 ? -1 : ttl * 1000);
+    proxyClient.setProblemServerRetry(getUpstreamSetting(upstream.getProblemServerRetry(), "problem-server-retry", 10));
+    return proxyClient;
+  }
+  
+  /**
+   * @return The URI of the host as it was added to the client.
+   */
+  @SuppressWarnings("deprecation")
+  private URI addHost(UpstreamProxyClient proxyClient, URI target, String route) {
+    URI host = target;
+    OptionMap options = OptionMap.EMPTY;
+    if (proxyClient.http2 && "http".equalsIgnoreCase(target.getScheme())) {
+      try {
+        // upgrade to cleartext HTTP/2 when the connection is opened
+        host = new URI("h2c", target.getUserInfo(), target.getHost(), target.getPort(), target.getPath(), null, null);
+        options = HTTP2_OPTIONS;
+      } catch (URISyntaxException e) {
+        log.warn("Cannot use HTTP/2 for target " + target, e);
+      }
+    }
+    proxyClient.addHost(host, route, null, options);
+    proxyClient.metrics.capacity.addAndGet(proxyClient.capacity);
+    return host;
+  }
+  
+  /**
+   * Add the handlers that apply to the responses of a mapping, see ResponseCompression and AssetCacheHandler.
+   */
+  private HttpHandler wrapProxyHandler(Proxy proxy, String mapping, HttpHandler handler) {
+    String proxyId = proxy.getId();
+    // inside the asset cache, so the cache stores (and serves) compressed responses
+    handler = responseCompression.wrap(handler, proxy.getSpec());
+    AssetCacheSpec assetCacheSpec = proxy.getSpec().getAssetCache();
+    if (assetCacheSpec != null && assetCacheSpec.isEnabled()) {
+      // the proxy ID is left out of the key, so all proxies of the spec share the entries
+      String images = proxy.getSpec().getContainerSpecs().stream().map(ContainerSpec::getImage).collect(Collectors.joining(","));
+      String keyPrefix = proxy.getSpec().getId() + "|" + images + "|" + (mapping.startsWith(proxyId) ? mapping.substring(proxyId.length()) : mapping);
+      handler = new AssetCacheHandler(handler, assetCache, keyPrefix, assetCacheSpec, registry, proxy.getSpec().getId(),
+        responseCompression.getEncodings(proxy.getSpec()));
+    }
+    return handler;
   }
   
   public synchronized void removeMapping(String mapping) {
     if (pathHandler == null) throw new IllegalStateException("Cannot change mappings: web server is not yet running.");
     String proxyId = mappings.remove(mapping);
-    defaultTargetMappings.remove(proxyId);
+    mappingIndex.remove(mapping);
+    if (proxyId != null) targetProber.forget(proxyId + PROXY_PORT_MAPPINGS_ENDPOINT + "/");
+    UpstreamProxyClient proxyClient = upstreams.remove(mapping);
+    if (proxyClient != null) proxyClient.metrics.capacity.addAndGet(-proxyClient.capacity);
+    if (proxyId != null && trafficMetrics != null) trafficMetrics.release(proxyId);
+    if (proxyId != null) defaultTargetMappings.remove(proxyId);
     pathHandler.removePrefixPath(PROXY_INTERNAL_ENDPOINT + "/" + mapping);
   }
   
+  private int getUpstreamSetting(Integer specValue, String property, int defaultValue) {
+    if (specValue != null) return specValue;
+    return environment.getProperty(PROP_UPSTREAM + property, Integer.class, defaultValue);
+  }
+  
+  /**
+   * Find the proxy that a request path belongs to, ignoring case.
+   *
+   * @param mapping The request path, relative to the proxy endpoint.
+   * @return The ID of the proxy of the longest mapping that is a prefix of the path, or null if there is none.
+   */
   public String getProxyId(String mapping) {
-    for (Entry<String, String> e : mappings.entrySet()) {
-      if (mapping.toLowerCase().startsWith(e.getKey().toLowerCase())) return e.getValue();
-    }
-    return null;
+    return mappingIndex.getLongestPrefixMatch(mapping);
   }
   
   public String getProxyPortMappingsEndpoint() {
@@ -156,41 +499,42 @@ public class ProxyMappingManager {
     
     String proxyId = proxy.getId();
     URI defaultTarget = defaultTargetMappings.get(proxyId);
+    if (defaultTarget == null) {
+      // e.g. a proxy of a shared spec, which has no container of its own
+      response.sendError(404);
+      return;
+    }
     String port_mapping = proxyId + PROXY_PORT_MAPPINGS_ENDPOINT + "/" + port;
     URI newTarget = new URI(defaultTarget.getScheme() + "://" + defaultTarget.getHost() + ":" + port);
     
-    boolean targetConnected = Retrying.retry(i -> {
-      try {
-				String query = request.getQueryString() == null ? "" : "?" + request.getQueryString();
-        log.debug("request protocol: {}, scheme: {}, headers: {}", request.getProtocol(), request.getScheme(), Streams.stream(request.getHeaderNames().asIterator()).collect(Collectors.toList()));
-        
-        // Handle websocket case
-				if (request.getHeaders("Sec-WebSocket-Protocol").hasMoreElements()) {
-          return true;
+    if (!mappings.containsKey(port_mapping)) {
+      // Handle websocket case
+      boolean websocket = request.getHeaders("Sec-WebSocket-Protocol").hasMoreElements();
+      if (!websocket) {
+        String query = request.getQueryString() == null ? "" : "?" + request.getQueryString();
+        CompletableFuture<Boolean> probe = targetProber.probe(port_mapping, newTarget, mapping + query,
+          exchange.getConnection().getWorker(), exchange.getConnection().getByteBufferPool());
+        if (!probe.isDone()) {
+          // suspend the request until the probe is done, then handle it again
+          AsyncContext asyncContext = request.startAsync();
+          asyncContext.setTimeout(PROBE_WAIT_TIME_MS);
+          probe.whenComplete((ready, error) -> {
+            try {
+              asyncContext.dispatch();
+            } catch (IllegalStateException e) {
+              // the request already timed out
+            }
+          });
+          return;
         }
-				URL testURL = new URL(newTarget + mapping + query);
-				log.debug("Testing url of {}", testURL);
-				HttpURLConnection connection = (HttpURLConnection) testURL.openConnection();
-				connection.setConnectTimeout(5000);
-        connection.setInstanceFollowRedirects(false);
-        int responseCode = connection.getResponseCode();
-        log.debug("received connection from {}, status code: {}", testURL, responseCode);
-				if (responseCode < 400) {
-				  log.debug("successfully connected to target {}", testURL);
-				  return true;
+        if (!probe.join()) {
+          response.sendError(404);
+          return;
         }
-      } catch (Exception e) {
-        log.debug("Trying to connect target URL ({}/{})", i, 5);
       }
-      return false;
-    }, 5, 2000, true);
-    
-    if (!targetConnected) {
-      response.sendError(404);
-      return;
+      addMapping(proxy, port_mapping, newTarget);
+      proxy.getTargets().put(port_mapping, newTarget);
     }
-    addMapping(proxyId, port_mapping, newTarget);
-    proxy.getTargets().put(port_mapping, newTarget);
     
     String queryString = request.getQueryString();
     queryString = (queryString == null) ? "" : "?" + queryString;
@@ -199,28 +543,291 @@ public class ProxyMappingManager {
     request.getRequestDispatcher(targetPath).forward(request, response);
   }
   
-  private static class ProxyPathHandler extends PathHandler {
+  /**
+   * The connection pool to the target of a single mapping. Records how long requests wait for a connection and
+   * how many requests are using a connection, for the spec of the mapping.
+   */
+  private class UpstreamProxyClient extends LoadBalancingProxyClient {
+    
+    private final ResponseCommitListener heartbeatListener;
+    private final UpstreamMetrics metrics;
+    // null if traffic metrics are disabled
+    private final TrafficMetrics.Recorder recorder;
+    // the maximum number of connections to a single target
+    private final int capacity;
+    private final boolean http2;
+    
+    private UpstreamProxyClient(ResponseCommitListener heartbeatListener, UpstreamMetrics metrics, TrafficMetrics.Recorder recorder, int capacity, boolean http2) {
+      this.heartbeatListener = heartbeatListener;
+      this.metrics = metrics;
+      this.recorder = recorder;
+      this.capacity = capacity;
+      this.http2 = http2;
+    }
+    
+    @Override
+    public void getConnection(ProxyTarget target, HttpServerExchange exchange, ProxyCallback<ProxyConnection> callback, long timeout, TimeUnit timeUnit) {
+      try {
+        if (heartbeatListener != null) exchange.addResponseCommitListener(heartbeatListener);
+      } catch (Exception e) {
+        log.error(e);
+      }
+      long startTime = System.nanoTime();
+      super.getConnection(target, exchange, new ProxyCallback<ProxyConnection>() {
+        @Override
+        public void completed(HttpServerExchange exchange, ProxyConnection result) {
+          long connectTime = System.nanoTime() - startTime;
+          metrics.connectionWait.record(connectTime, TimeUnit.NANOSECONDS);
+          if (recorder != null) recorder.recordUpstreamConnect(connectTime);
+          metrics.activeRequests.incrementAndGet();
+          exchange.addExchangeCompleteListener((ex, nextListener) -> {
+            metrics.activeRequests.decrementAndGet();
+            nextListener.proceed();
+          });
+          callback.completed(exchange, result);
+        }
+        
+        @Override
+        public void failed(HttpServerExchange exchange) {
+          metrics.connectionFailures.increment();
+          callback.failed(exchange);
+        }
+        
+        @Override
+        public void couldNotResolveBackend(HttpServerExchange exchange) {
+          metrics.connectionFailures.increment();
+          callback.couldNotResolveBackend(exchange);
+        }
+        
+        @Override
+        public void queuedRequestFailed(HttpServerExchange exchange) {
+          metrics.connectionFailures.increment();
+          callback.queuedRequestFailed(exchange);
+        }
+      }, timeout, timeUnit);
+    }
+  }
+  
+  /**
+   * The connection pool to the replicas of a shared spec, with the time of the requests to measure its latency.
+   */
+  private static class SharedUpstream {
+    
+    private final UpstreamProxyClient proxyClient;
+    // the hosts of the replicas, by their target
+    private final Map<URI, URI> hosts = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder requestNanos = new LongAdder();
+    
+    private SharedUpstream(UpstreamProxyClient proxyClient) {
+      this.proxyClient = proxyClient;
+      // only the route cookie of the mapping selects the replica, not the cookies of the apps
+      proxyClient.removeSessionCookieName("JSESSIONID");
+      proxyClient.addSessionCookieName(SHARED_ROUTE_COOKIE);
+    }
+  }
+  
+  private class UpstreamMetrics {
+    
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger capacity = new AtomicInteger();
+    private final Timer connectionWait;
+    private final Counter connectionFailures;
+    
+    private UpstreamMetrics(String specId) {
+      connectionWait = registry.timer("upstreamConnectionWait", "spec.id", specId);
+      connectionFailures = registry.counter("upstreamConnectionFailures", "spec.id", specId);
+      registry.gauge("upstreamActiveRequests", Tags.of("spec.id", specId), activeRequests);
+      // the share of all connections to the containers of the spec that is in use
+      registry.gauge("upstreamPoolSaturation", Tags.of("spec.id", specId), this,
+        m -> m.capacity.get() == 0 ? 0 : (double) m.activeRequests.get() / m.capacity.get());
+    }
+  }
+  
+  /**
+   * Routes the requests that were dispatched to a proxy mapping to the handler of that mapping, and all other requests
+   * to the default handler.
+   * <p>
+   * The routes are kept in an immutable snapshot that is replaced as a whole when a mapping is added or removed,
+   * so requests are matched without locking against concurrent changes. Like Undertow's PathHandler, a route matches
+   * a request path if it is equal to the path, or to a prefix of the path that ends at a '/'. The longest route wins.
+   */
+  private static class ProxyPathHandler implements HttpHandler {
+    
+    private final HttpHandler defaultHandler;
+    private volatile Routes routes = new Routes(Collections.emptyMap());
     
     public ProxyPathHandler(HttpHandler defaultHandler) {
-      super(defaultHandler);
+      this.defaultHandler = defaultHandler;
+    }
+    
+    public synchronized void addPrefixPath(String path, HttpHandler handler) {
+      Map<String, HttpHandler> handlers = new HashMap<>(routes.handlers);
+      handlers.put(path, handler);
+      routes = new Routes(handlers);
+    }
+    
+    public synchronized void removePrefixPath(String path) {
+      if (!routes.handlers.containsKey(path)) return;
+      Map<String, HttpHandler> handlers = new HashMap<>(routes.handlers);
+      handlers.remove(path);
+      routes = new Routes(handlers);
+    }
+    
+    @Override
+    public void handleRequest(HttpServerExchange exchange) throws Exception {
+      if (!handleRoute(exchange, exchange.getRelativePath(), exchange.getResolvedPath())) {
+        defaultHandler.handleRequest(exchange);
+      }
+    }
+    
+    /**
+     * Hand a request to the handler of the route that matches the given path.
+     *
+     * @return False if no route matches the path, in which case the exchange was not changed.
+     */
+    private boolean handleRoute(HttpServerExchange exchange, String path, String resolvedPath) throws Exception {
+      Routes routes = this.routes;
+      for (int length : routes.lengths) {
+        if (length > path.length() || (length < path.length() && path.charAt(length) != '/')) continue;
+        String matched = path.substring(0, length);
+        HttpHandler handler = routes.handlers.get(matched);
+        if (handler == null) continue;
+        
+        // Note: this handler may never be accessed directly (because it bypasses Spring security).
+        // Only allowed if the request was dispatched via this class.
+        if (exchange.getAttachment(ATTACHMENT_KEY_DISPATCHER) == null) {
+          exchange.setStatusCode(403);
+          exchange.getResponseChannel().write(ByteBuffer.wrap("Not authorized to access this proxy".getBytes()));
+          return true;
+        }
+        
+        exchange.setRelativePath(path.substring(length));
+        exchange.setResolvedPath(resolvedPath + matched);
+        handler.handleRequest(exchange);
+        return true;
+      }
+      return false;
+    }
+  }
+  
+  /**
+   * Routes the requests to /api/route/{proxyId}/ that carry a valid route cookie for the proxy and their session,
+   * to the proxy handler of their mapping, like a dispatch by ProxyRouteController but without the filter chain,
+   * DispatcherServlet and servlet forward. Requests to /app_direct/{app}/ are routed likewise to the endpoint in
+   * their route cookie, like a dispatch by AppController.
+   * <p>
+   * Runs before Undertow's servlet handler, so on the I/O thread, and must therefore never block.
+   */
+  private class DirectRouteHandler implements HttpHandler {
+    
+    private final HttpHandler defaultHandler;
+    private final String routePath;
+    private final String appDirectPath;
+    private final String sessionCookieName;
+    
+    private DirectRouteHandler(HttpHandler defaultHandler, String routePath, String appDirectPath, String sessionCookieName) {
+      this.defaultHandler = defaultHandler;
+      this.routePath = routePath;
+      this.appDirectPath = appDirectPath;
+      this.sessionCookieName = sessionCookieName;
     }
     
-    @SuppressWarnings("unchecked")
     @Override
     public void handleRequest(HttpServerExchange exchange) throws Exception {
-      Field field = PathHandler.class.getDeclaredField("pathMatcher");
-      field.setAccessible(true);
-      PathMatcher<HttpHandler> pathMatcher = (PathMatcher<HttpHandler>) field.get(this);
-      PathMatcher.PathMatch<HttpHandler> match = pathMatcher.match(exchange.getRelativePath());
+      if (!handleDirect(exchange)) defaultHandler.handleRequest(exchange);
+    }
+    
+    private boolean handleDirect(HttpServerExchange exchange) throws Exception {
+      ProxyPathHandler pathHandler = ProxyMappingManager.this.pathHandler;
+      String requestURI = exchange.getRequestURI();
+      if (pathHandler == null || exchange.isHostIncludedInRequestURI()) return false;
+      Cookie sessionCookie = exchange.getRequestCookie(sessionCookieName);
+      if (sessionCookie == null) return false;
       
-      // Note: this handler may never be accessed directly (because it bypasses Spring security).
-      // Only allowed if the request was dispatched via this class.
-      if (match.getValue() instanceof ProxyHandler && exchange.getAttachment(ATTACHMENT_KEY_DISPATCHER) == null) {
-        exchange.setStatusCode(403);
-        exchange.getResponseChannel().write(ByteBuffer.wrap("Not authorized to access this proxy".getBytes()));
+      String mapping;
+      if (requestURI.startsWith(routePath)) {
+        mapping = getRouteMapping(exchange, collapseSlashes(requestURI.substring(routePath.length())), sessionCookie);
+      } else if (requestURI.startsWith(appDirectPath)) {
+        mapping = getAppDirectMapping(exchange, collapseSlashes(requestURI.substring(appDirectPath.length())), sessionCookie);
       } else {
-        super.handleRequest(exchange);
+        return false;
+      }
+      if (mapping == null) return false;
+      if (!revokedSessions.isEmpty() && revokedSessions.containsKey(getSessionId(sessionCookie))) return false;
+      
+      // the proxy handler forwards the request URI after the resolved path, as after a servlet forward
+      String targetPath = PROXY_INTERNAL_ENDPOINT + "/" + mapping;
+      String requestPath = exchange.getRequestPath();
+      exchange.putAttachment(ATTACHMENT_KEY_DISPATCHER, ProxyMappingManager.this);
+      exchange.setRequestURI(targetPath);
+      exchange.setRequestPath(targetPath);
+      if (pathHandler.handleRoute(exchange, targetPath, "")) {
+        directRouteRequests.increment();
+        return true;
+      }
+      
+      // the mapping was removed in the meantime
+      exchange.removeAttachment(ATTACHMENT_KEY_DISPATCHER);
+      exchange.setRequestURI(requestURI);
+      exchange.setRequestPath(requestPath);
+      return false;
+    }
+    
+    /**
+     * @param path The request path after /api/route/.
+     * @return The mapping to dispatch the request to, or null if the request has no valid route cookie for it.
+     */
+    private String getRouteMapping(HttpServerExchange exchange, String path, Cookie sessionCookie) {
+      Cookie routeCookie = exchange.getRequestCookie(DIRECT_ROUTE_COOKIE);
+      if (routeCookie == null) return null;
+      String proxyId = getProxyId(path);
+      // the controller redirects requests without a sub path, and creates the port mappings
+      if (proxyId == null || !path.startsWith(proxyId + "/")) return null;
+      String subPath = path.substring(proxyId.length());
+      if (subPath.equals(PROXY_PORT_MAPPINGS_ENDPOINT) || subPath.startsWith(PROXY_PORT_MAPPINGS_ENDPOINT + "/")) return null;
+      if (!routeSigner.verify(proxyId, sessionCookie.getValue(), routeCookie.getValue())) return null;
+      return path;
+    }
+    
+    /**
+     * @param path The request path after /app_direct/, i.e. {app}/{subPath}.
+     * @return The mapping to dispatch the request to, or null if the request has no valid route cookie for it.
+     */
+    private String getAppDirectMapping(HttpServerExchange exchange, String path, Cookie sessionCookie) {
+      Cookie routeCookie = exchange.getRequestCookie(APP_DIRECT_ROUTE_COOKIE);
+      if (routeCookie == null) return null;
+      int appEnd = path.indexOf('/');
+      // the controller redirects requests without a sub path, and creates the port mappings
+      if (appEnd <= 0) return null;
+      String appName = path.substring(0, appEnd);
+      String subPath = path.substring(appEnd);
+      if (subPath.startsWith("/port/")) return null;
+      
+      String value = routeCookie.getValue();
+      int separator = value.indexOf('.');
+      if (separator <= 0) return null;
+      String endpoint;
+      try {
+        endpoint = new String(Base64.getUrlDecoder().decode(value.substring(0, separator)), StandardCharsets.UTF_8);
+      } catch (IllegalArgumentException e) {
+        return null;
       }
+      if (!routeSigner.verify(appName + "/" + endpoint, sessionCookie.getValue(), value.substring(separator + 1))) return null;
+      return endpoint + subPath;
+    }
+  }
+  
+  private static class Routes {
+    
+    private final Map<String, HttpHandler> handlers;
+    // the distinct lengths of the routes, longest first
+    private final int[] lengths;
+    
+    private Routes(Map<String, HttpHandler> handlers) {
+      this.handlers = handlers;
+      this.lengths = handlers.keySet().stream().mapToInt(String::length).distinct()
+        .boxed().sorted(Comparator.reverseOrder()).mapToInt(Integer::intValue).toArray();
     }
   }
 }
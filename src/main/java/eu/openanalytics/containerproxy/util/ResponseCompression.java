@@ -0,0 +1,305 @@
+package eu.openanalytics.containerproxy.util;
+
+import eu.openanalytics.containerproxy.model.spec.CompressionSpec;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.undertow.predicate.Predicate;
+import io.undertow.server.ConduitWrapper;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.encoding.ContentEncodingProvider;
+import io.undertow.server.handlers.encoding.ContentEncodingRepository;
+import io.undertow.server.handlers.encoding.DeflateEncodingProvider;
+import io.undertow.server.handlers.encoding.EncodingHandler;
+import io.undertow.server.handlers.encoding.GzipEncodingProvider;
+import io.undertow.util.HeaderMap;
+import io.undertow.util.Headers;
+import io.undertow.util.StatusCodes;
+import org.springframework.core.env.Environment;
+import org.xnio.channels.StreamSourceChannel;
+import org.xnio.conduits.AbstractStreamSinkConduit;
+import org.xnio.conduits.ConduitWritableByteChannel;
+import org.xnio.conduits.Conduits;
+import org.xnio.conduits.StreamSinkConduit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compresses the responses of containers that do not compress their responses themselves, with gzip or deflate,
+ * as negotiated from the Accept-Encoding header of the request.
+ * <p>
+ * A response is only compressed if it is not encoded yet, has one of the configured media types, and has no length
+ * or a length of at least the minimum size. Websocket upgrades and event streams are never compressed.
+ * The settings of a spec fall back to proxy.compression.*, compression is disabled by default.
+ * <p>
+ * Per spec and encoding, compressionBytesIn counts the bytes before compression, compressionBytesSaved the bytes that
+ * compression saved, and compressionTime the time spent compressing (excluding the time spent writing the
+ * compressed bytes to the connection).
+ */
+public class ResponseCompression {
+  
+  private static final String PROP_COMPRESSION = "proxy.compression.";
+  // the encodings the responses are compressed with, in the order of preference of the EncodingHandler
+  private static final List<String> ENCODINGS = Arrays.asList("gzip", "deflate");
+  private static final String[] DEFAULT_MIME_TYPES = {"text/html", "text/css", "text/plain", "text/xml", "text/csv",
+    "text/javascript", "application/javascript", "application/json", "application/xml", "image/svg+xml"};
+  
+  private final MeterRegistry registry;
+  private final Environment environment;
+  
+  public ResponseCompression(MeterRegistry registry, Environment environment) {
+    this.registry = registry;
+    this.environment = environment;
+  }
+  
+  /**
+   * @return A handler that compresses the responses of the given handler, or the given handler itself if
+   * compression is disabled for the spec.
+   */
+  public HttpHandler wrap(HttpHandler next, ProxySpec spec) {
+    if (!isEnabled(spec)) return next;
+    CompressionSpec compression = spec.getCompression() == null ? new CompressionSpec() : spec.getCompression();
+    
+    Set<String> mimeTypes = new HashSet<>(compression.getMimeTypes() != null ? compression.getMimeTypes()
+      : Arrays.asList(environment.getProperty(PROP_COMPRESSION + "mime-types", String[].class, DEFAULT_MIME_TYPES)));
+    int minSize = compression.getMinSize() != null ? compression.getMinSize() : environment.getProperty(PROP_COMPRESSION + "min-size", Integer.class, 1024);
+    int level = compression.getLevel() != null ? compression.getLevel() : environment.getProperty(PROP_COMPRESSION + "level", Integer.class, 6);
+    
+    Predicate predicate = exchange -> shouldCompress(exchange, mimeTypes, minSize);
+    ContentEncodingRepository repository = new ContentEncodingRepository()
+      .addEncodingHandler("gzip", new MeteredEncodingProvider(new GzipEncodingProvider(level), spec.getId(), "gzip"), 100, predicate)
+      .addEncodingHandler("deflate", new MeteredEncodingProvider(new DeflateEncodingProvider(level), spec.getId(), "deflate"), 50, predicate);
+    return new EncodingHandler(next, repository);
+  }
+  
+  /**
+   * @return The encodings the responses of the given spec may be compressed with, in the order of preference when a
+   * request accepts several with the same q-value, or an empty list if compression is disabled for the spec.
+   */
+  public List<String> getEncodings(ProxySpec spec) {
+    return isEnabled(spec) ? ENCODINGS : Collections.emptyList();
+  }
+  
+  private boolean isEnabled(ProxySpec spec) {
+    Boolean enabled = spec.getCompression() == null ? null : spec.getCompression().getEnabled();
+    return enabled != null ? enabled : environment.getProperty(PROP_COMPRESSION + "enabled", Boolean.class, false);
+  }
+  
+  private static boolean shouldCompress(HttpServerExchange exchange, Set<String> mimeTypes, int minSize) {
+    int statusCode = exchange.getStatusCode();
+    if (statusCode == StatusCodes.SWITCHING_PROTOCOLS || statusCode == StatusCodes.NO_CONTENT || statusCode == StatusCodes.NOT_MODIFIED) return false;
+    if (exchange.getRequestHeaders().contains(Headers.UPGRADE)) return false;
+    
+    HeaderMap responseHeaders = exchange.getResponseHeaders();
+    String contentEncoding = responseHeaders.getFirst(Headers.CONTENT_ENCODING);
+    if (contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity")) return false;
+    
+    String contentType = responseHeaders.getFirst(Headers.CONTENT_TYPE);
+    if (contentType == null) return false;
+    int parameters = contentType.indexOf(';');
+    String mimeType = (parameters < 0 ? contentType : contentType.substring(0, parameters)).trim().toLowerCase();
+    // event streams are flushed per event, compressing them would delay the events
+    if (mimeType.equals("text/event-stream") || !mimeTypes.contains(mimeType)) return false;
+    
+    String contentLength = responseHeaders.getFirst(Headers.CONTENT_LENGTH);
+    if (contentLength == null) return true;
+    try {
+      return Long.parseLong(contentLength) >= minSize;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+  
+  /**
+   * Measures the compression of a provider of Undertow.
+   */
+  private class MeteredEncodingProvider implements ContentEncodingProvider {
+    
+    private final ContentEncodingProvider delegate;
+    private final Counter bytesIn;
+    private final Counter bytesSaved;
+    private final Timer time;
+    
+    private MeteredEncodingProvider(ContentEncodingProvider delegate, String specId, String encoding) {
+      this.delegate = delegate;
+      this.bytesIn = registry.counter("compressionBytesIn", "spec.id", specId, "encoding", encoding);
+      this.bytesSaved = registry.counter("compressionBytesSaved", "spec.id", specId, "encoding", encoding);
+      this.time = registry.timer("compressionTime", "spec.id", specId, "encoding", encoding);
+    }
+    
+    @Override
+    public ConduitWrapper<StreamSinkConduit> getResponseWrapper() {
+      ConduitWrapper<StreamSinkConduit> wrapper = delegate.getResponseWrapper();
+      return (factory, exchange) -> {
+        if (!exchange.getResponseHeaders().contains(Headers.VARY)) {
+          exchange.getResponseHeaders().put(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+        }
+        Stats stats = new Stats();
+        StreamSinkConduit compressing = wrapper.wrap(() -> new CompressedSinkConduit(factory.create(), stats), exchange);
+        exchange.addExchangeCompleteListener((ex, nextListener) -> {
+          bytesIn.increment(stats.bytesIn);
+          bytesSaved.increment(Math.max(0, stats.bytesIn - stats.bytesOut));
+          time.record(Math.max(0, stats.totalNanos - stats.writeNanos), TimeUnit.NANOSECONDS);
+          nextListener.proceed();
+        });
+        return new UncompressedSinkConduit(compressing, stats);
+      };
+    }
+  }
+  
+  /**
+   * The compression of a single response. Only changed by the thread that writes the response.
+   */
+  private static class Stats {
+    
+    private long bytesIn;
+    private long bytesOut;
+    // the time spent in the compressing conduit, including writing to the connection
+    private long totalNanos;
+    // the time spent writing the compressed bytes to the connection
+    private long writeNanos;
+  }
+  
+  /**
+   * Counts the bytes that are written to the compressing conduit and the time spent in it.
+   */
+  private static class UncompressedSinkConduit extends AbstractStreamSinkConduit<StreamSinkConduit> {
+    
+    private final Stats stats;
+    
+    private UncompressedSinkConduit(StreamSinkConduit next, Stats stats) {
+      super(next);
+      this.stats = stats;
+    }
+    
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      long startTime = System.nanoTime();
+      int written = next.write(src);
+      stats.totalNanos += System.nanoTime() - startTime;
+      if (written > 0) stats.bytesIn += written;
+      return written;
+    }
+    
+    @Override
+    public long write(ByteBuffer[] srcs, int offs, int len) throws IOException {
+      long startTime = System.nanoTime();
+      long written = next.write(srcs, offs, len);
+      stats.totalNanos += System.nanoTime() - startTime;
+      if (written > 0) stats.bytesIn += written;
+      return written;
+    }
+    
+    @Override
+    public int writeFinal(ByteBuffer src) throws IOException {
+      return Conduits.writeFinalBasic(this, src);
+    }
+    
+    @Override
+    public long writeFinal(ByteBuffer[] srcs, int offs, int len) throws IOException {
+      return Conduits.writeFinalBasic(this, srcs, offs, len);
+    }
+    
+    @Override
+    public long transferFrom(FileChannel src, long position, long count) throws IOException {
+      // go through write, so the bytes are counted
+      return src.transferTo(position, count, new ConduitWritableByteChannel(this));
+    }
+    
+    @Override
+    public long transferFrom(StreamSourceChannel source, long count, ByteBuffer throughBuffer) throws IOException {
+      return Conduits.transfer(source, count, throughBuffer, this);
+    }
+    
+    @Override
+    public boolean flush() throws IOException {
+      long startTime = System.nanoTime();
+      try {
+        return next.flush();
+      } finally {
+        stats.totalNanos += System.nanoTime() - startTime;
+      }
+    }
+    
+    @Override
+    public void terminateWrites() throws IOException {
+      long startTime = System.nanoTime();
+      try {
+        next.terminateWrites();
+      } finally {
+        stats.totalNanos += System.nanoTime() - startTime;
+      }
+    }
+  }
+  
+  /**
+   * Counts the compressed bytes and the time spent writing them to the connection.
+   */
+  private static class CompressedSinkConduit extends AbstractStreamSinkConduit<StreamSinkConduit> {
+    
+    private final Stats stats;
+    
+    private CompressedSinkConduit(StreamSinkConduit next, Stats stats) {
+      super(next);
+      this.stats = stats;
+    }
+    
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      long startTime = System.nanoTime();
+      int written = next.write(src);
+      stats.writeNanos += System.nanoTime() - startTime;
+      if (written > 0) stats.bytesOut += written;
+      return written;
+    }
+    
+    @Override
+    public long write(ByteBuffer[] srcs, int offs, int len) throws IOException {
+      long startTime = System.nanoTime();
+      long written = next.write(srcs, offs, len);
+      stats.writeNanos += System.nanoTime() - startTime;
+      if (written > 0) stats.bytesOut += written;
+      return written;
+    }
+    
+    @Override
+    public int writeFinal(ByteBuffer src) throws IOException {
+      return Conduits.writeFinalBasic(this, src);
+    }
+    
+    @Override
+    public long writeFinal(ByteBuffer[] srcs, int offs, int len) throws IOException {
+      return Conduits.writeFinalBasic(this, srcs, offs, len);
+    }
+    
+    @Override
+    public boolean flush() throws IOException {
+      long startTime = System.nanoTime();
+      try {
+        return next.flush();
+      } finally {
+        stats.writeNanos += System.nanoTime() - startTime;
+      }
+    }
+    
+    @Override
+    public void terminateWrites() throws IOException {
+      long startTime = System.nanoTime();
+      try {
+        next.terminateWrites();
+      } finally {
+        stats.writeNanos += System.nanoTime() - startTime;
+      }
+    }
+  }
+}
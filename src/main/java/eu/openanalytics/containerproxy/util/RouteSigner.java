@@ -0,0 +1,74 @@
+package eu.openanalytics.containerproxy.util;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Signs and verifies the values of route cookies, which allow the requests of a user to a proxy to skip the servlet
+ * stack (see ProxyMappingManager).
+ * <p>
+ * A value consists of the time the cookie expires and a HMAC-SHA256 signature of that time, the ID of the proxy and
+ * the session cookie of the user. The key is generated at startup, unless a secret is configured so that multiple
+ * instances accept each other's cookies.
+ */
+public class RouteSigner {
+  
+  private static final String ALGORITHM = "HmacSHA256";
+  
+  // a Mac is not thread-safe, but expensive enough to create that it is reused per thread
+  private final ThreadLocal<Mac> macs;
+  
+  public RouteSigner(String secret) {
+    byte[] keyBytes;
+    if (secret == null || secret.isEmpty()) {
+      keyBytes = new byte[32];
+      new SecureRandom().nextBytes(keyBytes);
+    } else {
+      keyBytes = secret.getBytes(StandardCharsets.UTF_8);
+    }
+    SecretKeySpec key = new SecretKeySpec(keyBytes, ALGORITHM);
+    macs = ThreadLocal.withInitial(() -> {
+      try {
+        Mac mac = Mac.getInstance(ALGORITHM);
+        mac.init(key);
+        return mac;
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("Cannot create route signature", e);
+      }
+    });
+  }
+  
+  public String sign(String proxyId, String session, long expireTimestamp) {
+    return expireTimestamp + "." + signature(proxyId, session, expireTimestamp);
+  }
+  
+  /**
+   * @return True if the value was signed for the proxy and session, and has not expired yet.
+   */
+  public boolean verify(String proxyId, String session, String value) {
+    int separator = value.indexOf('.');
+    if (separator <= 0) return false;
+    long expireTimestamp;
+    try {
+      expireTimestamp = Long.parseLong(value.substring(0, separator));
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    if (expireTimestamp <= System.currentTimeMillis()) return false;
+    
+    byte[] expected = signature(proxyId, session, expireTimestamp).getBytes(StandardCharsets.US_ASCII);
+    byte[] actual = value.substring(separator + 1).getBytes(StandardCharsets.US_ASCII);
+    return MessageDigest.isEqual(expected, actual);
+  }
+  
+  private String signature(String proxyId, String session, long expireTimestamp) {
+    String data = proxyId + "\n" + session + "\n" + expireTimestamp;
+    byte[] signature = macs.get().doFinal(data.getBytes(StandardCharsets.UTF_8));
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+  }
+}
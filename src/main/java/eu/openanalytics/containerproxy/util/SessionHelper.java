@@ -52,6 +52,19 @@ public class SessionHelper {
     return contextPath;
   }
   
+  /**
+   * Get the name of the cookie that holds the session ID.
+   *
+   * @param environment The Spring environment containing the session settings.
+   * @return The name of the Spring Session cookie when sessions are stored in Redis, JSESSIONID otherwise.
+   */
+  public static String getSessionCookieName(Environment environment) {
+    if (!"redis".equals(environment.getProperty("spring.session.store-type"))) return "JSESSIONID";
+    String proxyIdentifier = environment.getProperty("proxy.identifier-value");
+    if (proxyIdentifier != null && !proxyIdentifier.isEmpty()) return "SESSION_" + proxyIdentifier.toUpperCase();
+    return "SESSION";
+  }
+  
   /**
    * Obtain information about the 'owner' of the current HTTP exchange.
    * This method will try to identify the owner, even if:
@@ -0,0 +1,187 @@
+package eu.openanalytics.containerproxy.util;
+
+import io.undertow.client.ClientCallback;
+import io.undertow.client.ClientConnection;
+import io.undertow.client.ClientExchange;
+import io.undertow.client.ClientRequest;
+import io.undertow.client.UndertowClient;
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.util.Headers;
+import io.undertow.util.Methods;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xnio.IoUtils;
+import org.xnio.OptionMap;
+import org.xnio.XnioExecutor;
+import org.xnio.XnioWorker;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks whether a target accepts HTTP requests, without blocking the calling thread.
+ * <p>
+ * Probes run on the XNIO worker of the web server. All callers probing the same key share the probe that is in
+ * flight, and the outcome is cached per key: a target that responded is not probed again (until it is forgotten),
+ * a target that did not respond is reported as unavailable without probing until its backoff has passed.
+ * The backoff doubles after every failed probe.
+ */
+public class TargetProber {
+  
+  private static final int ATTEMPTS = 5;
+  private static final long ATTEMPT_INTERVAL_MS = 2000;
+  private static final long ATTEMPT_TIMEOUT_MS = 5000;
+  private static final long MIN_BACKOFF_MS = 1000;
+  private static final long MAX_BACKOFF_MS = 30000;
+  
+  private final Logger log = LogManager.getLogger(TargetProber.class);
+  private final Map<String, ProbeState> states = new ConcurrentHashMap<>();
+  
+  /**
+   * Probe a target, or get the outcome of the current or last probe of the same key.
+   * A target is ready when it answers the probe with a response that is not a server error.
+   *
+   * @param key        The key to cache the outcome under.
+   * @param target     The target to probe.
+   * @param path       The path to request from the target.
+   * @param worker     The worker to run the probe on.
+   * @param bufferPool The buffer pool of the probe connections.
+   * @return A future that completes with true if the target is ready.
+   */
+  public CompletableFuture<Boolean> probe(String key, URI target, String path, XnioWorker worker, ByteBufferPool bufferPool) {
+    ProbeState[] started = new ProbeState[1];
+    ProbeState state = states.compute(key, (k, current) -> {
+      if (current != null && !current.isExpired()) return current;
+      started[0] = new ProbeState(current == null ? 0 : current.failures);
+      return started[0];
+    });
+    if (started[0] != null) {
+      new Probe(started[0], key, target, path, worker, bufferPool).attempt();
+    }
+    return state.result;
+  }
+  
+  /**
+   * Forget the outcome of all probes of which the key starts with the given prefix.
+   */
+  public void forget(String keyPrefix) {
+    states.keySet().removeIf(key -> key.startsWith(keyPrefix));
+  }
+  
+  private static class ProbeState {
+    
+    private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+    // the number of consecutive failed probes, including this one once it failed
+    private volatile int failures;
+    private volatile long retryTimestamp;
+    
+    private ProbeState(int failures) {
+      this.failures = failures;
+    }
+    
+    private boolean isExpired() {
+      return result.isDone() && !result.join() && System.currentTimeMillis() >= retryTimestamp;
+    }
+  }
+  
+  private class Probe {
+    
+    private final ProbeState state;
+    private final String key;
+    private final URI target;
+    private final String path;
+    private final XnioWorker worker;
+    private final ByteBufferPool bufferPool;
+    private int attempts;
+    
+    private Probe(ProbeState state, String key, URI target, String path, XnioWorker worker, ByteBufferPool bufferPool) {
+      this.state = state;
+      this.key = key;
+      this.target = target;
+      this.path = path;
+      this.worker = worker;
+      this.bufferPool = bufferPool;
+    }
+    
+    private void attempt() {
+      attempts++;
+      Attempt attempt = new Attempt();
+      attempt.timeout = worker.getIoThread().executeAfter(() -> attempt.finish(false), ATTEMPT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      UndertowClient.getInstance().connect(new ClientCallback<ClientConnection>() {
+        @Override
+        public void completed(ClientConnection connection) {
+          attempt.connection = connection;
+          if (attempt.finished.get()) {
+            IoUtils.safeClose(connection);
+            return;
+          }
+          ClientRequest request = new ClientRequest().setMethod(Methods.GET).setPath(path);
+          request.getRequestHeaders().put(Headers.HOST, target.getHost() + ":" + target.getPort());
+          connection.sendRequest(request, new ClientCallback<ClientExchange>() {
+            @Override
+            public void completed(ClientExchange exchange) {
+              exchange.setResponseListener(new ClientCallback<ClientExchange>() {
+                @Override
+                public void completed(ClientExchange result) {
+                  int responseCode = result.getResponse().getResponseCode();
+                  log.debug("Probe of {}{} returned status code {}", target, path, responseCode);
+                  attempt.finish(responseCode < 500);
+                }
+                
+                @Override
+                public void failed(IOException e) {
+                  attempt.finish(false);
+                }
+              });
+            }
+            
+            @Override
+            public void failed(IOException e) {
+              attempt.finish(false);
+            }
+          });
+        }
+        
+        @Override
+        public void failed(IOException e) {
+          attempt.finish(false);
+        }
+      }, target, worker, bufferPool, OptionMap.EMPTY);
+    }
+    
+    private void onAttemptFinished(boolean ready) {
+      if (ready) {
+        state.result.complete(true);
+      } else if (attempts < ATTEMPTS) {
+        log.debug("Trying to connect target {} ({}/{})", target, attempts, ATTEMPTS);
+        worker.getIoThread().executeAfter(this::attempt, ATTEMPT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      } else {
+        state.failures++;
+        long backoff = Math.min(MAX_BACKOFF_MS, MIN_BACKOFF_MS << Math.min(state.failures - 1, 16));
+        state.retryTimestamp = System.currentTimeMillis() + backoff;
+        log.debug("Target {} of {} is not ready, not probing again for {}ms", target, key, backoff);
+        state.result.complete(false);
+      }
+    }
+    
+    private class Attempt {
+      
+      private final AtomicBoolean finished = new AtomicBoolean();
+      private volatile XnioExecutor.Key timeout;
+      private volatile ClientConnection connection;
+      
+      private void finish(boolean ready) {
+        // the response is not read: closing the connection discards it
+        IoUtils.safeClose(connection);
+        if (!finished.compareAndSet(false, true)) return;
+        if (timeout != null) timeout.remove();
+        onAttemptFinished(ready);
+      }
+    }
+  }
+}
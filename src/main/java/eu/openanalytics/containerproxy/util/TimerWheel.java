@@ -0,0 +1,258 @@
+package eu.openanalytics.containerproxy.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A hierarchical timer wheel for a large number of coarse-grained deadlines (idle timeouts, max-age, pings).
+ * <p>
+ * Deadlines are rounded up to the tick duration and kept in {@value #LEVELS} levels of {@value #SLOTS} slots,
+ * each level covering {@value #SLOTS} times the range of the level below it. Every tick only visits the slot of
+ * the current tick (and, once per wrap-around of a level, cascades one slot of the level above), so the work per tick
+ * is proportional to the number of deadlines that are due, not to the number of deadlines that are scheduled.
+ * Scheduling and cancelling are O(1).
+ * <p>
+ * Tasks are executed on the thread of the wheel and must therefore be short; anything that blocks should be handed
+ * off to another executor.
+ */
+public class TimerWheel {
+  
+  private static final int BITS = 8;
+  private static final int SLOTS = 1 << BITS;
+  private static final int MASK = SLOTS - 1;
+  private static final int LEVELS = 4;
+  private static final long MAX_DELTA = (1L << (BITS * LEVELS)) - 1;
+  
+  private final Logger log = LogManager.getLogger(TimerWheel.class);
+  
+  private final String name;
+  private final long tickNanos;
+  private final Timeout[][] wheels = new Timeout[LEVELS][SLOTS];
+  private final Object lock = new Object();
+  // the tasks that are due, only used by the thread that processes the ticks
+  private final List<Timeout> expired = new ArrayList<>();
+  
+  private final LongSupplier nanoTime;
+  private final long startNanos;
+  // the next tick that will be processed
+  private long currentTick;
+  private int size;
+  private volatile Thread worker;
+  
+  public TimerWheel(String name, long tickDuration, TimeUnit unit) {
+    this(name, tickDuration, unit, System::nanoTime);
+  }
+  
+  /**
+   * @param nanoTime The clock of the wheel, only replaced by benchmarks that advance the time themselves.
+   */
+  TimerWheel(String name, long tickDuration, TimeUnit unit, LongSupplier nanoTime) {
+    if (tickDuration <= 0) throw new IllegalArgumentException("Tick duration must be positive");
+    this.name = name;
+    this.tickNanos = unit.toNanos(tickDuration);
+    this.nanoTime = nanoTime;
+    this.startNanos = nanoTime.getAsLong();
+  }
+  
+  public synchronized void start() {
+    if (worker != null) return;
+    worker = new Thread(this::run, name);
+    worker.setDaemon(true);
+    worker.start();
+  }
+  
+  public synchronized void stop() {
+    if (worker == null) return;
+    worker.interrupt();
+    worker = null;
+  }
+  
+  /**
+   * Schedule a task to be run once after the given delay.
+   *
+   * @return A handle that can be used to cancel the task.
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    Timeout timeout = new Timeout(task);
+    synchronized (lock) {
+      long elapsed = nanoTime.getAsLong() - startNanos;
+      // round up, a task never runs before its deadline
+      timeout.deadlineTick = (elapsed + Math.max(0, unit.toNanos(delay)) + tickNanos - 1) / tickNanos;
+      add(timeout);
+    }
+    return timeout;
+  }
+  
+  /**
+   * @return The number of tasks that are scheduled and not yet run or cancelled.
+   */
+  public int size() {
+    synchronized (lock) {
+      return size;
+    }
+  }
+  
+  private void add(Timeout timeout) {
+    long delta = timeout.deadlineTick - currentTick;
+    int level;
+    int slot;
+    if (delta < 0) {
+      // already due: run it with the next tick
+      level = 0;
+      slot = (int) (currentTick & MASK);
+    } else {
+      long tick = timeout.deadlineTick;
+      if (delta > MAX_DELTA) {
+        // beyond the range of the wheel: park it in the farthest slot, it is re-added when that slot comes by
+        delta = MAX_DELTA;
+        tick = currentTick + MAX_DELTA;
+      }
+      level = 0;
+      while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) level++;
+      slot = (int) ((tick >>> (BITS * level)) & MASK);
+    }
+    Timeout head = wheels[level][slot];
+    timeout.level = level;
+    timeout.slot = slot;
+    timeout.prev = null;
+    timeout.next = head;
+    if (head != null) head.prev = timeout;
+    wheels[level][slot] = timeout;
+    size++;
+  }
+  
+  private void remove(Timeout timeout) {
+    if (timeout.prev != null) {
+      timeout.prev.next = timeout.next;
+    } else {
+      wheels[timeout.level][timeout.slot] = timeout.next;
+    }
+    if (timeout.next != null) timeout.next.prev = timeout.prev;
+    timeout.prev = null;
+    timeout.next = null;
+    timeout.level = -1;
+    size--;
+  }
+  
+  private void cascade(int level) {
+    int slot = (int) ((currentTick >>> (BITS * level)) & MASK);
+    Timeout timeout = wheels[level][slot];
+    wheels[level][slot] = null;
+    while (timeout != null) {
+      Timeout next = timeout.next;
+      size--;
+      add(timeout);
+      timeout = next;
+    }
+  }
+  
+  private void run() {
+    while (!Thread.currentThread().isInterrupted()) {
+      tick();
+      long sleepNanos = startNanos + currentTick * tickNanos - nanoTime.getAsLong();
+      if (sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+  
+  /**
+   * Process the ticks up to now and run the tasks that are due. Called by the thread of the wheel, or by a benchmark
+   * for a wheel that was not started.
+   */
+  void tick() {
+    synchronized (lock) {
+      long nowTick = (nanoTime.getAsLong() - startNanos) / tickNanos;
+      while (currentTick <= nowTick) {
+        if ((currentTick & MASK) == 0) {
+          // a lower level wrapped around: move the deadlines of the next slot of the level above down
+          for (int level = 1; level < LEVELS; level++) {
+            cascade(level);
+            if (((currentTick >>> (BITS * level)) & MASK) != 0) break;
+          }
+        }
+        int slot = (int) (currentTick & MASK);
+        Timeout timeout = wheels[0][slot];
+        while (timeout != null) {
+          Timeout next = timeout.next;
+          remove(timeout);
+          if (timeout.deadlineTick <= currentTick) {
+            expired.add(timeout);
+          } else {
+            // clamped deadline beyond the range of the wheel
+            add(timeout);
+          }
+          timeout = next;
+        }
+        currentTick++;
+      }
+    }
+    
+    for (Timeout timeout : expired) {
+      if (timeout.expire()) {
+        try {
+          timeout.task.run();
+        } catch (Throwable t) {
+          log.error("Error in task of " + name, t);
+        }
+      }
+    }
+    expired.clear();
+  }
+  
+  public class Timeout {
+    
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_CANCELLED = 1;
+    private static final int STATE_EXPIRED = 2;
+    
+    private final Runnable task;
+    private long deadlineTick;
+    private int level = -1;
+    private int slot;
+    private Timeout prev;
+    private Timeout next;
+    private int state = STATE_PENDING;
+    
+    private Timeout(Runnable task) {
+      this.task = task;
+    }
+    
+    /**
+     * Cancel this task. Has no effect if the task already ran.
+     *
+     * @return True if the task was cancelled by this call.
+     */
+    public boolean cancel() {
+      synchronized (lock) {
+        if (state != STATE_PENDING) return false;
+        state = STATE_CANCELLED;
+        if (level >= 0) remove(this);
+        return true;
+      }
+    }
+    
+    public boolean isCancelled() {
+      synchronized (lock) {
+        return state == STATE_CANCELLED;
+      }
+    }
+    
+    private boolean expire() {
+      synchronized (lock) {
+        if (state != STATE_PENDING) return false;
+        state = STATE_EXPIRED;
+        return true;
+      }
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package eu.openanalytics.containerproxy.util;
+
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The traffic between the users and the proxies: bytes in and out, request time, time to get a connection to the
+ * container, responses per status class and open websockets.
+ * <p>
+ * The traffic is published per spec (spec* meters, tagged with spec.id) and per proxy (proxy* meters, tagged with
+ * spec.id and proxy.id). To bound the number of time series, the status codes are grouped by class (2xx, 4xx, ...),
+ * at most proxy.traffic-metrics.max-proxies proxies have their own meters at the same time, and the meters of a proxy
+ * are removed when its last mapping is removed. Only the spec meters publish a histogram of the request time, unless
+ * proxy.traffic-metrics.proxy-histograms is set.
+ * <p>
+ * The counters are LongAdders that are read when the meters are published, so recording does not contend between
+ * IO threads.
+ */
+public class TrafficMetrics {
+  
+  private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+  
+  private final MeterRegistry registry;
+  private final int maxProxies;
+  private final boolean proxyHistograms;
+  private final Map<String, Meters> specMeters = new ConcurrentHashMap<>();
+  private final Map<String, ProxyMeters> proxyMeters = new HashMap<>();
+  
+  public TrafficMetrics(MeterRegistry registry, int maxProxies, boolean proxyHistograms) {
+    this.registry = registry;
+    this.maxProxies = maxProxies;
+    this.proxyHistograms = proxyHistograms;
+  }
+  
+  /**
+   * Get the recorder of the traffic of a mapping of the given proxy. Every call must be matched by a call to
+   * {@link #release(String)} when the mapping is removed.
+   */
+  public synchronized Recorder acquire(Proxy proxy) {
+    String specId = proxy.getSpec().getId();
+    Meters spec = specMeters.computeIfAbsent(specId, id -> new Meters("spec", Tags.of("spec.id", id), true));
+    
+    ProxyMeters entry = proxyMeters.get(proxy.getId());
+    if (entry == null && proxyMeters.size() < maxProxies) {
+      entry = new ProxyMeters(new Meters("proxy", Tags.of("spec.id", specId, "proxy.id", proxy.getId()), proxyHistograms));
+      proxyMeters.put(proxy.getId(), entry);
+    }
+    if (entry == null) return new Recorder(spec, null);
+    entry.mappings++;
+    return new Recorder(spec, entry.meters);
+  }
+  
+  public synchronized void release(String proxyId) {
+    ProxyMeters proxy = proxyMeters.get(proxyId);
+    if (proxy == null || --proxy.mappings > 0) return;
+    proxyMeters.remove(proxyId);
+    proxy.meters.meters.forEach(registry::remove);
+  }
+  
+  /**
+   * Records the traffic of a proxy to the meters of its spec and, if it has them, its own meters.
+   */
+  public static class Recorder {
+    
+    private final Meters spec;
+    private final Meters proxy;
+    
+    private Recorder(Meters spec, Meters proxy) {
+      this.spec = spec;
+      this.proxy = proxy;
+    }
+    
+    public void addBytesIn(long bytes) {
+      spec.bytesIn.add(bytes);
+      if (proxy != null) proxy.bytesIn.add(bytes);
+    }
+    
+    public void recordResponse(int statusCode, long bytesOut, long nanos) {
+      int statusClass = Math.min(Math.max(statusCode / 100, 1), 5) - 1;
+      spec.responses[statusClass].increment();
+      spec.bytesOut.add(bytesOut);
+      spec.requestTime.record(nanos, TimeUnit.NANOSECONDS);
+      if (proxy != null) {
+        proxy.responses[statusClass].increment();
+        proxy.bytesOut.add(bytesOut);
+        proxy.requestTime.record(nanos, TimeUnit.NANOSECONDS);
+      }
+    }
+    
+    public void recordUpstreamConnect(long nanos) {
+      spec.upstreamConnectTime.record(nanos, TimeUnit.NANOSECONDS);
+      if (proxy != null) proxy.upstreamConnectTime.record(nanos, TimeUnit.NANOSECONDS);
+    }
+    
+    public void websocketOpened() {
+      spec.websockets.incrementAndGet();
+      if (proxy != null) proxy.websockets.incrementAndGet();
+    }
+    
+    public void websocketClosed() {
+      spec.websockets.decrementAndGet();
+      if (proxy != null) proxy.websockets.decrementAndGet();
+    }
+  }
+  
+  private static class ProxyMeters {
+    
+    private final Meters meters;
+    // the number of mappings of the proxy that record to these meters
+    private int mappings;
+    
+    private ProxyMeters(Meters meters) {
+      this.meters = meters;
+    }
+  }
+  
+  private class Meters {
+    
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder[] responses = new LongAdder[STATUS_CLASSES.length];
+    private final AtomicInteger websockets = new AtomicInteger();
+    private final Timer requestTime;
+    private final Timer upstreamConnectTime;
+    private final List<Meter> meters = new ArrayList<>();
+    
+    private Meters(String prefix, Tags tags, boolean histogram) {
+      meters.add(FunctionCounter.builder(prefix + "BytesIn", bytesIn, LongAdder::sum).tags(tags).register(registry));
+      meters.add(FunctionCounter.builder(prefix + "BytesOut", bytesOut, LongAdder::sum).tags(tags).register(registry));
+      for (int i = 0; i < responses.length; i++) {
+        responses[i] = new LongAdder();
+        meters.add(FunctionCounter.builder(prefix + "Responses", responses[i], LongAdder::sum)
+          .tags(tags.and("status", STATUS_CLASSES[i])).register(registry));
+      }
+      meters.add(Gauge.builder(prefix + "WebSockets", websockets, AtomicInteger::get).tags(tags).register(registry));
+      requestTime = Timer.builder(prefix + "RequestTime").tags(tags).publishPercentileHistogram(histogram).register(registry);
+      upstreamConnectTime = Timer.builder(prefix + "UpstreamConnectTime").tags(tags).register(registry);
+      meters.add(requestTime);
+      meters.add(upstreamConnectTime);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package eu.openanalytics.containerproxy.util;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.StatusCodes;
+import org.xnio.channels.StreamSinkChannel;
+import org.xnio.conduits.AbstractStreamSourceConduit;
+import org.xnio.conduits.ConduitReadableByteChannel;
+import org.xnio.conduits.Conduits;
+import org.xnio.conduits.StreamSourceConduit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records the traffic of the requests that pass through it (i.e. the requests to a single proxy mapping).
+ * <p>
+ * The request body is counted while it is read. The response is recorded when the exchange completes, with the
+ * number of bytes that Undertow sent. The traffic of a websocket is not counted after the upgrade, but the websocket
+ * is counted as open until its connection closes.
+ */
+public class TrafficMetricsHandler implements HttpHandler {
+  
+  private final HttpHandler next;
+  private final TrafficMetrics.Recorder recorder;
+  
+  public TrafficMetricsHandler(HttpHandler next, TrafficMetrics.Recorder recorder) {
+    this.next = next;
+    this.recorder = recorder;
+  }
+  
+  @Override
+  public void handleRequest(HttpServerExchange exchange) throws Exception {
+    long startTime = System.nanoTime();
+    try {
+      exchange.addRequestWrapper((factory, ex) -> new CountingSourceConduit(factory.create(), recorder));
+    } catch (IllegalStateException e) {
+      // the request channel was already opened before the request was dispatched: fall back to its declared length
+      long length = exchange.getRequestContentLength();
+      if (length > 0) recorder.addBytesIn(length);
+    }
+    exchange.addExchangeCompleteListener((ex, nextListener) -> {
+      recorder.recordResponse(ex.getStatusCode(), ex.getResponseBytesSent(), System.nanoTime() - startTime);
+      if (ex.getStatusCode() == StatusCodes.SWITCHING_PROTOCOLS) {
+        recorder.websocketOpened();
+        ex.getConnection().addCloseListener(connection -> recorder.websocketClosed());
+      }
+      nextListener.proceed();
+    });
+    next.handleRequest(exchange);
+  }
+  
+  private static class CountingSourceConduit extends AbstractStreamSourceConduit<StreamSourceConduit> {
+    
+    private final TrafficMetrics.Recorder recorder;
+    
+    private CountingSourceConduit(StreamSourceConduit next, TrafficMetrics.Recorder recorder) {
+      super(next);
+      this.recorder = recorder;
+    }
+    
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      int read = next.read(dst);
+      if (read > 0) recorder.addBytesIn(read);
+      return read;
+    }
+    
+    @Override
+    public long read(ByteBuffer[] dsts, int offs, int len) throws IOException {
+      long read = next.read(dsts, offs, len);
+      if (read > 0) recorder.addBytesIn(read);
+      return read;
+    }
+    
+    @Override
+    public long transferTo(long position, long count, FileChannel target) throws IOException {
+      // go through read, so the bytes are counted
+      return target.transferFrom(new ConduitReadableByteChannel(this), position, count);
+    }
+    
+    @Override
+    public long transferTo(long count, ByteBuffer throughBuffer, StreamSinkChannel target) throws IOException {
+      return Conduits.transfer(this, count, throughBuffer, target);
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package eu.openanalytics.containerproxy.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental parser for the frame headers of a WebSocket byte stream (RFC 6455, section 5.2).
+ * <p>
+ * The parser reads directly from the buffers handed to it, without copying, and keeps its state between calls,
+ * so frames spanning multiple reads, several frames in a single read and 64-bit payload lengths are all handled.
+ * Payload bytes are reported per opcode as they pass by; continuation frames are reported with the opcode of the
+ * message they belong to.
+ * <p>
+ * The parser may start in the middle of a frame, e.g. when it is attached to a connection some time after the
+ * upgrade. Every header is therefore checked: reserved bits and opcodes, the length of control frames, the minimal
+ * encoding of extended lengths, an upper bound for payload lengths and, for frames sent by a client, the mask bit.
+ * A header that fails these checks means the parser is out of sync: it then skips bytes until it finds a plausible
+ * header again, instead of following the stream wrongly for the lifetime of the connection.
+ * <p>
+ * An instance belongs to a single connection and must only be used from the thread reading that connection.
+ */
+public class WebSocketFrameParser {
+  
+  public static final int OPCODE_CONTINUATION = 0x0;
+  public static final int OPCODE_TEXT = 0x1;
+  public static final int OPCODE_BINARY = 0x2;
+  public static final int OPCODE_CLOSE = 0x8;
+  public static final int OPCODE_PING = 0x9;
+  public static final int OPCODE_PONG = 0xA;
+  
+  private static final int STATE_OPCODE = 0;
+  private static final int STATE_LENGTH = 1;
+  private static final int STATE_EXTENDED_LENGTH = 2;
+  private static final int STATE_MASKING_KEY = 3;
+  private static final int STATE_PAYLOAD = 4;
+  
+  // RSV1 is used by permessage-deflate, RSV2 and RSV3 are not used by any registered extension
+  private static final int RESERVED_BITS = 0x30;
+  private static final int MAX_CONTROL_PAYLOAD_LENGTH = 125;
+  // larger frames are not sent in practice (and are rejected by most servers), so they indicate a desync
+  private static final long MAX_PAYLOAD_LENGTH = 1L << 31;
+  
+  private final PayloadListener listener;
+  private final boolean clientFrames;
+  private final long[] payloadBytes = new long[16];
+  
+  private int state = STATE_OPCODE;
+  private int frameOpcode;
+  private int messageOpcode = OPCODE_CONTINUATION;
+  private boolean masked;
+  private boolean extendedLength64;
+  private int headerBytesRemaining;
+  private long payloadRemaining;
+  private long resyncs;
+  
+  /**
+   * @param listener     Notified of the payload bytes, may be null.
+   * @param clientFrames True if the stream is sent by a client, in which case every frame must be masked.
+   */
+  public WebSocketFrameParser(PayloadListener listener, boolean clientFrames) {
+    this.listener = listener;
+    this.clientFrames = clientFrames;
+  }
+  
+  /**
+   * Parse the bytes between the given absolute positions of the buffer.
+   * The position and limit of the buffer are not modified.
+   *
+   * @param buffer The buffer containing the bytes that were just read.
+   * @param from   The absolute index of the first byte to parse.
+   * @param to     The absolute index after the last byte to parse.
+   */
+  public void parse(ByteBuffer buffer, int from, int to) {
+    int i = from;
+    while (i < to) {
+      switch (state) {
+        case STATE_OPCODE: {
+          int b = buffer.get(i++) & 0xFF;
+          int opcode = b & 0x0F;
+          if ((b & RESERVED_BITS) != 0 || !isKnownOpcode(opcode) || (opcode >= OPCODE_CLOSE && (b & 0x80) == 0)) {
+            // not a header, try the next byte
+            desync();
+            break;
+          }
+          if (opcode == OPCODE_CONTINUATION) {
+            frameOpcode = messageOpcode;
+          } else {
+            frameOpcode = opcode;
+            // control frames may be interleaved with the fragments of a message
+            if (opcode < OPCODE_CLOSE) messageOpcode = opcode;
+          }
+          state = STATE_LENGTH;
+          break;
+        }
+        case STATE_LENGTH: {
+          int b = buffer.get(i) & 0xFF;
+          masked = (b & 0x80) != 0;
+          int length = b & 0x7F;
+          payloadRemaining = 0;
+          if ((clientFrames && !masked) || (frameOpcode >= OPCODE_CLOSE && length > MAX_CONTROL_PAYLOAD_LENGTH)) {
+            // not consumed: the byte may be the header of the next frame
+            desync();
+            break;
+          }
+          i++;
+          if (length == 126) {
+            headerBytesRemaining = 2;
+            extendedLength64 = false;
+            state = STATE_EXTENDED_LENGTH;
+          } else if (length == 127) {
+            headerBytesRemaining = 8;
+            extendedLength64 = true;
+            state = STATE_EXTENDED_LENGTH;
+          } else {
+            payloadRemaining = length;
+            endOfLength();
+          }
+          break;
+        }
+        case STATE_EXTENDED_LENGTH: {
+          payloadRemaining = (payloadRemaining << 8) | (buffer.get(i++) & 0xFF);
+          if (--headerBytesRemaining == 0) {
+            // the minimal number of bytes must be used to encode a length, and the most significant bit must be 0
+            if (payloadRemaining < 126 || (extendedLength64 && payloadRemaining <= 0xFFFF) || payloadRemaining > MAX_PAYLOAD_LENGTH) {
+              desync();
+            } else {
+              endOfLength();
+            }
+          }
+          break;
+        }
+        case STATE_MASKING_KEY: {
+          int skip = Math.min(headerBytesRemaining, to - i);
+          i += skip;
+          headerBytesRemaining -= skip;
+          if (headerBytesRemaining == 0) startPayload();
+          break;
+        }
+        case STATE_PAYLOAD: {
+          int skip = (int) Math.min(payloadRemaining, to - i);
+          i += skip;
+          payloadRemaining -= skip;
+          payloadBytes[frameOpcode] += skip;
+          if (listener != null) listener.onPayload(frameOpcode, skip);
+          if (payloadRemaining == 0) state = STATE_OPCODE;
+          break;
+        }
+        default:
+          throw new IllegalStateException("Unknown state " + state);
+      }
+    }
+  }
+  
+  /**
+   * @return The total number of payload bytes seen so far for the given opcode.
+   */
+  public long getPayloadBytes(int opcode) {
+    return payloadBytes[opcode & 0x0F];
+  }
+  
+  /**
+   * @return The number of times an invalid header was found, after which the parser searched for the next header.
+   */
+  public long getResyncs() {
+    return resyncs;
+  }
+  
+  private static boolean isKnownOpcode(int opcode) {
+    return opcode <= OPCODE_BINARY || (opcode >= OPCODE_CLOSE && opcode <= OPCODE_PONG);
+  }
+  
+  private void desync() {
+    resyncs++;
+    // the fragments of the interrupted message cannot be attributed anymore
+    messageOpcode = OPCODE_CONTINUATION;
+    state = STATE_OPCODE;
+  }
+  
+  private void endOfLength() {
+    if (masked) {
+      headerBytesRemaining = 4;
+      state = STATE_MASKING_KEY;
+    } else {
+      startPayload();
+    }
+  }
+  
+  private void startPayload() {
+    state = payloadRemaining == 0 ? STATE_OPCODE : STATE_PAYLOAD;
+  }
+  
+  @FunctionalInterface
+  public interface PayloadListener {
+    
+    /**
+     * Called every time payload bytes of a frame have been read.
+     *
+     * @param opcode The opcode of the frame, or of the message in case of a continuation frame.
+     * @param length The number of payload bytes read, always greater than 0.
+     */
+    void onPayload(int opcode, long length);
+  }
+}
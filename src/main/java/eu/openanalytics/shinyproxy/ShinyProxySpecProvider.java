@@ -36,9 +36,13 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
 
+import eu.openanalytics.containerproxy.model.spec.AssetCacheSpec;
+import eu.openanalytics.containerproxy.model.spec.CompressionSpec;
 import eu.openanalytics.containerproxy.model.spec.ContainerSpec;
 import eu.openanalytics.containerproxy.model.spec.ProxyAccessControl;
 import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import eu.openanalytics.containerproxy.model.spec.SharedSpec;
+import eu.openanalytics.containerproxy.model.spec.UpstreamSpec;
 import eu.openanalytics.containerproxy.spec.IProxySpecProvider;
 
 /**
@@ -93,6 +97,12 @@ public class ShinyProxySpecProvider implements IProxySpecProvider {
     to.setDescription(from.getDescription());
     to.setLogoURL(from.getLogoURL());
     to.setDefaultTutorialLink(from.getDefaultTutorialLink());
+    to.setWarmPoolSize(from.getWarmPoolSize());
+    to.setUserEnv(from.isUserEnv());
+    to.setUpstream(from.getUpstream());
+    to.setAssetCache(from.getAssetCache());
+    to.setCompression(from.getCompression());
+    to.setShared(from.getShared());
     if (from.getKubernetesPodPatches() != null) {
       try {
         to.setKubernetesPodPatches(from.getKubernetesPodPatches());
@@ -175,6 +185,12 @@ public class ShinyProxySpecProvider implements IProxySpecProvider {
     
     private int port;
     private String[] accessGroups;
+    private int warmPoolSize;
+    private boolean userEnv = true;
+    private UpstreamSpec upstream;
+    private AssetCacheSpec assetCache;
+    private CompressionSpec compression;
+    private SharedSpec shared;
     
     public String getId() {
       return id;
@@ -367,6 +383,54 @@ public class ShinyProxySpecProvider implements IProxySpecProvider {
     public void setDefaultTutorialLink(String defaultTutorialLink) {
       this.defaultTutorialLink = defaultTutorialLink;
     }
+    
+    public int getWarmPoolSize() {
+      return warmPoolSize;
+    }
+    
+    public void setWarmPoolSize(int warmPoolSize) {
+      this.warmPoolSize = warmPoolSize;
+    }
+    
+    public boolean isUserEnv() {
+      return userEnv;
+    }
+    
+    public void setUserEnv(boolean userEnv) {
+      this.userEnv = userEnv;
+    }
+    
+    public UpstreamSpec getUpstream() {
+      return upstream;
+    }
+    
+    public void setUpstream(UpstreamSpec upstream) {
+      this.upstream = upstream;
+    }
+    
+    public AssetCacheSpec getAssetCache() {
+      return assetCache;
+    }
+    
+    public void setAssetCache(AssetCacheSpec assetCache) {
+      this.assetCache = assetCache;
+    }
+    
+    public CompressionSpec getCompression() {
+      return compression;
+    }
+    
+    public void setCompression(CompressionSpec compression) {
+      this.compression = compression;
+    }
+    
+    public SharedSpec getShared() {
+      return shared;
+    }
+    
+    public void setShared(SharedSpec shared) {
+      this.shared = shared;
+    }
   }
   
   public static ProxySpec getProxySpec(ProxySpec to, ContainerSpec cSpec, Map<String, String> labels, int port) {
@@ -29,15 +29,39 @@ import org.springframework.context.annotation.Primary;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
 
-import java.net.HttpURLConnection;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.URI;
-import java.net.URL;
-import java.util.Arrays;
-import java.util.function.IntPredicate;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 /**
- * This component tests the responsiveness of Shiny containers by making an HTTP GET request to the container's published port (default 3838).
- * If this request does not receive a 200 (OK) response within a configured time limit, the container is considered to be unresponsive.
+ * This component tests the responsiveness of Shiny containers by probing the container's published port (default 3838).
+ * If the container does not pass the probe within a configured time limit, the container is considered to be unresponsive.
+ * <p>
+ * The probe is configured with proxy.container-test.type:
+ * <ul>
+ *   <li>http (default): a GET request must return a status code below 400</li>
+ *   <li>tcp: a connection to the port must be accepted</li>
+ *   <li>body: a GET request must return a status code below 400 and a body matching proxy.container-test.body-pattern</li>
+ * </ul>
+ * Probes do not occupy a thread while they wait: all proxies are probed by one shared HTTP client and scheduler.
+ * Failed probes are retried with an exponential backoff with jitter, and at most proxy.container-test.max-concurrent
+ * probes run at the same time.
  */
 @Component
 @Primary
@@ -45,59 +69,169 @@ public class ShinyProxyTestStrategy implements IProxyTestStrategy {
   
   private final Environment environment;
   private final Logger log = LogManager.getLogger(ShinyProxyTestStrategy.class);
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private final HttpClient httpClient;
+  private final Semaphore probePermits;
+  private final Queue<Runnable> waitingProbes = new ConcurrentLinkedQueue<>();
+  private final Pattern bodyPattern;
   
   public ShinyProxyTestStrategy(Environment environment) {
     this.environment = environment;
+    int timeoutMs = Integer.parseInt(environment.getProperty("proxy.container-wait-timeout", "5000"));
+    this.httpClient = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .followRedirects(HttpClient.Redirect.NEVER)
+      .connectTimeout(Duration.ofMillis(timeoutMs))
+      .executor(scheduler)
+      .build();
+    this.probePermits = new Semaphore(Integer.parseInt(environment.getProperty("proxy.container-test.max-concurrent", "32")));
+    this.bodyPattern = Pattern.compile(environment.getProperty("proxy.container-test.body-pattern", ".*"), Pattern.DOTALL);
   }
   
-  private static boolean retry(IntPredicate job, int tries, int waitTime, boolean retryOnException) {
-    boolean retVal = false;
-    RuntimeException exception = null;
-    for (int currentTry = 1; currentTry <= tries; currentTry++) {
-      try {
-        if (job.test(currentTry)) {
-          retVal = true;
-          exception = null;
-          break;
-        }
-      } catch (RuntimeException e) {
-        if (retryOnException) exception = e;
-        else throw e;
-      }
-      try {
-        Thread.sleep(waitTime);
-      } catch (InterruptedException ignore) {
-      }
-    }
-    if (exception == null) return retVal;
-    else throw exception;
+  @PreDestroy
+  public void shutdown() {
+    scheduler.shutdownNow();
   }
   
   @Override
   public boolean testProxy(Proxy proxy) {
+    return testProxyAsync(proxy).join();
+  }
+  
+  @Override
+  public CompletableFuture<Boolean> testProxyAsync(Proxy proxy) {
+    if (proxy.getTargets().isEmpty()) return CompletableFuture.completedFuture(false);
+    URI targetURI = proxy.getTargets().values().iterator().next();
     
     int totalWaitMs = Integer.parseInt(environment.getProperty("proxy.container-wait-time", "20000"));
-    int waitMs = Math.min(2000, totalWaitMs);
-    int maxTries = totalWaitMs / waitMs;
-    int timeoutMs = Integer.parseInt(environment.getProperty("proxy.container-wait-timeout", "5000"));
+    ProxyTest test = new ProxyTest(proxy, targetURI, System.currentTimeMillis() + totalWaitMs);
+    submit(test::probe);
+    return test.result;
+  }
+  
+  /**
+   * Run the probe now if the limit of concurrent probes allows it, otherwise as soon as another probe finishes.
+   */
+  private void submit(Runnable probe) {
+    if (probePermits.tryAcquire()) {
+      probe.run();
+      return;
+    }
+    waitingProbes.add(probe);
+    // a probe may have finished between the failed acquire and the add
+    if (probePermits.tryAcquire()) {
+      Runnable next = waitingProbes.poll();
+      if (next != null) {
+        next.run();
+      } else {
+        probePermits.release();
+      }
+    }
+  }
+  
+  private void release() {
+    Runnable next = waitingProbes.poll();
+    if (next != null) {
+      // hand the permit over to the waiting probe
+      scheduler.execute(next);
+    } else {
+      probePermits.release();
+    }
+  }
+  
+  private class ProxyTest {
     
-    if (proxy.getTargets().isEmpty()) return false;
-    URI targetURI = proxy.getTargets().values().iterator().next();
+    private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+    private final Proxy proxy;
+    private final URI targetURI;
+    private final long deadline;
+    private final String type = environment.getProperty("proxy.container-test.type", "http");
+    private final int timeoutMs = Integer.parseInt(environment.getProperty("proxy.container-wait-timeout", "5000"));
+    private final long initialDelayMs = Long.parseLong(environment.getProperty("proxy.container-test.initial-delay", "100"));
+    private final long maxDelayMs = Long.parseLong(environment.getProperty("proxy.container-test.max-delay", "2000"));
+    private int attempts;
+    
+    private ProxyTest(Proxy proxy, URI targetURI, long deadline) {
+      this.proxy = proxy;
+      this.targetURI = targetURI;
+      this.deadline = deadline;
+    }
     
-    return retry(i -> {
+    private void probe() {
+      attempts++;
+      if (proxy.getStatus() == ProxyStatus.Stopping || proxy.getStatus() == ProxyStatus.Stopped) {
+        onProbeFinished(true);
+        return;
+      }
       try {
-        if (proxy.getStatus() == ProxyStatus.Stopping || proxy.getStatus() == ProxyStatus.Stopped) return true;
-        URL testURL = new URL(targetURI.toString());
-        HttpURLConnection connection = ((HttpURLConnection) testURL.openConnection());
-        connection.setConnectTimeout(timeoutMs);
-        connection.setInstanceFollowRedirects(false);
-        int responseCode = connection.getResponseCode();
-        if (responseCode < 400) return true;
+        CompletableFuture<Boolean> probe;
+        if (type.equalsIgnoreCase("tcp")) {
+          probe = probeTcp();
+        } else {
+          probe = probeHttp(type.equalsIgnoreCase("body"));
+        }
+        probe.whenComplete((ok, error) -> onProbeFinished(error == null && ok));
       } catch (Exception e) {
-        if (i > 1)
-          log.warn(String.format("Container unresponsive, trying again (%d/%d): %s", i, maxTries, targetURI));
+        onProbeFinished(false);
+      }
+    }
+    
+    private CompletableFuture<Boolean> probeHttp(boolean matchBody) {
+      HttpRequest request = HttpRequest.newBuilder(targetURI).timeout(Duration.ofMillis(timeoutMs)).GET().build();
+      if (!matchBody) {
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+          .thenApply(response -> response.statusCode() < 400);
+      }
+      return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+        .thenApply(response -> response.statusCode() < 400 && bodyPattern.matcher(response.body()).find());
+    }
+    
+    private CompletableFuture<Boolean> probeTcp() throws IOException {
+      CompletableFuture<Boolean> connected = new CompletableFuture<>();
+      AsynchronousSocketChannel channel = AsynchronousSocketChannel.open();
+      channel.connect(new InetSocketAddress(targetURI.getHost(), targetURI.getPort()), null, new CompletionHandler<Void, Void>() {
+        @Override
+        public void completed(Void result, Void attachment) {
+          connected.complete(true);
+        }
+        
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+          connected.complete(false);
+        }
+      });
+      scheduler.schedule(() -> connected.complete(false), timeoutMs, TimeUnit.MILLISECONDS);
+      return connected.whenComplete((ok, error) -> {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          // nothing to release
+        }
+      });
+    }
+    
+    private void onProbeFinished(boolean ok) {
+      release();
+      if (ok) {
+        result.complete(true);
+        return;
       }
-      return false;
-    }, maxTries, waitMs, false);
+      
+      // exponential backoff with "equal jitter": half of the delay is fixed, the other half random
+      long delay = Math.min(maxDelayMs, initialDelayMs << Math.min(attempts - 1, 20));
+      delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+      if (System.currentTimeMillis() + delay >= deadline) {
+        log.warn(String.format("Container unresponsive after %d probes: %s", attempts, targetURI));
+        result.complete(false);
+        return;
+      }
+      log.debug(String.format("Container unresponsive, trying again in %dms (%d): %s", delay, attempts, targetURI));
+      try {
+        scheduler.schedule(() -> submit(this::probe), delay, TimeUnit.MILLISECONDS);
+      } catch (RuntimeException e) {
+        // shutting down
+        result.complete(false);
+      }
+    }
   }
 }
@@ -24,8 +24,11 @@ import com.google.common.base.Strings;
 import eu.openanalytics.containerproxy.ContainerProxyException;
 import eu.openanalytics.containerproxy.auth.IAuthenticationBackend;
 import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
 import eu.openanalytics.containerproxy.model.spec.ProxySpec;
 import eu.openanalytics.containerproxy.service.ProxyService;
+import eu.openanalytics.containerproxy.service.ProxyStartup;
+import eu.openanalytics.containerproxy.service.SharedProxyService;
 import eu.openanalytics.containerproxy.service.UserService;
 import eu.openanalytics.containerproxy.util.ProxyMappingManager;
 import org.apache.logging.log4j.LogManager;
@@ -41,6 +44,9 @@ import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.UnsupportedEncodingException;
@@ -53,8 +59,6 @@ import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import static eu.openanalytics.shinyproxy.controllers.FileBrowserController.awaitReadyHelper;
-
 @Controller
 public class AppController extends BaseController {
   
@@ -77,12 +81,13 @@ public class AppController extends BaseController {
     Proxy proxy = findUserProxy(request);
     if (proxy == null && !userService.isAdmin()) {
       int containerLimit = environment.getProperty("proxy.container-quantity-limit", Integer.class, 2);
-      int proxies = proxyService.getProxies(p -> p.getUserId().equals(userService.getCurrentUserId()) && !p.getSpec().getId().equals("filebrowser"), false).size();
+      int proxies = proxyService.getUserProxies(userService.getCurrentUserId(), p -> !p.getSpec().getId().equals("filebrowser"), false).size();
       if (proxies >= containerLimit) {
         return "limit-error";
       }
     }
-    awaitReady(proxy);
+    // a proxy that is still starting is picked up by the page, see startApp
+    if (proxy != null && proxy.getStatus() != ProxyStatus.Up) proxy = null;
     
     map.put("appTitle", getAppTitle(request));
     String baseDomain = environment.getProperty("proxy.domain");
@@ -125,6 +130,7 @@ public class AppController extends BaseController {
       Map<String, String> response = new HashMap<>();
       response.put("containerPath", containerPath);
       response.put("proxyId", proxy.getId());
+      putStatus(response, proxy);
       return response;
     } catch (IllegalArgumentException e) {
       log.error(e.getMessage());
@@ -146,7 +152,7 @@ public class AppController extends BaseController {
   @RequestMapping(value = "/app_direct/**")
   public void appDirect(HttpServletRequest request, HttpServletResponse response) {
     Proxy proxy = findUserProxy(request);
-    awaitReady(proxy);
+    if (awaitReady(proxy, request)) return;
     
     String mapping = getProxyEndpoint(proxy);
     String appPort = getAppPort(request);
@@ -172,6 +178,8 @@ public class AppController extends BaseController {
       if (port >= 0) {
         mappingManager.dispatchAsync(proxy, subPath, port, request, response);
       } else {
+        // the following requests to the app skip the servlet stack, see ProxyMappingManager.DirectRouteHandler
+        if (mapping != null) mappingManager.addAppDirectRouteCookie(getAppName(request), mapping);
         mappingManager.dispatchAsync(mapping + subPath, request, response);
       }
     } catch (Exception e) {
@@ -204,13 +212,66 @@ public class AppController extends BaseController {
       ProxySpec spec = proxyService.getProxySpec(specId);
       if (spec == null) throw new IllegalArgumentException("Unknown proxy spec: " + specId);
       ProxySpec resolvedSpec = proxyService.resolveProxySpec(spec, null, null);
-      proxy = proxyService.startProxy(resolvedSpec, false);
+      proxy = proxyService.startProxyAsync(resolvedSpec, false).getProxy();
     }
     return proxy;
   }
   
-  private boolean awaitReady(Proxy proxy) {
-    return awaitReadyHelper(proxy, environment.getProperty("proxy.container-wait-time", "20000"));
+  /**
+   * If the proxy is still starting, suspend the request without holding on to the request thread and
+   * dispatch it again once the startup is done. If the startup takes longer than it may, the request gets a 503
+   * asking the client to retry.
+   *
+   * @return True if the request was suspended.
+   */
+  private boolean awaitReady(Proxy proxy, HttpServletRequest request) {
+    if (proxy == null || proxy.getStatus() == ProxyStatus.Up) return false;
+    ProxyStartup startup = proxyService.getProxyStartup(proxy.getId());
+    if (startup == null) return false;
+    
+    AsyncContext asyncContext = request.startAsync();
+    asyncContext.setTimeout(getStartTimeout(proxy.getSpec()));
+    asyncContext.addListener(new AsyncListener() {
+      @Override
+      public void onTimeout(AsyncEvent event) {
+        HttpServletResponse response = (HttpServletResponse) event.getSuppliedResponse();
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", "5");
+        event.getAsyncContext().complete();
+      }
+      
+      @Override
+      public void onComplete(AsyncEvent event) {
+      }
+      
+      @Override
+      public void onError(AsyncEvent event) {
+      }
+      
+      @Override
+      public void onStartAsync(AsyncEvent event) {
+      }
+    });
+    startup.getFuture().whenComplete((p, error) -> {
+      try {
+        asyncContext.dispatch();
+      } catch (IllegalStateException e) {
+        // the request already timed out
+      }
+    });
+    return true;
+  }
+  
+  /**
+   * @return The time a startup of the given spec may take: the time to join a shared pool, or else the time to
+   * schedule the pod (on Kubernetes) plus the time to wait for the container to respond.
+   */
+  private long getStartTimeout(ProxySpec spec) {
+    if (SharedProxyService.isShared(spec)) {
+      return Duration.parse(environment.getProperty("proxy.shared.start-timeout", "PT10M")).toMillis();
+    }
+    return environment.getProperty("proxy.kubernetes.pod-wait-time", Long.class, 60000L)
+      + environment.getProperty("proxy.container-wait-time", Long.class, 20000L);
   }
   
   private String buildContainerPath(HttpServletRequest request) {
@@ -107,7 +107,17 @@ public abstract class BaseController {
   protected Proxy findUserProxy(HttpServletRequest request) {
     String appName = getAppName(request);
     if (appName == null) return null;
-    return proxyService.findProxy(p -> appName.equals(p.getSpec().getId()) && userService.isOwner(p), false);
+    return proxyService.findUserProxy(userService.getCurrentUserId(), appName, false);
+  }
+  
+  /**
+   * Add the status of the proxy to a start response, together with the endpoints the page uses to
+   * wait for a proxy that is not up yet (server-sent events, or long-polling as fallback).
+   */
+  protected void putStatus(Map<String, String> response, Proxy proxy) {
+    response.put("status", proxy.getStatus().toString());
+    response.put("eventsUrl", getContextPath() + "api/proxy/" + proxy.getId() + "/events");
+    response.put("statusUrl", getContextPath() + "api/proxy/" + proxy.getId() + "/status");
   }
   
   protected String getProxyEndpoint(Proxy proxy) {
@@ -30,7 +30,6 @@ import eu.openanalytics.containerproxy.model.spec.ProxySpec;
 import eu.openanalytics.containerproxy.service.ProxyService;
 import eu.openanalytics.containerproxy.service.UserService;
 import eu.openanalytics.containerproxy.spec.FileBrowserProperties;
-import eu.openanalytics.containerproxy.util.Retrying;
 import eu.openanalytics.containerproxy.util.SessionHelper;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -68,8 +67,9 @@ public class FileBrowserController extends BaseController {
   public String fileBrowser(ModelMap map, HttpServletRequest request) {
     prepareMap(map, request);
     String id = "filebrowser";
-    Proxy proxy = proxyService.findProxy(p -> p.getSpec().getId().equals(id) && userService.isOwner(p), false);
-    awaitReady(proxy);
+    Proxy proxy = proxyService.findUserProxy(userService.getCurrentUserId(), id, false);
+    // a proxy that is still starting is picked up by the page, see startFileBrowser
+    if (proxy != null && proxy.getStatus() != ProxyStatus.Up) proxy = null;
     map.put("appTitle", "File Browser");
     map.put("container", (proxy == null) ? "" : buildContainerPath(request));
     return "filebrowser";
@@ -79,13 +79,13 @@ public class FileBrowserController extends BaseController {
   @ResponseBody
   public Map<String, String> startFileBrowser(HttpServletRequest request) {
     String id = "filebrowser";
-    Proxy proxy = proxyService.findProxy(p -> p.getSpec().getId().equals(id) && userService.isOwner(p), false);
+    Proxy proxy = proxyService.findUserProxy(userService.getCurrentUserId(), id, false);
     if (proxy == null) {
       if (fileBrowserProperties != null) {
         ProxySpec spec = fileBrowserSpecTranslate(fileBrowserProperties);
         ProxySpec resolvedSpec = proxyService.resolveProxySpec(spec, null, null);
         try {
-          proxy = proxyService.startProxy(resolvedSpec, false);
+          proxy = proxyService.startProxyAsync(resolvedSpec, false).getProxy();
         } catch (ContainerProxyException e) {
           String errorMessage = "Failed to start file browser";
           log.error(errorMessage);
@@ -104,10 +104,10 @@ public class FileBrowserController extends BaseController {
         return response;
       }
     }
-    awaitReady(proxy);
     String containerPath = buildContainerPath(request);
     Map<String, String> response = new HashMap<>();
     response.put("containerPath", containerPath);
+    putStatus(response, proxy);
     return response;
   }
   
@@ -142,23 +142,6 @@ public class FileBrowserController extends BaseController {
     return getProxySpec(spec, cSpec, fbp.getLabels(), fbp.getPort());
   }
   
-  private boolean awaitReady(Proxy proxy) {
-    return awaitReadyHelper(proxy, environment.getProperty("proxy.container-wait-time", "20000"));
-  }
-  
-  static boolean awaitReadyHelper(Proxy proxy, String property) {
-    if (proxy == null) return false;
-    if (proxy.getStatus() == ProxyStatus.Up) return true;
-    if (proxy.getStatus() == ProxyStatus.Stopping || proxy.getStatus() == ProxyStatus.Stopped) return false;
-    
-    int totalWaitMs = Integer.parseInt(property);
-    int waitMs = Math.min(500, totalWaitMs);
-    int maxTries = totalWaitMs / waitMs;
-    Retrying.retry(i -> proxy.getStatus() != ProxyStatus.Starting, maxTries, waitMs);
-    
-    return (proxy.getStatus() == ProxyStatus.Up);
-  }
-  
   private String buildContainerPath(HttpServletRequest request) {
     String queryString = ServletUriComponentsBuilder.fromRequest(request).replaceQueryParam("sp_hide_navbar").build().getQuery();
     queryString = (queryString == null) ? "" : "?" + queryString;
@@ -65,13 +65,7 @@ public class IssueController extends BaseController {
     form.setAppName(getAppName(form.getCurrentLocation()));
     form.setCustomMessage(request.getParameter("customMessage"));
     
-    Proxy activeProxy = null;
-    for (Proxy proxy : proxyService.getProxies(null, false)) {
-      if (proxy.getUserId().equals(form.getUserName()) && proxy.getSpec().getId().equals(form.getAppName())) {
-        activeProxy = proxy;
-        break;
-      }
-    }
+    Proxy activeProxy = proxyService.findUserProxy(form.getUserName(), form.getAppName(), false);
     sendSupportMail(form, activeProxy);
     
     //TODO Redirect to current location
@@ -0,0 +1,85 @@
+package eu.openanalytics.containerproxy.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the lookup of the proxy of a request path in ProxyMappingManager.getProxyId with 50k mappings: the scan
+ * over all mappings that it used to do, against the lookup in the PrefixTrie that replaced it.
+ * <p>
+ * Run with:
+ * mvn -Pbenchmarks test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ * -Dexec.args="-cp %classpath org.openjdk.jmh.Main PrefixTrieBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PrefixTrieBenchmark {
+  
+  private static final int PATHS = 1024;
+  
+  @Param("50000")
+  private int mappingCount;
+  
+  private final Map<String, String> mappings = new HashMap<>();
+  private final PrefixTrie<String> mappingIndex = new PrefixTrie<>();
+  private final String[] paths = new String[PATHS];
+  private int next;
+  
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    String[] proxyIds = new String[mappingCount];
+    for (int i = 0; i < mappingCount; i++) {
+      proxyIds[i] = UUID.randomUUID().toString();
+      String mapping = proxyIds[i] + "/";
+      mappings.put(mapping, proxyIds[i]);
+      mappingIndex.put(mapping, proxyIds[i]);
+    }
+    // requests for the files of random proxies, with the case of the proxy id changed like a browser may do
+    for (int i = 0; i < PATHS; i++) {
+      String proxyId = proxyIds[random.nextInt(mappingCount)];
+      paths[i] = (i % 2 == 0 ? proxyId : proxyId.toUpperCase()) + "/static/js/app.js";
+    }
+  }
+  
+  private String nextPath() {
+    next = (next + 1) & (PATHS - 1);
+    return paths[next];
+  }
+  
+  /**
+   * The removed implementation of ProxyMappingManager.getProxyId.
+   */
+  @Benchmark
+  public String scan() {
+    String mapping = nextPath();
+    for (Map.Entry<String, String> e : mappings.entrySet()) {
+      if (mapping.toLowerCase().startsWith(e.getKey().toLowerCase())) return e.getValue();
+    }
+    return null;
+  }
+  
+  @Benchmark
+  public String prefixTrie() {
+    return mappingIndex.getLongestPrefixMatch(nextPath());
+  }
+}
@@ -0,0 +1,121 @@
+package eu.openanalytics.containerproxy.util;
+
+import eu.openanalytics.containerproxy.model.runtime.HeartbeatStatus;
+import eu.openanalytics.containerproxy.model.runtime.Proxy;
+import eu.openanalytics.containerproxy.model.runtime.ProxyStatus;
+import eu.openanalytics.containerproxy.model.spec.ProxySpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the work of one heartbeat interval (heartbeat-rate, 10 s) for 10k proxies that are up: the scan over
+ * all proxies that HeartbeatService used to do, against advancing the timer wheel that replaced it over the 100
+ * ticks of the interval, which only visits the deadlines that expire in it.
+ * <p>
+ * The proxies are active: the scan releases none of them, and every inactivity deadline that expires is scheduled
+ * again, as HeartbeatService does when a heartbeat was received in the meantime.
+ * <p>
+ * Run with:
+ * mvn -Pbenchmarks test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ * -Dexec.args="-cp %classpath org.openjdk.jmh.Main TimerWheelBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TimerWheelBenchmark {
+  
+  private static final long TICK_MS = 100;
+  private static final long HEARTBEAT_RATE_MS = 10000;
+  private static final long HEARTBEAT_TIMEOUT_MS = 60000;
+  private static final long MAX_AGE_MS = TimeUnit.HOURS.toMillis(4);
+  
+  @Param("10000")
+  private int proxyCount;
+  
+  private final List<Proxy> proxies = new ArrayList<>();
+  private final Map<String, HeartbeatStatus> websocketHeartbeats = new ConcurrentHashMap<>();
+  private TimerWheel timerWheel;
+  private long nanoTime;
+  
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    ProxySpec spec = new ProxySpec();
+    spec.setId("app");
+    long now = System.currentTimeMillis();
+    timerWheel = new TimerWheel("benchmark", TICK_MS, TimeUnit.MILLISECONDS, () -> nanoTime);
+    for (int i = 0; i < proxyCount; i++) {
+      Proxy proxy = new Proxy();
+      proxy.setId(UUID.randomUUID().toString());
+      proxy.setSpec(spec);
+      proxy.setStatus(ProxyStatus.Up);
+      proxy.setStartupTimestamp(now - (long) (random.nextDouble() * MAX_AGE_MS / 2));
+      proxy.getActivity().heartbeat();
+      proxies.add(proxy);
+      
+      long age = now - proxy.getStartupTimestamp();
+      scheduleMaxAge(MAX_AGE_MS - age);
+      scheduleInactivity((long) (random.nextDouble() * HEARTBEAT_TIMEOUT_MS));
+    }
+  }
+  
+  // a proxy that reaches its max-age is replaced by a new one, so the number of deadlines stays the same
+  private void scheduleMaxAge(long delay) {
+    timerWheel.schedule(() -> scheduleMaxAge(MAX_AGE_MS), delay, TimeUnit.MILLISECONDS);
+  }
+  
+  private void scheduleInactivity(long delay) {
+    timerWheel.schedule(() -> scheduleInactivity(HEARTBEAT_TIMEOUT_MS), delay, TimeUnit.MILLISECONDS);
+  }
+  
+  /**
+   * The checks of the removed InactiveProxyKiller for a proxy that is not released.
+   */
+  @Benchmark
+  public void scan(Blackhole blackhole) {
+    long currentTimestamp = System.currentTimeMillis();
+    for (Proxy proxy : proxies) {
+      if (proxy.getStatus() != ProxyStatus.Up) continue;
+      else if (proxy.getSpec().getId().equals("filebrowser")) continue;
+      
+      if (currentTimestamp - proxy.getStartupTimestamp() > MAX_AGE_MS) {
+        blackhole.consume(proxy);
+        continue;
+      }
+      
+      HeartbeatStatus heartbeatStatus = websocketHeartbeats.get(proxy.getId());
+      long lastHeartbeat = proxy.getActivity().getLastHeartbeatTimestamp();
+      if (lastHeartbeat == 0) lastHeartbeat = proxy.getStartupTimestamp();
+      long proxySilence = currentTimestamp - lastHeartbeat;
+      blackhole.consume(proxySilence > HEARTBEAT_TIMEOUT_MS && heartbeatStatus == null);
+    }
+  }
+  
+  @Benchmark
+  public int timerWheel() {
+    nanoTime += TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_RATE_MS);
+    timerWheel.tick();
+    return timerWheel.size();
+  }
+}